@@ -18,5 +18,10 @@ public class IndelFilter<T extends SAMFragment> implements Predicate<T>{
 		if(cigar.contains("D") || cigar.contains("I")){return false;}
 		return true;
 	}
+	
+	@Override
+	public String toString() {
+		return "IndelFilter";
+	}
 
 }
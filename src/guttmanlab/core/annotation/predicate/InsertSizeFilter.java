@@ -18,5 +18,10 @@ public class InsertSizeFilter<T extends PairedMappedFragment<SAMFragment>> imple
 		if(fragment.fragmentLength()<maxSize){return true;}
 		return false;
 	}
+	
+	@Override
+	public String toString() {
+		return "InsertSizeFilter(" + maxSize + ")";
+	}
 
 }
@@ -8,5 +8,10 @@ public class MappedReadFilter<T extends MappedFragment> implements Predicate<T>
 	public boolean evaluate(T frag) {
 		return !frag.getSamRecord(null).getReadUnmappedFlag();
 	}
+	
+	@Override
+	public String toString() {
+		return "MappedReadFilter";
+	}
 
 }
@@ -17,5 +17,10 @@ public class MaximumLengthFilter<T extends Annotation> implements Predicate<T>{
 		if(annot.getReferenceEndPosition()-annot.getReferenceStartPosition() < maxSize){return true;}
 		return false;
 	}
+	
+	@Override
+	public String toString() {
+		return "MaximumLengthFilter(" + maxSize + ")";
+	}
 
 }
@@ -17,5 +17,10 @@ public class MinimumLengthFilter<T extends Annotation> implements Predicate<T>{
 		if(annot.size()>minSize){return true;}
 		return false;
 	}
+	
+	@Override
+	public String toString() {
+		return "MinimumLengthFilter(" + minSize + ")";
+	}
 
 }
@@ -18,5 +18,10 @@ public class ReadClippedFilter<T extends SAMFragment> implements Predicate<T>{
 		if(cigar.contains("S") || cigar.contains("H") || cigar.contains("P")){return false;}
 		return true;
 	}
+	
+	@Override
+	public String toString() {
+		return "ReadClippedFilter";
+	}
 
 }
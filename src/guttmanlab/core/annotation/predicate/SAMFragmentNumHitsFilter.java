@@ -17,5 +17,10 @@ public class SAMFragmentNumHitsFilter implements Predicate<MappedFragment> {
 	public boolean evaluate(MappedFragment fragment) {
 		return fragment.getNumHits() <= maxNumHits;
 	}
+	
+	@Override
+	public String toString() {
+		return "SAMFragmentNumHitsFilter(" + maxNumHits + ")";
+	}
 
 }
@@ -9,5 +9,10 @@ public class SecondReadFilter<T extends SAMFragment> implements Predicate<T> {
 	public boolean evaluate(T frag) {
 		return frag.getSamRecord().getSecondOfPairFlag();
 	}
+	
+	@Override
+	public String toString() {
+		return "SecondReadFilter";
+	}
 
 }
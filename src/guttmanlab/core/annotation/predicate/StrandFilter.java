@@ -32,5 +32,10 @@ public class StrandFilter<T extends Annotation> implements Predicate<T> {
 		}
 		return false;
 	}
+	
+	@Override
+	public String toString() {
+		return "StrandFilter(" + feat_dir + ")";
+	}
 
 }
@@ -10,6 +10,7 @@ import guttmanlab.core.annotation.SingleInterval;
 import guttmanlab.core.annotation.Annotation.Strand;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
 import guttmanlab.core.datastructures.IntervalTree;
+import guttmanlab.core.util.ParallelBAMFileWriter;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -24,17 +25,111 @@ import org.apache.commons.collections15.Predicate;
 
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriter;
-import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.util.CloseableIterator;
 
 public abstract class AbstractAnnotationCollection<T extends Annotation> implements AnnotationCollection<T>{
 
 	private Collection<Predicate<T>> filters;
 	private int numAnnotations;
+	private FilterStatistics filterStatistics;
+	private int filterReorderInterval;
+	private int writerThreads;
+	private int compressionLevel = ParallelBAMFileWriter.DEFAULT_COMPRESSION_LEVEL;
 
 	public AbstractAnnotationCollection(){
 		filters=new ArrayList<Predicate<T>>();
 	}
+	
+	/**
+	 * Collect per-filter statistics on every iterator returned by this collection. The counts of each
+	 * iterator are added to the statistics object when the iterator is closed.
+	 * @param statistics Object to add the counts to, or null to stop collecting statistics
+	 * @param adaptive Whether iterators should periodically reorder the filters so that those with the
+	 * most rejections per nanosecond are evaluated first
+	 */
+	public void setFilterStatistics(FilterStatistics statistics, boolean adaptive) {
+		setFilterStatistics(statistics, adaptive ? FilteredIterator.DEFAULT_REORDER_INTERVAL : 0);
+	}
+	
+	/**
+	 * Collect per-filter statistics on every iterator returned by this collection. The counts of each
+	 * iterator are added to the statistics object when the iterator is closed.
+	 * @param statistics Object to add the counts to, or null to stop collecting statistics
+	 * @param reorderInterval Number of records between reorderings of the filters, or 0 to keep
+	 * the filters in insertion order
+	 */
+	public void setFilterStatistics(FilterStatistics statistics, int reorderInterval) {
+		this.filterStatistics = statistics;
+		this.filterReorderInterval = reorderInterval;
+	}
+	
+	/**
+	 * @return The object filter statistics are added to, or null if statistics are not being collected
+	 */
+	public FilterStatistics getFilterStatistics() {
+		return filterStatistics;
+	}
+	
+	/**
+	 * @return Number of records between reorderings of the filters, or 0 if filters are not reordered
+	 */
+	protected int getFilterReorderInterval() {
+		return filterReorderInterval;
+	}
+	
+	/**
+	 * Compress BAM files written by this collection on a thread pool
+	 * @param numThreads Number of compression threads, or 0 to compress on the calling thread
+	 */
+	public void setBAMWriterThreads(int numThreads) {
+		if (numThreads < 0) {
+			throw new IllegalArgumentException("Number of threads must be non-negative: " + numThreads);
+		}
+		this.writerThreads = numThreads;
+	}
+	
+	/**
+	 * @param level Deflate compression level of BAM files written by this collection, 0-9
+	 */
+	public void setBAMCompressionLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.compressionLevel = level;
+	}
+	
+	/**
+	 * Make a writer with the compression settings of this collection. Coordinate sorted BAM files are indexed.
+	 * @param header Header of the output file
+	 * @param file Output file
+	 * @return The writer
+	 */
+	protected SAMFileWriter makeWriter(SAMFileHeader header, File file) {
+		return makeWriter(header, file, compressionLevel);
+	}
+	
+	/**
+	 * Make a writer with the number of compression threads of this collection. Coordinate sorted BAM files are indexed.
+	 * @param header Header of the output file
+	 * @param file Output file
+	 * @param level Deflate compression level, 0-9
+	 * @return The writer
+	 */
+	protected SAMFileWriter makeWriter(SAMFileHeader header, File file, int level) {
+		return ParallelBAMFileWriter.makeSAMOrBAMWriter(header, false, file, level, writerThreads);
+	}
+	
+	/**
+	 * Enable statistics collection on an iterator if it is enabled for this collection
+	 * @param iter The iterator
+	 * @return The same iterator
+	 */
+	protected FilteredIterator<T> instrument(FilteredIterator<T> iter) {
+		if (filterStatistics != null) {
+			iter.collectStatistics(filterStatistics, filterReorderInterval);
+		}
+		return iter;
+	}
 
 	@Override
 	public void addFilter(Predicate<T> filter) {
@@ -129,7 +224,7 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 	
 	private void writeToBAM(String fileName, CloseableIterator<T> iter){
 		SAMFileHeader header=getReferenceCoordinateSpace().getBAMFileHeader();
-		SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(header, false, new File(fileName));
+		SAMFileWriter writer=makeWriter(header, new File(fileName));
 			
 		while(iter.hasNext()){
 			T ann=iter.next();
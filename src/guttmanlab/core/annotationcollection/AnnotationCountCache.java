@@ -0,0 +1,137 @@
+package guttmanlab.core.annotationcollection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.collections15.Predicate;
+import org.apache.log4j.Logger;
+
+/**
+ * Per-reference annotation counts of a BAM file, keyed by the set of filters they were computed with.
+ * The counts are persisted in a sidecar file next to the BAM file so that later jobs do not need to
+ * rescan it. The sidecar file is ignored if the BAM file has changed since it was written.
+ *
+ * A filter set can only be cached if every filter describes its parameters with toString();
+ * filters that keep the default Object.toString() make the counts uncacheable.
+ */
+class AnnotationCountCache {
+
+	/**
+	 * Key of the count over the whole file. Reads without a reference are counted under "*".
+	 */
+	static final String TOTAL = "__total__";
+
+	private static final String EXTENSION = ".counts";
+	private static final String LENGTH_KEY = "bam.length";
+	private static final String MODIFIED_KEY = "bam.lastModified";
+	private static final String SEPARATOR = "\t";
+
+	private File bamFile;
+	private File countFile;
+	private Properties properties;
+	private static Logger logger = Logger.getLogger(AnnotationCountCache.class.getName());
+
+	/**
+	 * @param bamFile The BAM file whose counts are cached
+	 */
+	AnnotationCountCache(File bamFile) {
+		this.bamFile = bamFile;
+		this.countFile = new File(bamFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 * @param filters The filters applied to the collection
+	 * @return A string identifying the filters, or null if some filter cannot be identified
+	 */
+	static <T> String getFilterSignature(Collection<Predicate<T>> filters) {
+		StringBuilder sb = new StringBuilder();
+		for (Predicate<T> filter : filters) {
+			if (!overridesToString(filter)) {
+				return null;
+			}
+			sb.append(filter.toString() + ";");
+		}
+		return sb.toString();
+	}
+
+	private static boolean overridesToString(Object o) {
+		try {
+			return o.getClass().getMethod("toString").getDeclaringClass() != Object.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param signature Filter signature from getFilterSignature()
+	 * @return The counts by reference name, including TOTAL, or null if they are not cached
+	 */
+	synchronized Map<String, Integer> get(String signature) {
+		load();
+		Map<String, Integer> rtrn = new TreeMap<String, Integer>();
+		String prefix = signature + SEPARATOR;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				rtrn.put(key.substring(prefix.length()), Integer.valueOf(properties.getProperty(key)));
+			}
+		}
+		return rtrn.containsKey(TOTAL) ? rtrn : null;
+	}
+
+	/**
+	 * Store counts and write them to the sidecar file
+	 * @param signature Filter signature from getFilterSignature()
+	 * @param counts The counts by reference name, including TOTAL
+	 */
+	synchronized void put(String signature, Map<String, Integer> counts) {
+		load();
+		for (String reference : counts.keySet()) {
+			properties.setProperty(signature + SEPARATOR + reference, counts.get(reference).toString());
+		}
+		try {
+			OutputStream out = new FileOutputStream(countFile);
+			try {
+				properties.store(out, "Annotation counts for " + bamFile.getName());
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write annotation counts to " + countFile.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	private void load() {
+		if (properties != null) {
+			return;
+		}
+		properties = new Properties();
+		if (countFile.exists()) {
+			try {
+				InputStream in = new FileInputStream(countFile);
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.warn("Could not read annotation counts from " + countFile.getPath() + ": " + e.getMessage());
+				properties.clear();
+			}
+		}
+		String length = Long.toString(bamFile.length());
+		String modified = Long.toString(bamFile.lastModified());
+		if (!length.equals(properties.getProperty(LENGTH_KEY)) || !modified.equals(properties.getProperty(MODIFIED_KEY))) {
+			properties.clear();
+			properties.setProperty(LENGTH_KEY, length);
+			properties.setProperty(MODIFIED_KEY, modified);
+		}
+	}
+}
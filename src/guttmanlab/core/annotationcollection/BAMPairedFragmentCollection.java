@@ -22,7 +22,6 @@ import org.apache.log4j.Logger;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
-import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
 import net.sf.samtools.util.CloseableIterator;
@@ -42,6 +41,12 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 	private File fragmentFile;
 	private BAMSingleReadCollection reads;
 	private SpecialBAMPECollection fragmentReader;
+	private int fragmentFileCompressionLevel = DEFAULT_FRAGMENT_FILE_COMPRESSION_LEVEL;
+	
+	/**
+	 * Fragment files are temporary, so they are written with fast compression by default
+	 */
+	public static final int DEFAULT_FRAGMENT_FILE_COMPRESSION_LEVEL = 1;
 	private static Logger logger = Logger.getLogger(BAMPairedFragmentCollection.class.getName());
 	
 	/**
@@ -86,6 +91,16 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		return bamFile;
 	}
 	
+	/**
+	 * @param level Deflate compression level of the temporary fragment file, 0-9
+	 */
+	public void setFragmentFileCompressionLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.fragmentFileCompressionLevel = level;
+	}
+	
 	private File makeFragmentFile() throws IOException {
 		File file = File.createTempFile("temp", EXTENSION);
 		file.deleteOnExit();
@@ -124,7 +139,7 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 			
 			try {
 				iter = sortedIterator();
-				writer = new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(reads.getFileHeader(), false, fragmentFile);
+				writer = makeWriter(reads.getFileHeader(), fragmentFile, fragmentFileCompressionLevel);
 
 				logger.info("Writing fragment file " + fragmentFile.getName());
 				while (iter.hasNext()) {
@@ -189,7 +204,7 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 	
 	@Override
 	public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator() {
-		return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new PairedIterator(reads.sortedIterator()), getFilters());
+		return instrument(new FilteredIterator<PairedMappedFragment<SAMFragment>>(new PairedIterator(reads.sortedIterator()), getFilters()));
 	}
 	
 	@Override
@@ -212,6 +227,8 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 			fragments.addFilter(new OverlapsFilter<PairedMappedFragment<SAMFragment>>(region));
 		}
 		
+		// Report filter statistics of the fragment file to this collection
+		fragments.setFilterStatistics(getFilterStatistics(), getFilterReorderInterval());
 		return fragments.sortedIterator();
 	}
 	
@@ -250,7 +267,7 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		SAMFileWriter writer = null;
 		int counter = 0;
 		try {
-			writer = new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(reads.getFileHeader(), false, file);
+			writer = makeWriter(reads.getFileHeader(), file);
 			while (iter.hasNext()) {
 				PairedMappedFragment<SAMFragment> ann = iter.next();
 				writer.addAlignment(ann.getRead1().getSamRecord());
@@ -379,12 +396,12 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 
 		@Override
 		public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator() {
-			return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(reader), getFilters());
+			return instrument(new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(reader), getFilters()));
 		}
 
 		@Override
 		public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator(Annotation region, boolean fullyContained) {
-			return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(reader, region), getFilters());
+			return instrument(new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(reader, region), getFilters()));
 		}
 
 		@SuppressWarnings("unused")
@@ -398,7 +415,7 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		}
 		
 		private void writeToFile(String fileName, CloseableIterator<PairedMappedFragment<SAMFragment>> iter){
-			SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(reader.getFileHeader(), false, new File(fileName));
+			SAMFileWriter writer=makeWriter(reader.getFileHeader(), new File(fileName));
 		
 			while(iter.hasNext()){
 				PairedMappedFragment<SAMFragment> ann=iter.next();
@@ -5,21 +5,33 @@ import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.PairedMappedFragment;
 import guttmanlab.core.annotation.SAMFragment;
 import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
 import guttmanlab.core.annotation.predicate.ContainedByFilter;
 import guttmanlab.core.annotation.predicate.OverlapsFilter;
+import guttmanlab.core.annotation.predicate.StrandFilter;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
+import guttmanlab.core.util.BlockCompressedReadAheadInputStream;
+import guttmanlab.core.util.ReadAheadBAMRecordIterator;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 import org.apache.commons.collections15.Predicate;
 
+import net.sf.samtools.AbstractBAMFileIndex;
+import net.sf.samtools.BAMIndex;
+import net.sf.samtools.BAMIndexMetaData;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
-import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
 import net.sf.samtools.util.CloseableIterator;
@@ -32,6 +44,21 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 	private SAMFileReader reader;
 	private CoordinateSpace referenceSpace;
 	private final File bamFile;
+	private AnnotationCountCache countCache;
+	private Map<String, Integer> indexCounts;
+	private Map<String, Integer> unalignedIndexCounts;
+	private int readAheadThreads;
+	private int readAheadQueueDepth;
+	
+	/**
+	 * Default maximum distance between regions that are queried together by the batch sortedIterator
+	 */
+	public static final int DEFAULT_BATCH_QUERY_GAP = 1000;
+	
+	/**
+	 * Maximum length of the hull of regions that are queried together, which bounds the number of reads held in memory
+	 */
+	private static final int MAX_BATCH_QUERY_LENGTH = 1000000;
 	
 	/**
 	 * Constructs a collection of single-read aligned fragments from a BAM file.
@@ -42,6 +69,7 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		this.reader = new SAMFileReader(bamFile);
 		this.referenceSpace = new CoordinateSpace(reader.getFileHeader());
 		this.bamFile = bamFile;
+		this.countCache = new AnnotationCountCache(bamFile);
 	}
 
 	/**
@@ -52,9 +80,36 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		this(new File(bamFilePath));
 	}
 	
+	/**
+	 * Inflate BGZF blocks on a thread pool during whole-file iteration with sortedIterator(). This
+	 * speeds up full passes over the file such as counting and building fragment files. Region queries
+	 * are not affected.
+	 * @param numThreads the number of inflater threads, or 0 to inflate on the calling thread
+	 * @param queueDepth the maximum number of blocks inflated ahead of the consumer
+	 */
+	public void setReadAhead(int numThreads, int queueDepth) {
+		if (numThreads < 0 || (numThreads > 0 && queueDepth < 1)) {
+			throw new IllegalArgumentException("Invalid read-ahead settings: " + numThreads + " threads, queue depth " + queueDepth);
+		}
+		this.readAheadThreads = numThreads;
+		this.readAheadQueueDepth = queueDepth;
+	}
+	
+	/**
+	 * Inflate BGZF blocks on a thread pool during whole-file iteration with sortedIterator(), queueing
+	 * a default number of blocks per thread.
+	 * @param numThreads the number of inflater threads, or 0 to inflate on the calling thread
+	 */
+	public void setReadAhead(int numThreads) {
+		setReadAhead(numThreads, numThreads * BlockCompressedReadAheadInputStream.DEFAULT_BLOCKS_PER_THREAD);
+	}
+	
 	@Override
 	public CloseableIterator<SAMFragment> sortedIterator() {
-		return new FilteredIterator<SAMFragment>(new WrappedIterator(reader.iterator()), getFilters());
+		SAMRecordIterator records = readAheadThreads > 0
+				? new ReadAheadBAMRecordIterator(bamFile, reader.getFileHeader(), readAheadThreads, readAheadQueueDepth)
+				: reader.iterator();
+		return instrument(new FilteredIterator<SAMFragment>(new WrappedIterator(records), getFilters()));
 	}
 	
 	@Override
@@ -84,17 +139,185 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		
 		// TODO Check if we need the StrandFilter provided by the third argument. The overlap/contains methods
 		// might deal with strandedness already.
-		return new FilteredIterator<SAMFragment>(iter, filters, region.getOrientation());
+		return instrument(new FilteredIterator<SAMFragment>(iter, filters, region.getOrientation()));
 	}
 		
 	
+	/**
+	 * Gets the reads overlapping each of a collection of regions, reading the BAM file once for each
+	 * cluster of nearby regions instead of once per region. Regions on the same reference whose hulls
+	 * are within DEFAULT_BATCH_QUERY_GAP bases of each other are queried together, and every read is
+	 * routed to all the regions of its cluster that it overlaps. Results are returned in the order of
+	 * the regions, so regions should be sorted by reference and start position to get the most sharing.
+	 * @param regions the regions to query
+	 * @param fullyContained whether reads must be fully contained in a region rather than merely overlap it
+	 * @return an iterator over each region and its reads, which are the same as sortedIterator(region, fullyContained) would return
+	 */
+	public CloseableIterator<RegionOverlappers<SAMFragment>> sortedIterator(Collection<? extends Annotation> regions, boolean fullyContained) {
+		return sortedIterator(regions, fullyContained, DEFAULT_BATCH_QUERY_GAP);
+	}
+	
+	/**
+	 * Gets the reads overlapping each of a collection of regions, reading the BAM file once for each
+	 * cluster of nearby regions instead of once per region. See sortedIterator(Collection, boolean).
+	 * @param regions the regions to query
+	 * @param fullyContained whether reads must be fully contained in a region rather than merely overlap it
+	 * @param maxGap the maximum distance between regions that are queried together
+	 * @return an iterator over each region and its reads
+	 */
+	public CloseableIterator<RegionOverlappers<SAMFragment>> sortedIterator(Collection<? extends Annotation> regions, boolean fullyContained, int maxGap) {
+		return new BatchQueryIterator(regions.iterator(), fullyContained, maxGap);
+	}
+	
+	/**
+	 * Gets the number of reads in this collection that pass the filters. Without filters, the count
+	 * is read from the BAM index metadata when available. Otherwise the reads are counted once per set of
+	 * filters and the counts are kept in a ".counts" file next to the BAM file.
+	 */
+	@Override
+	public int getNumAnnotations() {
+		Map<String, Integer> counts = getCounts();
+		if (counts == null) {
+			return super.getNumAnnotations();
+		}
+		return counts.get(AnnotationCountCache.TOTAL).intValue();
+	}
+	
+	/**
+	 * Gets the number of reads assigned to a reference sequence that pass the filters. Reads are
+	 * counted the same way as in getNumAnnotations().
+	 * @param referenceName the name of the reference sequence
+	 * @return the number of reads assigned to the reference sequence
+	 */
+	public int getNumAnnotations(String referenceName) {
+		Map<String, Integer> counts = getCounts();
+		if (counts == null) {
+			counts = countAnnotations();
+		}
+		Integer count = counts.get(referenceName);
+		return count == null ? 0 : count.intValue();
+	}
+	
+	/**
+	 * Answers from the index metadata when the region spans a whole reference sequence, there are no
+	 * filters and the index reports no unaligned reads placed on the reference.
+	 */
+	@Override
+	public int numOverlappers(Annotation region, boolean fullyContained) {
+		if (!fullyContained && getFilters().isEmpty() && spansReference(region)) {
+			Map<String, Integer> counts = getIndexCounts();
+			if (counts != null) {
+				Integer unaligned = unalignedIndexCounts.get(region.getReferenceName());
+				if (unaligned != null && unaligned.intValue() == 0) {
+					return counts.get(region.getReferenceName()).intValue();
+				}
+			}
+		}
+		return super.numOverlappers(region, fullyContained);
+	}
+	
+	private boolean spansReference(Annotation region) {
+		Integer size = referenceSpace.getRefSeqLengths().get(region.getReferenceName());
+		return size != null
+				&& region.getNumberOfBlocks() == 1
+				&& region.getOrientation().equals(Strand.BOTH)
+				&& region.getReferenceStartPosition() <= 0
+				&& region.getReferenceEndPosition() >= size.intValue();
+	}
+	
+	/**
+	 * @return counts by reference name for the current filters from the index or the count cache,
+	 * or null if the filters cannot be cached
+	 */
+	private Map<String, Integer> getCounts() {
+		if (getFilters().isEmpty()) {
+			Map<String, Integer> counts = getIndexCounts();
+			if (counts != null) {
+				return counts;
+			}
+		}
+		String signature = AnnotationCountCache.getFilterSignature(getFilters());
+		if (signature == null) {
+			return null;
+		}
+		Map<String, Integer> counts = countCache.get(signature);
+		if (counts == null) {
+			counts = countAnnotations();
+			countCache.put(signature, counts);
+		}
+		return counts;
+	}
+	
+	/**
+	 * @return counts by reference name from the BAM index metadata, or null if the index
+	 * does not exist or has no metadata
+	 */
+	private Map<String, Integer> getIndexCounts() {
+		if (indexCounts != null) {
+			return indexCounts;
+		}
+		if (!reader.hasIndex() || !(reader.getIndex() instanceof AbstractBAMFileIndex)) {
+			return null;
+		}
+		AbstractBAMFileIndex index = (AbstractBAMFileIndex) reader.getIndex();
+		Long noCoordinateCount = index.getNoCoordinateCount();
+		if (noCoordinateCount == null) {
+			// Indexes written without metadata do not store the number of unplaced reads
+			return null;
+		}
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		Map<String, Integer> unaligned = new TreeMap<String, Integer>();
+		long total = noCoordinateCount.longValue();
+		for (int i = 0; i < reader.getFileHeader().getSequenceDictionary().size(); i++) {
+			String name = reader.getFileHeader().getSequence(i).getSequenceName();
+			BAMIndexMetaData metaData = index.getMetaData(i);
+			int aligned = metaData == null ? 0 : metaData.getAlignedRecordCount();
+			int unalignedCount = metaData == null ? 0 : metaData.getUnalignedRecordCount();
+			counts.put(name, Integer.valueOf(aligned + unalignedCount));
+			unaligned.put(name, Integer.valueOf(unalignedCount));
+			total += aligned + unalignedCount;
+		}
+		if (total > Integer.MAX_VALUE) {
+			return null;
+		}
+		if (noCoordinateCount.longValue() > 0) {
+			counts.put(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME, Integer.valueOf(noCoordinateCount.intValue()));
+		}
+		counts.put(AnnotationCountCache.TOTAL, Integer.valueOf((int) total));
+		indexCounts = counts;
+		unalignedIndexCounts = unaligned;
+		return indexCounts;
+	}
+	
+	/**
+	 * Iterates through the file once and counts the reads that pass the filters
+	 * @return counts by reference name, including the total count
+	 */
+	private Map<String, Integer> countAnnotations() {
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		int total = 0;
+		CloseableIterator<SAMFragment> iter = sortedIterator();
+		try {
+			while (iter.hasNext()) {
+				String referenceName = iter.next().getSamRecord().getReferenceName();
+				Integer count = counts.get(referenceName);
+				counts.put(referenceName, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+				total++;
+			}
+		} finally {
+			iter.close();
+		}
+		counts.put(AnnotationCountCache.TOTAL, Integer.valueOf(total));
+		return counts;
+	}
+	
 	public void writeToFile(String fileName) {
 		CloseableIterator<SAMFragment> iter= sortedIterator();
 		writeToFile(fileName, iter);
 	}
 	
 	private void writeToFile(String fileName, CloseableIterator<SAMFragment> iter){
-		SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(this.reader.getFileHeader(), false, new File(fileName));
+		SAMFileWriter writer=makeWriter(this.reader.getFileHeader(), new File(fileName));
 		
 		while(iter.hasNext()){
 			SAMFragment ann=iter.next();
@@ -198,6 +421,121 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		}
 	}
 	
+	/**
+	 * Iterator for the batch sortedIterator. Groups consecutive nearby regions into clusters, queries the
+	 * hull of each cluster once and distributes the reads to the regions they overlap.
+	 */
+	private class BatchQueryIterator implements CloseableIterator<RegionOverlappers<SAMFragment>> {
+		
+		private Iterator<? extends Annotation> regions;
+		private boolean fullyContained;
+		private int maxGap;
+		private Annotation nextRegion;
+		private LinkedList<RegionOverlappers<SAMFragment>> results;
+		
+		public BatchQueryIterator(Iterator<? extends Annotation> regions, boolean fullyContained, int maxGap) {
+			this.regions = regions;
+			this.fullyContained = fullyContained;
+			this.maxGap = maxGap;
+			this.results = new LinkedList<RegionOverlappers<SAMFragment>>();
+			this.nextRegion = regions.hasNext() ? regions.next() : null;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (results.isEmpty()) {
+				queryNextCluster();
+			}
+			return !results.isEmpty();
+		}
+		
+		@Override
+		public RegionOverlappers<SAMFragment> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("BatchQueryIterator.next() called with no element.");
+			}
+			return results.removeFirst();
+		}
+		
+		private void queryNextCluster() {
+			if (nextRegion == null) {
+				return;
+			}
+			
+			// Collect consecutive regions on the same reference whose hulls are close together
+			List<Annotation> cluster = new ArrayList<Annotation>();
+			List<Collection<Predicate<SAMFragment>>> regionFilters = new ArrayList<Collection<Predicate<SAMFragment>>>();
+			List<RegionOverlappers<SAMFragment>> clusterResults = new ArrayList<RegionOverlappers<SAMFragment>>();
+			String referenceName = nextRegion.getReferenceName();
+			int start = nextRegion.getReferenceStartPosition();
+			int end = nextRegion.getReferenceEndPosition();
+			while (nextRegion != null && nextRegion.getReferenceName().equals(referenceName)
+					&& nextRegion.getReferenceStartPosition() <= end + maxGap
+					&& (cluster.isEmpty() || Math.max(end, nextRegion.getReferenceEndPosition()) - Math.min(start, nextRegion.getReferenceStartPosition()) <= MAX_BATCH_QUERY_LENGTH)) {
+				cluster.add(nextRegion);
+				regionFilters.add(getRegionFilters(nextRegion));
+				clusterResults.add(new RegionOverlappers<SAMFragment>(nextRegion));
+				start = Math.min(start, nextRegion.getReferenceStartPosition());
+				end = Math.max(end, nextRegion.getReferenceEndPosition());
+				nextRegion = regions.hasNext() ? regions.next() : null;
+			}
+			
+			// Read the hull once, applying the collection filters once per read
+			CloseableIterator<SAMFragment> iter = instrument(new FilteredIterator<SAMFragment>(
+					new WrappedIterator(reader.queryOverlapping(referenceName, start + 1, end)), getFilters()));
+			try {
+				while (iter.hasNext()) {
+					SAMFragment read = iter.next();
+					for (int i = 0; i < cluster.size(); i++) {
+						Annotation region = cluster.get(i);
+						if (read.getReferenceStartPosition() < region.getReferenceEndPosition()
+								&& read.getReferenceEndPosition() > region.getReferenceStartPosition()
+								&& passes(read, regionFilters.get(i))) {
+							clusterResults.get(i).addOverlapper(read);
+						}
+					}
+				}
+			} finally {
+				iter.close();
+			}
+			results.addAll(clusterResults);
+		}
+		
+		/**
+		 * The filters that sortedIterator(region, fullyContained) adds for a single region
+		 */
+		private Collection<Predicate<SAMFragment>> getRegionFilters(Annotation region) {
+			Collection<Predicate<SAMFragment>> filters = new ArrayList<Predicate<SAMFragment>>();
+			if (fullyContained) {
+				filters.add(new ContainedByFilter<SAMFragment>(region));
+			} else {
+				filters.add(new OverlapsFilter<SAMFragment>(region));
+			}
+			filters.add(new StrandFilter<SAMFragment>(region.getOrientation()));
+			return filters;
+		}
+		
+		private boolean passes(SAMFragment read, Collection<Predicate<SAMFragment>> filters) {
+			for (Predicate<SAMFragment> filter : filters) {
+				if (!filter.evaluate(read)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {
+			results.clear();
+			nextRegion = null;
+		}
+	}
+	
 	/*public BAMSingleReadCollection convert(AnnotationCollection<? extends Annotation> features, boolean fullyContained){
 		//Setup BAM File Writer
 		CoordinateSpace space=features.getFeatureCoordinateSpace();
@@ -74,14 +74,14 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 
 	@Override
 	public CloseableIterator<T> sortedIterator() {
-		return new FilteredIterator<T>(new WrappedIterator(this.annotationTree), getFilters());
+		return instrument(new FilteredIterator<T>(new WrappedIterator(this.annotationTree), getFilters()));
 	}
 
 	@Override
 	public CloseableIterator<T> sortedIterator(Annotation region, boolean fullyContained) {
 		IntervalTree<T> tree=this.annotationTree.get(region.getReferenceName());
 		Iterator<T> iter=tree.overlappingValueIterator(region.getReferenceStartPosition(), region.getReferenceEndPosition());
-		return new FilteredIterator<T>(iter, getFilters());
+		return instrument(new FilteredIterator<T>(iter, getFilters()));
 	}
 	
 	@Override
@@ -0,0 +1,190 @@
+package guttmanlab.core.annotationcollection;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Accumulates per-predicate statistics (evaluations, rejections and time spent) for the filters
+ * applied by one or more FilteredIterators. Predicates are grouped by their class name, so all
+ * iterators from a collection contribute to the same entries even though region queries create
+ * new OverlapsFilter / ContainedByFilter instances on every call.
+ *
+ * Iterators count locally and merge into this object when they are closed, so the totals
+ * reflect closed iterators only.
+ */
+public class FilterStatistics {
+
+	private Map<String, Entry> entries;
+	private long numRecords;
+	private long numPassed;
+	private static Logger logger = Logger.getLogger(FilterStatistics.class.getName());
+	private static DecimalFormat decimalFormat = new DecimalFormat("#.##");
+
+	public FilterStatistics() {
+		this.entries = new LinkedHashMap<String, Entry>();
+	}
+
+	/**
+	 * Add the counts for one predicate
+	 * @param filterName Name under which the predicate is reported
+	 * @param evaluations Number of records the predicate was evaluated on
+	 * @param rejections Number of records the predicate rejected
+	 * @param nanos Total time spent in the predicate, in nanoseconds
+	 */
+	public synchronized void add(String filterName, long evaluations, long rejections, long nanos) {
+		Entry entry = entries.get(filterName);
+		if (entry == null) {
+			entry = new Entry(filterName);
+			entries.put(filterName, entry);
+		}
+		entry.evaluations += evaluations;
+		entry.rejections += rejections;
+		entry.nanos += nanos;
+	}
+
+	/**
+	 * Add the record totals for one iterator
+	 * @param records Number of records read from the underlying iterator
+	 * @param passed Number of records that passed all filters
+	 */
+	public synchronized void addRecords(long records, long passed) {
+		numRecords += records;
+		numPassed += passed;
+	}
+
+	/**
+	 * Add all the counts of another statistics object to this one
+	 * @param other The statistics to add
+	 */
+	public void add(FilterStatistics other) {
+		for (Entry entry : other.getEntries()) {
+			add(entry.getFilterName(), entry.getEvaluations(), entry.getRejections(), entry.getNanos());
+		}
+		addRecords(other.getNumRecords(), other.getNumPassed());
+	}
+
+	/**
+	 * @param filterName Name of the predicate
+	 * @return A copy of the statistics of the predicate, or null if it has not been seen
+	 */
+	public synchronized Entry getEntry(String filterName) {
+		Entry entry = entries.get(filterName);
+		return entry == null ? null : entry.copy();
+	}
+
+	/**
+	 * @return A copy of the statistics of every predicate, in the order they were first seen
+	 */
+	public synchronized Collection<Entry> getEntries() {
+		Collection<Entry> rtrn = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			rtrn.add(entry.copy());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Number of records read from the underlying iterators
+	 */
+	public synchronized long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @return Number of records that passed all filters
+	 */
+	public synchronized long getNumPassed() {
+		return numPassed;
+	}
+
+	/**
+	 * Clear all counts
+	 */
+	public synchronized void reset() {
+		entries.clear();
+		numRecords = 0;
+		numPassed = 0;
+	}
+
+	/**
+	 * Write a summary line for every predicate to the log
+	 */
+	public void logSummary() {
+		logger.info(toString());
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Filter statistics: " + numPassed + " of " + numRecords + " records passed.");
+		for (Entry entry : entries.values()) {
+			sb.append("\n\t" + entry.toString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Statistics of a single predicate
+	 */
+	public static class Entry {
+
+		private String filterName;
+		private long evaluations;
+		private long rejections;
+		private long nanos;
+
+		Entry(String filterName) {
+			this.filterName = filterName;
+		}
+
+		private Entry copy() {
+			Entry rtrn = new Entry(filterName);
+			rtrn.evaluations = evaluations;
+			rtrn.rejections = rejections;
+			rtrn.nanos = nanos;
+			return rtrn;
+		}
+
+		public String getFilterName() {
+			return filterName;
+		}
+
+		public long getEvaluations() {
+			return evaluations;
+		}
+
+		public long getRejections() {
+			return rejections;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return Fraction of evaluated records that were rejected
+		 */
+		public double getRejectionRate() {
+			return evaluations == 0 ? 0 : (double) rejections / evaluations;
+		}
+
+		/**
+		 * @return Mean time per evaluation, in nanoseconds
+		 */
+		public double getMeanNanos() {
+			return evaluations == 0 ? 0 : (double) nanos / evaluations;
+		}
+
+		@Override
+		public String toString() {
+			return filterName + ": evaluated " + evaluations + ", rejected " + rejections
+					+ " (" + decimalFormat.format(100 * getRejectionRate()) + "%), "
+					+ decimalFormat.format(getMeanNanos()) + " ns/evaluation";
+		}
+	}
+}
@@ -6,7 +6,10 @@ import guttmanlab.core.annotation.predicate.StrandFilter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import net.sf.samtools.util.CloseableIterator;
@@ -21,8 +24,18 @@ public class FilteredIterator<T extends Annotation> implements CloseableIterator
 		T next;
 		boolean started;
 		StrandFilter<T> sf;
+		FilterStatistics statistics;
+		List<FilterCounter> counters;
+		int reorderInterval;
+		long numRecords;
+		long numPassed;
 		public static Logger logger = Logger.getLogger(FilteredIterator.class.getName());
 		
+		/**
+		 * Default number of records between reorderings of the filters in adaptive mode
+		 */
+		public static final int DEFAULT_REORDER_INTERVAL = 10000;
+		
 		public FilteredIterator(CloseableIterator<T> iter, Collection<Predicate<T>> filters) {
 			this.iter = iter;
 			this.filters = filters;
@@ -65,7 +78,60 @@ public class FilteredIterator<T extends Annotation> implements CloseableIterator
 			return rtrn;
 		}
 
+		/**
+		 * Count evaluations, rejections and time spent for every filter. The counts are added to
+		 * the statistics object and logged when this iterator is closed.
+		 * @param statistics Object to add the counts to
+		 * @param adaptive Whether to periodically reorder the filters so that those with the most
+		 * rejections per nanosecond are evaluated first
+		 */
+		public void collectStatistics(FilterStatistics statistics, boolean adaptive) {
+			collectStatistics(statistics, adaptive ? DEFAULT_REORDER_INTERVAL : 0);
+		}
+		
+		/**
+		 * Count evaluations, rejections and time spent for every filter. The counts are added to
+		 * the statistics object and logged when this iterator is closed.
+		 * @param statistics Object to add the counts to
+		 * @param reorderInterval Number of records between reorderings of the filters by rejections
+		 * per nanosecond, or 0 to keep the filters in insertion order
+		 */
+		public void collectStatistics(FilterStatistics statistics, int reorderInterval) {
+			if (started) {
+				throw new IllegalStateException("Statistics must be enabled before iteration starts");
+			}
+			if (reorderInterval < 0) {
+				throw new IllegalArgumentException("Reorder interval must be non-negative: " + reorderInterval);
+			}
+			this.statistics = statistics;
+			this.reorderInterval = reorderInterval;
+		}
+		
+		/**
+		 * @return The counts of this iterator so far, or null if statistics are not being collected
+		 */
+		public FilterStatistics getStatistics() {
+			if (statistics == null) {
+				return null;
+			}
+			FilterStatistics rtrn = new FilterStatistics();
+			addCounts(rtrn);
+			return rtrn;
+		}
+		
+		private void addCounts(FilterStatistics stats) {
+			if (counters != null) {
+				for (FilterCounter counter : counters) {
+					stats.add(counter.getName(), counter.evaluations, counter.rejections, counter.nanos);
+				}
+			}
+			stats.addRecords(numRecords, numPassed);
+		}
+		
 		private T findNext() {
+			if (statistics != null) {
+				return findNextCounted();
+			}
 			boolean passesFilters = false;
 			T fragment = null;
 			while (!passesFilters && iter.hasNext()) {
@@ -84,6 +150,39 @@ public class FilteredIterator<T extends Annotation> implements CloseableIterator
 			}
 			return fragment;
 		}
+		
+		private T findNextCounted() {
+			if (counters == null) {
+				counters = new ArrayList<FilterCounter>();
+				for (Predicate<T> filter : filters) {
+					counters.add(new FilterCounter(filter));
+				}
+			}
+			while (iter.hasNext()) {
+				T record = iter.next();
+				numRecords++;
+				if (reorderInterval > 0 && numRecords % reorderInterval == 0) {
+					Collections.sort(counters, new FilterCounterComparator());
+				}
+				boolean passesAll = true;
+				for (FilterCounter counter : counters) {
+					long start = System.nanoTime();
+					boolean passes = counter.filter.evaluate(record);
+					counter.nanos += System.nanoTime() - start;
+					counter.evaluations++;
+					if (!passes) {
+						counter.rejections++;
+						passesAll = false;
+						break;
+					}
+				}
+				if (passesAll) {
+					numPassed++;
+					return record;
+				}
+			}
+			return null;
+		}
 
 		@Override
 		public void remove() {
@@ -96,6 +195,51 @@ public class FilteredIterator<T extends Annotation> implements CloseableIterator
 				filters.remove(sf);
 			}
 			iter.close();
+			if (statistics != null) {
+				FilterStatistics counts = getStatistics();
+				logger.info(counts.toString());
+				statistics.add(counts);
+				statistics = null;
+			}
+		}
+		
+		/**
+		 * Per-iterator counts for a single filter
+		 */
+		private class FilterCounter {
+			Predicate<T> filter;
+			long evaluations;
+			long rejections;
+			long nanos;
+			
+			FilterCounter(Predicate<T> filter) {
+				this.filter = filter;
+			}
+			
+			String getName() {
+				return filter.getClass().getSimpleName();
+			}
+			
+			/**
+			 * @return Rejections per nanosecond spent. Filters that have not been evaluated yet
+			 * are ranked first so that they get measured.
+			 */
+			double getScore() {
+				if (evaluations == 0) {
+					return Double.POSITIVE_INFINITY;
+				}
+				return (double) rejections / Math.max(1, nanos);
+			}
+		}
+		
+		/**
+		 * Orders filters by decreasing rejections per nanosecond
+		 */
+		private class FilterCounterComparator implements Comparator<FilterCounter> {
+			@Override
+			public int compare(FilterCounter c1, FilterCounter c2) {
+				return Double.compare(c2.getScore(), c1.getScore());
+			}
 		}
 	
 	public class CloseableWrapper implements CloseableIterator<T> {
@@ -0,0 +1,61 @@
+package guttmanlab.core.annotationcollection;
+
+import guttmanlab.core.annotation.Annotation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A query region together with the annotations of a collection that overlap it
+ *
+ * @param <T> the type of the overlapping annotations
+ */
+public class RegionOverlappers<T extends Annotation> {
+
+	private Annotation region;
+	private List<T> overlappers;
+
+	/**
+	 * @param region the query region
+	 */
+	public RegionOverlappers(Annotation region) {
+		this.region = region;
+		this.overlappers = new ArrayList<T>();
+	}
+
+	/**
+	 * @param overlapper an annotation overlapping the region
+	 */
+	public void addOverlapper(T overlapper) {
+		overlappers.add(overlapper);
+	}
+
+	/**
+	 * @return the query region
+	 */
+	public Annotation getRegion() {
+		return region;
+	}
+
+	/**
+	 * @return the overlapping annotations in sorted order
+	 */
+	public List<T> getOverlappers() {
+		return overlappers;
+	}
+
+	/**
+	 * @return an iterator over the overlapping annotations in sorted order
+	 */
+	public Iterator<T> iterator() {
+		return overlappers.iterator();
+	}
+
+	/**
+	 * @return the number of overlapping annotations
+	 */
+	public int getNumOverlappers() {
+		return overlappers.size();
+	}
+}
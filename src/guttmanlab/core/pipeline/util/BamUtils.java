@@ -3,6 +3,8 @@ package guttmanlab.core.pipeline.util;
 import guttmanlab.core.pipeline.LSFJob;
 import guttmanlab.core.pipeline.OGSJob;
 import guttmanlab.core.pipeline.Scheduler;
+import guttmanlab.core.util.BlockCompressedReadAheadInputStream;
+import guttmanlab.core.util.ReadAheadBAMRecordIterator;
 
 import java.io.File;
 import java.io.IOException;
@@ -88,6 +90,18 @@ public class BamUtils {
 	 * @return The names of the smaller files
 	 */
 	public static Collection<String> splitBam(String inputBam, int numFilesToWrite, boolean getNamesOnly) {
+		return splitBam(inputBam, numFilesToWrite, getNamesOnly, 0);
+	}
+	
+	/**
+	 * Split a bam file into several smaller bam files
+	 * @param inputBam Bam file to split
+	 * @param numFilesToWrite Number of smaller files to write
+	 * @param getNamesOnly Only get split file names, do not actually write files
+	 * @param numInflaterThreads Number of threads to inflate the input file with, or 0 to inflate on the calling thread
+	 * @return The names of the smaller files
+	 */
+	public static Collection<String> splitBam(String inputBam, int numFilesToWrite, boolean getNamesOnly, int numInflaterThreads) {
 		
 
 		if(numFilesToWrite < 1) {
@@ -120,7 +134,9 @@ public class BamUtils {
 		
 		int numDone = 0;
 		
-		SAMRecordIterator iter = reader.iterator();
+		SAMRecordIterator iter = numInflaterThreads > 0
+				? new ReadAheadBAMRecordIterator(new File(inputBam), header, numInflaterThreads, numInflaterThreads * BlockCompressedReadAheadInputStream.DEFAULT_BLOCKS_PER_THREAD)
+				: reader.iterator();
 		while(iter.hasNext()) {
 			SAMFileWriter writer = writers.get(numDone % writers.size());
 			SAMRecord record = iter.next();
@@ -131,6 +147,7 @@ public class BamUtils {
 			}
 		}
 		
+		iter.close();
 		reader.close();
 		
 		for(SAMFileWriter writer : writers) {
@@ -13,6 +13,7 @@ public class FastqParser implements Iterator<FastqSequence>{
 	BufferedReader reader;
 	private int numberOfSeq;
 	String nextLine = null;
+	private ParallelFastqIterator parallelIterator;
 	
 	/**
 	 * @deprecated This constructure is highly discouraged as it opens a reader. Use the empty constructor instead and set the 
@@ -33,11 +34,26 @@ public class FastqParser implements Iterator<FastqSequence>{
 	
 	public void start(File fastqParser) throws IOException {
 		this.fastqFile = fastqParser;
+		parallelIterator = null;
 		reader=new BufferedReader(new InputStreamReader(new FileInputStream(fastqFile)));
 		nextLine = reader.readLine();
 	}
 	
+	/**
+	 * Start iterating through a fastq file that is decompressed and parsed on several threads
+	 * The file can be plain text, gzip or BGZF compressed. Only hasNext(), next() and close() can be
+	 * used in this mode.
+	 * @param fastqFile Fastq file
+	 * @param numThreads Number of threads
+	 * @throws IOException
+	 */
+	public void start(File fastqFile, int numThreads) throws IOException {
+		this.fastqFile = fastqFile;
+		parallelIterator = new ParallelFastqIterator(fastqFile, numThreads);
+	}
+	
 	public void start (BufferedReader br) throws IOException {
+		parallelIterator = null;
 		reader=br;
 		nextLine = reader.readLine();
 	}
@@ -176,10 +192,16 @@ public class FastqParser implements Iterator<FastqSequence>{
 	}
 
 	public boolean hasNext() {
+		if(parallelIterator != null) {
+			return parallelIterator.hasNext();
+		}
 		return nextLine != null;
 	}
 
 	public FastqSequence next() {
+		if(parallelIterator != null) {
+			return parallelIterator.next();
+		}
 		FastqSequence seq = null;
 		try{
 
@@ -201,6 +223,10 @@ public class FastqParser implements Iterator<FastqSequence>{
 	}
 
 	public void close() throws IOException{
+		if(parallelIterator != null) {
+			parallelIterator.close();
+			return;
+		}
 		reader.close();
 	}
 
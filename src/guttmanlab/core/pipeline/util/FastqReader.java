@@ -0,0 +1,206 @@
+package guttmanlab.core.pipeline.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads fastq records from a byte buffer without creating Strings
+ * Records are parsed in place in a large buffer and handed out as FastqRecord views of the buffer, which
+ * the caller can reuse from one record to the next. Gzip input, including BGZF, is detected from the
+ * magic bytes. Windows line endings are accepted.
+ * @author prussell
+ *
+ */
+public class FastqReader {
+
+	private InputStream in;
+	private byte[] buffer;
+	private int start; // First unparsed byte
+	private int limit; // End of the data in the buffer
+	private boolean endOfInput;
+	private long numRecords;
+	private int[] lineStarts = new int[4];
+	private int[] lineEnds = new int[4]; // Line ends without line terminators
+
+	/**
+	 * Default buffer size in bytes
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+
+	/**
+	 * @param file Fastq file, optionally gzip compressed
+	 * @throws IOException
+	 */
+	public FastqReader(File file) throws IOException {
+		this(openFile(file), DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param in Uncompressed fastq input
+	 * @param bufferSize Initial buffer size in bytes. The buffer grows if a record does not fit.
+	 */
+	public FastqReader(InputStream in, int bufferSize) {
+		if(bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be at least 1: " + bufferSize);
+		}
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Read records from uncompressed fastq data already in memory, without copying it
+	 * @param data Fastq data
+	 * @param length Length of the data in the array
+	 */
+	FastqReader(byte[] data, int length) {
+		this.buffer = data;
+		this.limit = length;
+		this.endOfInput = true;
+	}
+
+	/**
+	 * @param file A file
+	 * @return Whether the file starts with the gzip magic bytes
+	 * @throws IOException
+	 */
+	public static boolean isGzipped(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param file Fastq file
+	 * @return Uncompressed contents of the file
+	 * @throws IOException
+	 */
+	private static InputStream openFile(File file) throws IOException {
+		if(isGzipped(file)) {
+			// GZIPInputStream reads all members, so BGZF files are read to the end
+			return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16);
+		}
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * @param from Position to search from
+	 * @return Position of the next newline, or -1 if there is none before the end of the data
+	 */
+	private int findNewline(int from) {
+		for(int i = from; i < limit; i++) {
+			if(buffer[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param lineEnd Position of a newline or the end of the data
+	 * @param lineStart Start of the line
+	 * @return End of the line without a carriage return
+	 */
+	private int trimCarriageReturn(int lineStart, int lineEnd) {
+		return lineEnd > lineStart && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+	}
+
+	/**
+	 * Move unparsed bytes to the start of the buffer and read more input
+	 * @throws IOException
+	 */
+	private void refill() throws IOException {
+		if(start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, limit - start);
+			limit -= start;
+			start = 0;
+		}
+		if(limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+		}
+		int n = in.read(buffer, limit, buffer.length - limit);
+		if(n < 0) {
+			endOfInput = true;
+		} else {
+			limit += n;
+		}
+	}
+
+	/**
+	 * Read the next record into a view
+	 * The view refers to the reader's buffer until the next call
+	 * @param record View to fill
+	 * @return False iff there are no more records
+	 * @throws IOException
+	 */
+	public boolean next(FastqRecord record) throws IOException {
+		while(true) {
+			// Skip blank lines between records
+			while(start < limit && (buffer[start] == '\n' || buffer[start] == '\r')) {
+				start++;
+			}
+			int pos = start;
+			int line = 0;
+			while(line < 4 && pos <= limit) {
+				int newline = findNewline(pos);
+				if(newline < 0) {
+					if(!endOfInput || line < 3 || pos == limit) {
+						break;
+					}
+					// Last line of the file without a newline
+					newline = limit;
+				}
+				lineStarts[line] = pos;
+				lineEnds[line] = trimCarriageReturn(pos, newline);
+				pos = newline + 1;
+				line++;
+			}
+			if(line == 4) {
+				fill(record);
+				start = Math.min(pos, limit);
+				numRecords++;
+				return true;
+			}
+			if(endOfInput) {
+				if(start < limit) {
+					throw new IllegalArgumentException("Incomplete fastq record after record " + numRecords);
+				}
+				return false;
+			}
+			refill();
+		}
+	}
+
+	private void fill(FastqRecord record) {
+		if(buffer[lineStarts[0]] != '@' || lineEnds[2] <= lineStarts[2] || buffer[lineStarts[2]] != '+') {
+			throw new IllegalArgumentException("Invalid fastq record after record " + numRecords);
+		}
+		int sequenceLength = lineEnds[1] - lineStarts[1];
+		if(lineEnds[3] - lineStarts[3] != sequenceLength) {
+			throw new IllegalArgumentException("Sequence and quality lengths differ in fastq record " + (numRecords + 1));
+		}
+		record.set(buffer, lineStarts[0] + 1, lineEnds[0] - lineStarts[0] - 1, lineStarts[1], sequenceLength,
+				lineStarts[2] + 1, lineEnds[2] - lineStarts[2] - 1, lineStarts[3]);
+	}
+
+	/**
+	 * @return The number of records read
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	public void close() throws IOException {
+		if(in != null) {
+			in.close();
+		}
+	}
+
+}
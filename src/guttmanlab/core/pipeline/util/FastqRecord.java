@@ -0,0 +1,211 @@
+package guttmanlab.core.pipeline.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A fastq record as offsets into a byte array
+ * Records filled by FastqReader point into the reader's buffer and are only valid until the next call
+ * to FastqReader.next(). Use copy() to keep a record, or toFastqSequence() to get a FastqSequence.
+ * @author prussell
+ *
+ */
+public class FastqRecord {
+
+	private byte[] buffer;
+	private int nameOffset; // First byte after the @
+	private int nameLength;
+	private int sequenceOffset;
+	private int sequenceLength; // Also the length of the quality string
+	private int commentOffset; // First byte after the +
+	private int commentLength;
+	private int qualityOffset;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Set the offsets of the record
+	 */
+	void set(byte[] buffer, int nameOffset, int nameLength, int sequenceOffset, int sequenceLength, int commentOffset, int commentLength, int qualityOffset) {
+		this.buffer = buffer;
+		this.nameOffset = nameOffset;
+		this.nameLength = nameLength;
+		this.sequenceOffset = sequenceOffset;
+		this.sequenceLength = sequenceLength;
+		this.commentOffset = commentOffset;
+		this.commentLength = commentLength;
+		this.qualityOffset = qualityOffset;
+	}
+
+	/**
+	 * @return The byte array holding the record
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return Offset of the name in the buffer, after the @
+	 */
+	public int getNameOffset() {
+		return nameOffset;
+	}
+
+	/**
+	 * @return Length of the name line without the @
+	 */
+	public int getNameLength() {
+		return nameLength;
+	}
+
+	/**
+	 * @return Offset of the bases in the buffer
+	 */
+	public int getSequenceOffset() {
+		return sequenceOffset;
+	}
+
+	/**
+	 * @return Number of bases
+	 */
+	public int getSequenceLength() {
+		return sequenceLength;
+	}
+
+	/**
+	 * @return Offset of the text after the + in the buffer
+	 */
+	public int getCommentOffset() {
+		return commentOffset;
+	}
+
+	/**
+	 * @return Length of the text after the +
+	 */
+	public int getCommentLength() {
+		return commentLength;
+	}
+
+	/**
+	 * @return Offset of the quality string in the buffer
+	 */
+	public int getQualityOffset() {
+		return qualityOffset;
+	}
+
+	/**
+	 * Narrow the record to a range of its bases and qualities
+	 * @param start First position to keep
+	 * @param end Position after the last position to keep
+	 */
+	public void trim(int start, int end) {
+		if(start < 0 || end > sequenceLength || start > end) {
+			throw new IndexOutOfBoundsException("Invalid range " + start + "-" + end + " of read of length " + sequenceLength);
+		}
+		sequenceOffset += start;
+		qualityOffset += start;
+		sequenceLength = end - start;
+	}
+
+	/**
+	 * @param i Position in the read
+	 * @return The base at the position
+	 */
+	public byte getBase(int i) {
+		return buffer[sequenceOffset + i];
+	}
+
+	/**
+	 * @param i Position in the read
+	 * @return The quality character at the position
+	 */
+	public byte getQuality(int i) {
+		return buffer[qualityOffset + i];
+	}
+
+	/**
+	 * @return The name line without the @
+	 */
+	public String getName() {
+		return new String(buffer, nameOffset, nameLength, ASCII);
+	}
+
+	/**
+	 * @return The bases
+	 */
+	public String getSequence() {
+		return new String(buffer, sequenceOffset, sequenceLength, ASCII);
+	}
+
+	/**
+	 * @return The quality string
+	 */
+	public String getQualityString() {
+		return new String(buffer, qualityOffset, sequenceLength, ASCII);
+	}
+
+	/**
+	 * @param other Another record
+	 * @return Whether the name lines of the records are identical
+	 */
+	public boolean nameEquals(FastqRecord other) {
+		if(nameLength != other.nameLength) {
+			return false;
+		}
+		for(int i = 0; i < nameLength; i++) {
+			if(buffer[nameOffset + i] != other.buffer[other.nameOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return A FastqSequence with the same contents as the record
+	 */
+	public FastqSequence toFastqSequence() {
+		return new FastqSequence(getName(), getSequence(), "+" + new String(buffer, commentOffset, commentLength, ASCII), getQualityString());
+	}
+
+	/**
+	 * @return A copy of the record that does not share the buffer
+	 */
+	public FastqRecord copy() {
+		byte[] data = new byte[nameLength + commentLength + 2 * sequenceLength];
+		int pos = 0;
+		System.arraycopy(buffer, nameOffset, data, pos, nameLength);
+		pos += nameLength;
+		System.arraycopy(buffer, sequenceOffset, data, pos, sequenceLength);
+		pos += sequenceLength;
+		System.arraycopy(buffer, commentOffset, data, pos, commentLength);
+		pos += commentLength;
+		System.arraycopy(buffer, qualityOffset, data, pos, sequenceLength);
+		FastqRecord rtrn = new FastqRecord();
+		rtrn.set(data, 0, nameLength, nameLength, sequenceLength, nameLength + sequenceLength, commentLength, nameLength + sequenceLength + commentLength);
+		return rtrn;
+	}
+
+	/**
+	 * Write the record in fastq format
+	 * @param out Output stream
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		out.write('@');
+		out.write(buffer, nameOffset, nameLength);
+		out.write('\n');
+		out.write(buffer, sequenceOffset, sequenceLength);
+		out.write('\n');
+		out.write('+');
+		out.write(buffer, commentOffset, commentLength);
+		out.write('\n');
+		out.write(buffer, qualityOffset, sequenceLength);
+		out.write('\n');
+	}
+
+	@Override
+	public String toString() {
+		return "@" + getName() + "\n" + getSequence() + "\n+" + new String(buffer, commentOffset, commentLength, ASCII) + "\n" + getQualityString();
+	}
+
+}
@@ -114,7 +114,7 @@ public class FastqSequence {
 		return sequence.substring(0, n);
 	}
 	
-	public int getLength(){return sequence.toCharArray().length;}
+	public int getLength(){return sequence.length();}
 
 	public String toFasta() {
 		String rtrn="";
@@ -0,0 +1,675 @@
+package guttmanlab.core.pipeline.util;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Trims adapters, poly-A/T tails and low quality ends from single or paired fastq files
+ *
+ * Reads are trimmed in place as FastqRecord views over byte arrays, so no String is created per read.
+ * Batches of reads (or of mate pairs read in lockstep) are trimmed on a pool of worker threads and
+ * written in input order; batches are recycled, so memory use is bounded by the queue depth.
+ *
+ * For each read, in order:
+ * 1. The 3' end is quality trimmed with the BWA algorithm if a quality cutoff is set
+ * 2. The 3' adapter is found with the shift-and algorithm, allowing mismatches, and removed with
+ * everything after it. An adapter prefix at the end of the read is also removed if at least
+ * minAdapterOverlap bases overlap, with mismatches allowed in proportion to the overlap.
+ * 3. A run of A or T at either end is removed if it is at least minPolyALength bases long
+ * Reads (or pairs) shorter than minLength after trimming are discarded.
+ * @author prussell
+ *
+ */
+public class FastqTrimmer {
+
+	private byte[] adapter1;
+	private byte[] adapter2;
+	private int maxMismatches = DEFAULT_MAX_MISMATCHES;
+	private int minAdapterOverlap = DEFAULT_MIN_ADAPTER_OVERLAP;
+	private int qualityCutoff = 0;
+	private int minPolyALength = 0;
+	private int minLength = DEFAULT_MIN_LENGTH;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private static Logger logger = Logger.getLogger(FastqTrimmer.class.getName());
+
+	/**
+	 * Default maximum number of mismatches in a full length adapter match
+	 */
+	public static final int DEFAULT_MAX_MISMATCHES = 2;
+
+	/**
+	 * Default minimum overlap of an adapter prefix with the end of a read
+	 */
+	public static final int DEFAULT_MIN_ADAPTER_OVERLAP = 3;
+
+	/**
+	 * Default minimum read length after trimming
+	 */
+	public static final int DEFAULT_MIN_LENGTH = 20;
+
+	/**
+	 * Default number of reads or pairs per batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1 << 14;
+
+	/**
+	 * Maximum adapter length used for matching; longer adapters are matched on their first bases
+	 */
+	public static final int MAX_ADAPTER_LENGTH = 64;
+
+	private static final int PHRED_OFFSET = 33;
+
+	/**
+	 * @param adapter1 3' adapter of read 1, or null to skip adapter trimming of read 1
+	 * @param adapter2 3' adapter of read 2, or null to skip adapter trimming of read 2
+	 */
+	public FastqTrimmer(String adapter1, String adapter2) {
+		this.adapter1 = toAdapter(adapter1);
+		this.adapter2 = toAdapter(adapter2);
+	}
+
+	private static byte[] toAdapter(String adapter) {
+		if(adapter == null || adapter.isEmpty()) {
+			return null;
+		}
+		if(adapter.length() > MAX_ADAPTER_LENGTH) {
+			logger.warn("Matching the first " + MAX_ADAPTER_LENGTH + " bases of adapter " + adapter);
+			adapter = adapter.substring(0, MAX_ADAPTER_LENGTH);
+		}
+		return adapter.toUpperCase().getBytes();
+	}
+
+	/**
+	 * @param maxMismatches Maximum number of mismatches in a full length adapter match
+	 */
+	public void setMaxMismatches(int maxMismatches) {
+		if(maxMismatches < 0) {
+			throw new IllegalArgumentException("Maximum mismatches must be non-negative: " + maxMismatches);
+		}
+		this.maxMismatches = maxMismatches;
+	}
+
+	/**
+	 * @param minAdapterOverlap Minimum overlap of an adapter prefix with the end of a read
+	 */
+	public void setMinAdapterOverlap(int minAdapterOverlap) {
+		if(minAdapterOverlap < 1) {
+			throw new IllegalArgumentException("Minimum adapter overlap must be at least 1: " + minAdapterOverlap);
+		}
+		this.minAdapterOverlap = minAdapterOverlap;
+	}
+
+	/**
+	 * @param qualityCutoff Phred quality cutoff for 3' quality trimming, or 0 for no quality trimming
+	 */
+	public void setQualityCutoff(int qualityCutoff) {
+		this.qualityCutoff = qualityCutoff;
+	}
+
+	/**
+	 * @param minPolyALength Minimum length of a poly-A/T run to trim, or 0 for no poly-A/T trimming
+	 */
+	public void setMinPolyALength(int minPolyALength) {
+		this.minPolyALength = minPolyALength;
+	}
+
+	/**
+	 * @param minLength Minimum read length after trimming
+	 */
+	public void setMinLength(int minLength) {
+		this.minLength = minLength;
+	}
+
+	/**
+	 * @param batchSize Number of reads or pairs trimmed as one batch
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Trim a single end fastq file
+	 * @param inFastq Input fastq, optionally gzipped
+	 * @param outFastq Output fastq
+	 * @param numThreads Number of trimming threads
+	 * @throws IOException
+	 */
+	public void trim(String inFastq, String outFastq, int numThreads) throws IOException {
+		trim(inFastq, null, outFastq, null, numThreads);
+	}
+
+	/**
+	 * Trim paired fastq files, keeping a pair only if both mates are long enough after trimming
+	 * Mates must be listed in the same order in both files.
+	 * @param inFastq1 Input fastq 1, optionally gzipped
+	 * @param inFastq2 Input fastq 2, optionally gzipped, or null for single end reads
+	 * @param outFastq1 Output fastq 1
+	 * @param outFastq2 Output fastq 2, or null for single end reads
+	 * @param numThreads Number of trimming threads
+	 * @throws IOException
+	 */
+	public void trim(String inFastq1, String inFastq2, String outFastq1, String outFastq2, int numThreads) throws IOException {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if((inFastq2 == null) != (outFastq2 == null)) {
+			throw new IllegalArgumentException("Provide both or neither of input and output fastq 2");
+		}
+		boolean paired = inFastq2 != null;
+		logger.info("Trimming " + inFastq1 + (paired ? " and " + inFastq2 : "") + " on " + numThreads + " threads");
+		FastqReader reader1 = new FastqReader(new File(inFastq1));
+		FastqReader reader2 = paired ? new FastqReader(new File(inFastq2)) : null;
+		final OutputStream out1 = new BufferedOutputStream(new FileOutputStream(outFastq1), 1 << 16);
+		final OutputStream out2 = paired ? new BufferedOutputStream(new FileOutputStream(outFastq2), 1 << 16) : null;
+		ExecutorService trimmers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fastq-trimmer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		int queueDepth = 2 * numThreads;
+		final BlockingQueue<Future<Batch>> queue = new ArrayBlockingQueue<Future<Batch>>(queueDepth);
+		// Batches in the queue, plus one being written and one being filled
+		final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(queueDepth + 2);
+		for(int i = 0; i < queueDepth + 2; i++) {
+			free.add(new Batch(batchSize, paired));
+		}
+		final Stats stats = new Stats();
+		// First error on the writer thread; once set, the reading thread stops
+		final AtomicReference<Throwable> writerError = new AtomicReference<Throwable>();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(queue, free, out1, out2, stats, writerError);
+				} catch(InterruptedException e) {
+					// Stopped after an error on the reading thread
+				} catch(Throwable e) {
+					writerError.compareAndSet(null, e);
+				}
+			}
+		}, "fastq-trimmer-writer");
+		writer.setDaemon(true);
+		writer.start();
+		try {
+			while(writerError.get() == null) {
+				final Batch batch = free.take();
+				if(!batch.fill(reader1, reader2)) {
+					break;
+				}
+				queue.put(trimmers.submit(new Callable<Batch>() {
+					@Override
+					public Batch call() {
+						try {
+							trimBatch(batch);
+						} catch(Throwable e) {
+							// Returned with the batch so the batch is recycled
+							batch.error = e;
+						}
+						return batch;
+					}
+				}));
+			}
+			queue.put(finished());
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while trimming " + inFastq1, e);
+		} finally {
+			writer.interrupt();
+			trimmers.shutdownNow();
+			reader1.close();
+			if(reader2 != null) {
+				reader2.close();
+			}
+			out1.close();
+			if(out2 != null) {
+				out2.close();
+			}
+		}
+		Throwable e = writerError.get();
+		if(e != null) {
+			if(e instanceof IOException) {
+				throw (IOException) e;
+			}
+			if(e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new IOException("Error trimming " + inFastq1, e);
+		}
+		logger.info("Read " + stats.reads + (paired ? " pairs" : " reads") + ". Trimmed adapter from " + stats.adapterTrimmed + " reads, poly-A/T from "
+				+ stats.polyATrimmed + " reads and low quality bases from " + stats.qualityTrimmed + " reads. Discarded " + stats.discarded + (paired ? " pairs" : " reads")
+				+ " shorter than " + minLength + ".");
+	}
+
+	/**
+	 * Write trimmed batches in order and recycle them until the end of input marker
+	 * After an error, batches are recycled without being written so the reading thread is not blocked.
+	 * @param queue Queue of trimmed batches
+	 * @param free Queue of batches to fill
+	 * @param out1 Output fastq 1
+	 * @param out2 Output fastq 2, or null
+	 * @param stats Counts to add the batch counts to
+	 * @param error Holder for the first error
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private static void write(BlockingQueue<Future<Batch>> queue, BlockingQueue<Batch> free, OutputStream out1, OutputStream out2, Stats stats, AtomicReference<Throwable> error)
+			throws InterruptedException, ExecutionException {
+		while(true) {
+			Batch batch = queue.take().get();
+			if(batch == null) {
+				return;
+			}
+			if(batch.error != null) {
+				error.compareAndSet(null, batch.error);
+			}
+			if(error.get() == null) {
+				try {
+					batch.output1.writeTo(out1);
+					if(out2 != null) {
+						batch.output2.writeTo(out2);
+					}
+					stats.add(batch.stats);
+				} catch(IOException e) {
+					error.compareAndSet(null, e);
+				}
+			}
+			free.put(batch);
+		}
+	}
+
+	/**
+	 * @return A completed future with a null value, marking the end of input
+	 */
+	private static Future<Batch> finished() {
+		FutureTask<Batch> rtrn = new FutureTask<Batch>(new Callable<Batch>() {
+			@Override
+			public Batch call() {
+				return null;
+			}
+		});
+		rtrn.run();
+		return rtrn;
+	}
+
+	/**
+	 * Trim the reads of a batch and write the kept reads to the batch output buffers
+	 * @param batch The batch
+	 * @throws IOException
+	 */
+	private void trimBatch(Batch batch) throws IOException {
+		batch.output1.reset();
+		batch.output2.reset();
+		batch.stats.clear();
+		for(int i = 0; i < batch.numRecords; i++) {
+			FastqRecord record1 = batch.records1[i];
+			trimRead(record1, batch.matcher1, batch.stats);
+			boolean keep = record1.getSequenceLength() >= minLength;
+			if(batch.records2 != null) {
+				FastqRecord record2 = batch.records2[i];
+				trimRead(record2, batch.matcher2, batch.stats);
+				keep &= record2.getSequenceLength() >= minLength;
+				if(keep) {
+					record2.write(batch.output2);
+				}
+			}
+			if(keep) {
+				record1.write(batch.output1);
+			} else {
+				batch.stats.discarded++;
+			}
+			batch.stats.reads++;
+		}
+	}
+
+	/**
+	 * Trim a read in place
+	 * @param record The read
+	 * @param matcher Adapter matcher for the read, or null
+	 * @param stats Counts to update
+	 */
+	void trimRead(FastqRecord record, AdapterMatcher matcher, Stats stats) {
+		if(qualityCutoff > 0) {
+			int end = qualityTrimEnd(record, qualityCutoff);
+			if(end < record.getSequenceLength()) {
+				record.trim(0, end);
+				stats.qualityTrimmed++;
+			}
+		}
+		if(matcher != null) {
+			int start = matcher.find(record.getBuffer(), record.getSequenceOffset(), record.getSequenceLength());
+			if(start < record.getSequenceLength()) {
+				record.trim(0, start);
+				stats.adapterTrimmed++;
+			}
+		}
+		if(minPolyALength > 0) {
+			int length = record.getSequenceLength();
+			int head = Math.max(runLength(record, 0, 1, 'A'), runLength(record, 0, 1, 'T'));
+			int tail = Math.max(runLength(record, length - 1, -1, 'A'), runLength(record, length - 1, -1, 'T'));
+			int start = head >= minPolyALength ? head : 0;
+			int end = tail >= minPolyALength ? length - tail : length;
+			if(start > 0 || end < length) {
+				record.trim(start, Math.max(start, end));
+				stats.polyATrimmed++;
+			}
+		}
+	}
+
+	/**
+	 * @param record A read
+	 * @param from First position
+	 * @param step 1 to count forward or -1 to count backward
+	 * @param base Upper case base
+	 * @return Number of consecutive copies of the base starting at the position
+	 */
+	private static int runLength(FastqRecord record, int from, int step, char base) {
+		byte[] buffer = record.getBuffer();
+		int offset = record.getSequenceOffset();
+		int length = record.getSequenceLength();
+		int rtrn = 0;
+		for(int i = from; i >= 0 && i < length; i += step) {
+			if((buffer[offset + i] & 0xDF) != base) {
+				break;
+			}
+			rtrn++;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Find the 3' quality trimming position with the BWA algorithm
+	 * Bases are removed from the 3' end to the position that maximizes the sum of (cutoff - quality).
+	 * @param record A read
+	 * @param cutoff Phred quality cutoff
+	 * @return Length of the read after trimming
+	 */
+	static int qualityTrimEnd(FastqRecord record, int cutoff) {
+		byte[] buffer = record.getBuffer();
+		int offset = record.getQualityOffset();
+		int length = record.getSequenceLength();
+		int sum = 0;
+		int maxSum = 0;
+		int rtrn = length;
+		for(int i = length - 1; i >= 0; i--) {
+			sum += cutoff - (buffer[offset + i] - PHRED_OFFSET);
+			if(sum < 0) {
+				break;
+			}
+			if(sum > maxSum) {
+				maxSum = sum;
+				rtrn = i;
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Finds a 3' adapter in reads with the shift-and algorithm for matching with mismatches
+	 * Bit i of state j is set when the first i + 1 bases of the adapter match the read ending at the
+	 * current position with at most j mismatches. Each base of the read updates all states with a few
+	 * word operations regardless of the adapter length.
+	 * An instance holds its own state and must be used by one thread at a time.
+	 */
+	static class AdapterMatcher {
+
+		private int length;
+		private int maxMismatches;
+		private int minOverlap;
+		private long[] masks;
+		private long[] states;
+
+		/**
+		 * @param adapter Upper case adapter of at most 64 bases; N matches any base
+		 * @param maxMismatches Maximum number of mismatches in a full length match
+		 * @param minOverlap Minimum overlap of an adapter prefix with the end of a read
+		 */
+		AdapterMatcher(byte[] adapter, int maxMismatches, int minOverlap) {
+			this.length = adapter.length;
+			this.maxMismatches = maxMismatches;
+			this.minOverlap = minOverlap;
+			this.masks = new long[256];
+			for(int i = 0; i < length; i++) {
+				long bit = 1L << i;
+				if(adapter[i] == 'N') {
+					for(byte b : "ACGTacgt".getBytes()) {
+						masks[b] |= bit;
+					}
+				} else {
+					masks[adapter[i]] |= bit;
+					masks[Character.toLowerCase((char) adapter[i])] |= bit;
+				}
+			}
+			this.states = new long[maxMismatches + 1];
+		}
+
+		/**
+		 * @param buffer Array holding the read
+		 * @param offset Offset of the read in the array
+		 * @param readLength Length of the read
+		 * @return The start of the leftmost adapter match, or the read length if there is none
+		 */
+		int find(byte[] buffer, int offset, int readLength) {
+			Arrays.fill(states, 0);
+			long last = 1L << (length - 1);
+			for(int i = 0; i < readLength; i++) {
+				long mask = masks[buffer[offset + i] & 0xFF];
+				long previous = states[0];
+				states[0] = ((previous << 1) | 1) & mask;
+				for(int j = 1; j <= maxMismatches; j++) {
+					long current = states[j];
+					// A match of the base extends an alignment with j mismatches; a mismatch extends one with j - 1
+					states[j] = (((current << 1) | 1) & mask) | ((previous << 1) | 1);
+					previous = current;
+				}
+				// Each state includes the states with fewer mismatches
+				if((states[maxMismatches] & last) != 0) {
+					return i - length + 1;
+				}
+			}
+			// Adapter prefixes overlapping the end of the read, longest first
+			for(int overlap = Math.min(length - 1, readLength); overlap >= minOverlap; overlap--) {
+				int allowed = overlap * maxMismatches / length;
+				if((states[allowed] & (1L << (overlap - 1))) != 0) {
+					return readLength - overlap;
+				}
+			}
+			return readLength;
+		}
+
+	}
+
+	/**
+	 * Counts of trimmed and discarded reads
+	 */
+	static class Stats {
+
+		long reads;
+		long adapterTrimmed;
+		long polyATrimmed;
+		long qualityTrimmed;
+		long discarded;
+
+		void add(Stats other) {
+			reads += other.reads;
+			adapterTrimmed += other.adapterTrimmed;
+			polyATrimmed += other.polyATrimmed;
+			qualityTrimmed += other.qualityTrimmed;
+			discarded += other.discarded;
+		}
+
+		void clear() {
+			reads = 0;
+			adapterTrimmed = 0;
+			polyATrimmed = 0;
+			qualityTrimmed = 0;
+			discarded = 0;
+		}
+
+	}
+
+	/**
+	 * Reads or mate pairs copied out of the readers, trimmed together on one thread
+	 */
+	private class Batch {
+
+		private byte[] data;
+		private int size;
+		private FastqRecord[] records1;
+		private FastqRecord[] records2;
+		private int numRecords;
+		private AdapterMatcher matcher1;
+		private AdapterMatcher matcher2;
+		private ByteArrayOutputStream output1; // Reset and reused for each batch
+		private ByteArrayOutputStream output2;
+		private Stats stats;
+		private Throwable error;
+
+		Batch(int batchSize, boolean paired) {
+			data = new byte[1 << 16];
+			records1 = newRecords(batchSize);
+			records2 = paired ? newRecords(batchSize) : null;
+			matcher1 = adapter1 == null ? null : new AdapterMatcher(adapter1, maxMismatches, minAdapterOverlap);
+			matcher2 = adapter2 == null ? null : new AdapterMatcher(adapter2, maxMismatches, minAdapterOverlap);
+			output1 = new ByteArrayOutputStream(1 << 16);
+			output2 = new ByteArrayOutputStream(1 << 16);
+			stats = new Stats();
+		}
+
+		private FastqRecord[] newRecords(int n) {
+			FastqRecord[] rtrn = new FastqRecord[n];
+			for(int i = 0; i < n; i++) {
+				rtrn[i] = new FastqRecord();
+			}
+			return rtrn;
+		}
+
+		/**
+		 * Copy the next reads or pairs from the readers
+		 * @param reader1 Reader of fastq 1
+		 * @param reader2 Reader of fastq 2, or null
+		 * @return False if there are no more reads
+		 * @throws IOException
+		 */
+		boolean fill(FastqReader reader1, FastqReader reader2) throws IOException {
+			size = 0;
+			numRecords = 0;
+			while(numRecords < records1.length && reader1.next(records1[numRecords])) {
+				append(records1[numRecords]);
+				if(reader2 != null) {
+					if(!reader2.next(records2[numRecords])) {
+						throw new IllegalArgumentException("Fastq 2 has fewer reads than fastq 1: " + reader1.getNumRecords());
+					}
+					append(records2[numRecords]);
+				}
+				numRecords++;
+			}
+			if(numRecords == 0 && reader2 != null) {
+				if(reader2.next(records2[0])) {
+					throw new IllegalArgumentException("Fastq 2 has more reads than fastq 1: " + reader1.getNumRecords());
+				}
+			}
+			// The data array may have grown, so point all records at the final array
+			for(int i = 0; i < numRecords; i++) {
+				rebase(records1[i]);
+				if(reader2 != null) {
+					rebase(records2[i]);
+				}
+			}
+			return numRecords > 0;
+		}
+
+		/**
+		 * Copy a record that points into a reader buffer to the end of the data array and point the record at the copy
+		 */
+		private void append(FastqRecord record) {
+			int nameLength = record.getNameLength();
+			int sequenceLength = record.getSequenceLength();
+			int commentLength = record.getCommentLength();
+			int needed = size + nameLength + commentLength + 2 * sequenceLength;
+			if(needed > data.length) {
+				data = Arrays.copyOf(data, Math.max(needed, 2 * data.length));
+			}
+			byte[] buffer = record.getBuffer();
+			int nameOffset = size;
+			System.arraycopy(buffer, record.getNameOffset(), data, size, nameLength);
+			size += nameLength;
+			int sequenceOffset = size;
+			System.arraycopy(buffer, record.getSequenceOffset(), data, size, sequenceLength);
+			size += sequenceLength;
+			int commentOffset = size;
+			System.arraycopy(buffer, record.getCommentOffset(), data, size, commentLength);
+			size += commentLength;
+			int qualityOffset = size;
+			System.arraycopy(buffer, record.getQualityOffset(), data, size, sequenceLength);
+			size += sequenceLength;
+			record.set(null, nameOffset, nameLength, sequenceOffset, sequenceLength, commentOffset, commentLength, qualityOffset);
+		}
+
+		private void rebase(FastqRecord record) {
+			record.set(data, record.getNameOffset(), record.getNameLength(), record.getSequenceOffset(), record.getSequenceLength(),
+					record.getCommentOffset(), record.getCommentLength(), record.getQualityOffset());
+		}
+
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-i1", "Input fastq 1", true);
+		p.addStringArg("-i2", "Input fastq 2 for paired reads", false, null);
+		p.addStringArg("-o1", "Output fastq 1", true);
+		p.addStringArg("-o2", "Output fastq 2 for paired reads", false, null);
+		p.addStringArg("-a1", "3' adapter of read 1", false, null);
+		p.addStringArg("-a2", "3' adapter of read 2", false, null);
+		p.addIntArg("-m", "Maximum mismatches in a full length adapter match", false, DEFAULT_MAX_MISMATCHES);
+		p.addIntArg("-ov", "Minimum overlap of an adapter prefix with the end of a read", false, DEFAULT_MIN_ADAPTER_OVERLAP);
+		p.addIntArg("-q", "Phred quality cutoff for 3' quality trimming (0 for none)", false, 0);
+		p.addIntArg("-pa", "Minimum length of a poly-A/T run to trim (0 for none)", false, 0);
+		p.addIntArg("-l", "Minimum read length after trimming", false, DEFAULT_MIN_LENGTH);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		p.parse(args);
+
+		FastqTrimmer trimmer = new FastqTrimmer(p.getStringArg("-a1"), p.getStringArg("-a2"));
+		trimmer.setMaxMismatches(p.getIntArg("-m"));
+		trimmer.setMinAdapterOverlap(p.getIntArg("-ov"));
+		trimmer.setQualityCutoff(p.getIntArg("-q"));
+		trimmer.setMinPolyALength(p.getIntArg("-pa"));
+		trimmer.setMinLength(p.getIntArg("-l"));
+		trimmer.trim(p.getStringArg("-i1"), p.getStringArg("-i2"), p.getStringArg("-o1"), p.getStringArg("-o2"), p.getIntArg("-t"));
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
@@ -5,23 +5,29 @@ import guttmanlab.core.pipeline.JobUtils;
 import guttmanlab.core.pipeline.LSFJob;
 import guttmanlab.core.pipeline.OGSJob;
 import guttmanlab.core.pipeline.Scheduler;
-import guttmanlab.core.pipeline.util.FastqParser;
-import guttmanlab.core.pipeline.util.FastqSequence;
+import guttmanlab.core.sequence.KmerTable;
 import guttmanlab.core.util.CommandLineParser;
 import guttmanlab.core.util.StringParser;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 import org.ggf.drmaa.DrmaaException;
@@ -268,8 +274,17 @@ public class FastqUtils {
 	}
 	
 	
+	/**
+	 * Number of unmatched records held per file when filtering paired fastq files that list mates in the
+	 * same order, before the rest of the files are filtered by read ID fingerprints
+	 */
+	public static int PAIRED_FASTQ_LOOKAHEAD = 10000;
+	
 	/**
 	 * Remove reads that are missing from file1 or file2 and write new fastq files
+	 * Read IDs are kept as 64-bit fingerprints in two hash tables (IDs of file 1, and IDs in both files)
+	 * with 12-byte slots at 25% to 50% load. Memory use is therefore 24 to 48 bytes per read of file 1 for
+	 * each table, and peaks at about 120 bytes per read of file 1 while a table doubles.
 	 * @param inFastq1 Input fastq file read 1
 	 * @param inFastq2 Input fastq file read 2
 	 * @param outFastq1 Output fastq file read 1
@@ -278,128 +293,425 @@ public class FastqUtils {
 	 * @throws IOException 
 	 */
 	public static void filterPairedFastqFilesMissingReads(String inFastq1, String inFastq2, String outFastq1, String outFastq2, String fastqReadIdPairNumberDelimiter) throws IOException {
+		filterPairedFastqFilesMissingReads(inFastq1, inFastq2, outFastq1, outFastq2, fastqReadIdPairNumberDelimiter, false);
+	}
+	
+	/**
+	 * Remove reads that are missing from file1 or file2 and write new fastq files
+	 * If the files list mates in the same order, both files are merged in one pass and only the reads
+	 * around a missing read are held in memory. Duplicated read IDs are paired by position rather than
+	 * removed. If more than PAIRED_FASTQ_LOOKAHEAD reads in a row are missing from one file, the merge
+	 * cannot tell which file they are missing from; the rest of both files is then filtered by read ID
+	 * fingerprints as in the other overload, so the output is the same. Otherwise, read IDs are compared
+	 * through 64-bit fingerprints as in the other overload.
+	 * @param inFastq1 Input fastq file read 1
+	 * @param inFastq2 Input fastq file read 2
+	 * @param outFastq1 Output fastq file read 1
+	 * @param outFastq2 Output fastq file read 2
+	 * @param fastqReadIdPairNumberDelimiter Delimiter between read name and read number (1 or 2), or null if whitespace
+	 * @param sameOrder Whether the files are expected to list mates in the same order
+	 * @throws IOException 
+	 */
+	public static void filterPairedFastqFilesMissingReads(String inFastq1, String inFastq2, String outFastq1, String outFastq2, String fastqReadIdPairNumberDelimiter, boolean sameOrder) throws IOException {
 		logger.info("Filtering files " + inFastq1 + " and " + inFastq2 + " for missing reads and writing to " + outFastq1 + " and " + outFastq2 + "...");
-
-		StringParser sp = new StringParser();
+		ReadIdParser ids = new ReadIdParser(fastqReadIdPairNumberDelimiter);
+		OutputStream w1 = new BufferedOutputStream(new FileOutputStream(outFastq1), 1 << 16);
+		OutputStream w2 = new BufferedOutputStream(new FileOutputStream(outFastq2), 1 << 16);
+		try {
+			if(sameOrder) {
+				filterPairedFastqFilesInSameOrder(inFastq1, inFastq2, w1, w2, ids);
+			} else {
+				filterPairedFastqFilesByFingerprint(inFastq1, inFastq2, 0, 0, w1, w2, ids);
+			}
+		} finally {
+			w1.close();
+			w2.close();
+		}
+		logger.info("Done writing filtered files.");
+	}
+	
+	/**
+	 * Write the reads of two fastq files whose read IDs are in both files, comparing read IDs through 64-bit fingerprints
+	 * File 1 is read twice and file 2 once.
+	 * @param inFastq1 Input fastq file read 1
+	 * @param inFastq2 Input fastq file read 2
+	 * @param skip1 Number of records to skip at the start of file 1
+	 * @param skip2 Number of records to skip at the start of file 2
+	 * @param w1 Output for read 1
+	 * @param w2 Output for read 2
+	 * @param ids Read ID parser
+	 * @throws IOException
+	 */
+	private static void filterPairedFastqFilesByFingerprint(String inFastq1, String inFastq2, long skip1, long skip2, OutputStream w1, OutputStream w2, ReadIdParser ids) throws IOException {
 		
-		// Save all read names from infile 1 to a treeset
+		// Count read IDs in infile 1
 		logger.info("Reading " + inFastq1 + "...");
-		TreeSet<String> inFastq1Ids = new TreeSet<String>();
-		FileReader r1 = new FileReader(inFastq1);
-		BufferedReader b1 = new BufferedReader(r1);
-		int linesRead1 = 0;
-		while(b1.ready()) {
-			String line = b1.readLine();
-			linesRead1++;
-			if(linesRead1 % 4 == 1) {
-				if(fastqReadIdPairNumberDelimiter != null) {
-					sp.parse(line, fastqReadIdPairNumberDelimiter);
-				} else {
-					sp.parse(line);
-				}
-				String id = sp.asString(0);
-				// Avoid rare duplicated read IDs
-				if(inFastq1Ids.contains(id)) { 
-					inFastq1Ids.remove(id);
-					logger.warn("Skipping read " + id + " because appears in file " + inFastq1 + " twice.");
-					continue;
-				}
-				inFastq1Ids.add(id);
-				id = null;
+		KmerTable inFastq1Counts = new KmerTable();
+		FastqReader r1 = new FastqReader(new File(inFastq1));
+		FastqRecord record = new FastqRecord();
+		skipRecords(r1, record, skip1);
+		while(r1.next(record)) {
+			long fingerprint = ids.fingerprint(record);
+			inFastq1Counts.increment(fingerprint);
+			// Avoid rare duplicated read IDs; as before, an ID is kept if it appears an odd number of times
+			if(inFastq1Counts.getCount(fingerprint) == 2) {
+				logger.warn("Skipping read " + ids.getId(record) + " because appears in file " + inFastq1 + " twice.");
 			}
-			line = null;
 		}
 		r1.close();
-		b1.close();
-		logger.info(inFastq1 + " contains " + inFastq1Ids.size() + " reads.");
-		
-		// Save read names that appear in both files to a treeset
-		// Write those reads from input file 2 to new file
-		logger.info("Reading " + inFastq2 + " and writing common reads to " + outFastq2 + "...");
-		FileWriter w2 = new FileWriter(outFastq2);
-		TreeSet<String> bothFastqIds = new TreeSet<String>();
-		TreeSet<String> inFastq2Ids = new TreeSet<String>();
-		FileReader r2 = new FileReader(inFastq2);
-		BufferedReader b2 = new BufferedReader(r2);
-		int linesRead2 = 0;
-		while(b2.ready()) {
-			String line = b2.readLine();
-			linesRead2++;
-			if(linesRead2 % 4 == 1) {
-				if(fastqReadIdPairNumberDelimiter != null) {
-					sp.parse(line, fastqReadIdPairNumberDelimiter);
-				} else {
-					sp.parse(line);
-				}
-				String id = sp.asString(0);
-				// Avoid rare duplicated read IDs
-				if(inFastq2Ids.contains(id)) {
-					logger.warn("Skipping read " + id + " because appears in file " + inFastq2 + " twice.");
-					inFastq2Ids.remove(id);
+		logger.info(inFastq1 + " contains " + r1.getNumRecords() + " reads.");
+		
+		// Count read IDs of file 2 that are also in file 1
+		// Write those reads from input file 2 to new file, skipping every second occurrence of an ID
+		logger.info("Reading " + inFastq2 + " and writing common reads...");
+		KmerTable bothFastqCounts = new KmerTable();
+		FastqReader r2 = new FastqReader(new File(inFastq2));
+		skipRecords(r2, record, skip2);
+		while(r2.next(record)) {
+			long fingerprint = ids.fingerprint(record);
+			if(inFastq1Counts.getCount(fingerprint) % 2 == 0) {
+				continue;
+			}
+			bothFastqCounts.increment(fingerprint);
+			int count = bothFastqCounts.getCount(fingerprint);
+			if(count % 2 == 0) {
+				logger.warn("Skipping read " + ids.getId(record) + " because appears in file " + inFastq2 + " twice.");
+				continue;
+			}
+			record.write(w2);
+		}
+		r2.close();
+		logger.info(inFastq2 + " contains " + r2.getNumRecords() + " reads of which " + bothFastqCounts.size() + " are also in " + inFastq1 + ".");
+		
+		// Write reads from infile 1 that appear in both files to new file
+		logger.info("Writing common reads from " + inFastq1 + "...");
+		FastqReader r3 = new FastqReader(new File(inFastq1));
+		skipRecords(r3, record, skip1);
+		while(r3.next(record)) {
+			if(bothFastqCounts.getCount(ids.fingerprint(record)) > 0) {
+				record.write(w1);
+			}
+		}
+		r3.close();
+		
+	}
+	
+	/**
+	 * @param reader Fastq reader
+	 * @param record Record to read into
+	 * @param n Number of records to skip
+	 * @throws IOException
+	 */
+	private static void skipRecords(FastqReader reader, FastqRecord record, long n) throws IOException {
+		for(long i = 0; i < n; i++) {
+			if(!reader.next(record)) {
+				throw new IllegalStateException("Fewer than " + n + " records to skip");
+			}
+		}
+	}
+	
+	/**
+	 * Write the reads of two fastq files that list mates in the same order, merging the files in one pass
+	 * Pairs that line up are written without being copied. After a missing read, the unmatched records of
+	 * both files are held until the mate of the first one is found, which shows that the records before
+	 * the mate in the other file are missing from this file. If more than PAIRED_FASTQ_LOOKAHEAD records of
+	 * a file are unmatched, the unmatched records and the rest of both files are filtered by fingerprints.
+	 * Every pair before the unmatched records has been written, so their mates can only be in the rest of
+	 * the other file.
+	 * @param inFastq1 Input fastq file read 1
+	 * @param inFastq2 Input fastq file read 2
+	 * @param w1 Output for read 1
+	 * @param w2 Output for read 2
+	 * @param ids Read ID parser
+	 * @throws IOException
+	 */
+	private static void filterPairedFastqFilesInSameOrder(String inFastq1, String inFastq2, OutputStream w1, OutputStream w2, ReadIdParser ids) throws IOException {
+		logger.info("Merging " + inFastq1 + " and " + inFastq2 + " with a lookahead of " + PAIRED_FASTQ_LOOKAHEAD + " reads...");
+		FastqReader r1 = new FastqReader(new File(inFastq1));
+		FastqReader r2 = new FastqReader(new File(inFastq2));
+		FastqRecord record1 = new FastqRecord();
+		FastqRecord record2 = new FastqRecord();
+		PendingReads pending1 = new PendingReads();
+		PendingReads pending2 = new PendingReads();
+		boolean has1 = true;
+		boolean has2 = true;
+		long numPairs = 0;
+		boolean overflow = false;
+		try {
+			while(has1 || has2 || !pending1.isEmpty() || !pending2.isEmpty()) {
+				// Read from the file with fewer unmatched records, so the files stay aligned and few records are held
+				boolean read1 = has1 && (!has2 || pending1.size() <= pending2.size());
+				boolean read2 = has2 && (!has1 || pending2.size() <= pending1.size());
+				boolean fresh1 = read1 && (has1 = r1.next(record1));
+				boolean fresh2 = read2 && (has2 = r2.next(record2));
+				if(fresh1 && fresh2 && pending1.isEmpty() && pending2.isEmpty() && ids.idEquals(record1, record2)) {
+					record1.write(w1);
+					record2.write(w2);
+					numPairs++;
 					continue;
 				}
-				inFastq2Ids.add(id);
-				if(inFastq1Ids.contains(id)) {
-					bothFastqIds.add(id);
-					String line2 = b2.readLine();
-					String line3 = b2.readLine();
-					String line4 = b2.readLine();
-					linesRead2 += 3;
-					w2.write(line + "\n" + line2 + "\n" + line3 + "\n" + line4 + "\n");			
-					line2 = null;
-					line3 = null;
-					line4 = null;
+				// A new record is compared with the unmatched records of the other file, so each pair is found
+				// when its second read arrives. The unmatched records before the pair in either file are missing
+				// from the other file, as the files are in the same order.
+				if(fresh1) {
+					int mate = pending2.indexOf(record1, ids.fingerprint(record1), ids);
+					if(mate >= 0) {
+						pending1.clear();
+						pending2.removeFirst(mate);
+						record1.write(w1);
+						pending2.removeFirst().write(w2);
+						numPairs++;
+					} else {
+						pending1.add(record1.copy(), ids.fingerprint(record1));
+					}
+				}
+				if(fresh2) {
+					int mate = pending1.indexOf(record2, ids.fingerprint(record2), ids);
+					if(mate >= 0) {
+						pending1.removeFirst(mate);
+						pending2.clear();
+						pending1.removeFirst().write(w1);
+						record2.write(w2);
+						numPairs++;
+					} else {
+						pending2.add(record2.copy(), ids.fingerprint(record2));
+					}
+				}
+				// Reads after the end of the other file have no mates
+				if(!has2) {
+					pending1.clear();
+				}
+				if(!has1) {
+					pending2.clear();
+				}
+				if(pending1.size() > PAIRED_FASTQ_LOOKAHEAD || pending2.size() > PAIRED_FASTQ_LOOKAHEAD) {
+					overflow = true;
+					break;
 				}
-				id = null;
 			}
-			line = null;
+		} finally {
+			r1.close();
+			r2.close();
 		}
-		r2.close();
-		b2.close();
-		w2.close();
-		logger.info(inFastq2 + " contains " + inFastq2Ids.size() + " reads of which " + bothFastqIds.size() + " are also in " + inFastq1 + ".");
-
+		if(overflow) {
+			long skip1 = r1.getNumRecords() - pending1.size();
+			long skip2 = r2.getNumRecords() - pending2.size();
+			logger.warn("No mates within " + PAIRED_FASTQ_LOOKAHEAD + " reads after read " + skip1 + " of " + inFastq1 + " and read " + skip2 + " of " + inFastq2
+					+ ". Filtering the rest of the files by read ID fingerprints.");
+			filterPairedFastqFilesByFingerprint(inFastq1, inFastq2, skip1, skip2, w1, w2, ids);
+			return;
+		}
+		logger.info("Wrote " + numPairs + " pairs. Removed " + (r1.getNumRecords() - numPairs) + " reads from " + inFastq1 + " and "
+				+ (r2.getNumRecords() - numPairs) + " reads from " + inFastq2 + ".");
+	}
+	
+	/**
+	 * Copied fastq records waiting for their mates, in file order, with the fingerprints of their read IDs
+	 * @author prussell
+	 *
+	 */
+	private static class PendingReads {
 		
-		// Write reads from infile 1 that appear in both files to new file
-		logger.info("Writing common reads from " + inFastq1 + " to " + outFastq1 + "...");
-		FileWriter w1 = new FileWriter(outFastq1);
-		FileReader r3 = new FileReader(inFastq1);
-		BufferedReader b3 = new BufferedReader(r3);
-		int linesRead3 = 0;
-		while(b3.ready()) {
-			String line = b3.readLine();
-			linesRead3++;
-			if(linesRead3 % 4 == 1) {
-				if(fastqReadIdPairNumberDelimiter != null) {
-					sp.parse(line, fastqReadIdPairNumberDelimiter);
-				} else {
-					sp.parse(line);
+		private FastqRecord[] records = new FastqRecord[16];
+		private long[] fingerprints = new long[16];
+		private int start;
+		private int size;
+		
+		public boolean isEmpty() {
+			return size == 0;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public void add(FastqRecord record, long fingerprint) {
+			if(size == records.length) {
+				FastqRecord[] newRecords = new FastqRecord[2 * records.length];
+				long[] newFingerprints = new long[2 * records.length];
+				for(int i = 0; i < size; i++) {
+					newRecords[i] = records[(start + i) % records.length];
+					newFingerprints[i] = fingerprints[(start + i) % records.length];
 				}
-				if(bothFastqIds.contains(sp.asString(0))) {
-					String line2 = b3.readLine();
-					String line3 = b3.readLine();
-					String line4 = b3.readLine();
-					linesRead3 += 3;
-					w1.write(line + "\n" + line2 + "\n" + line3 + "\n" + line4 + "\n");			
-					line2 = null;
-					line3 = null;
-					line4 = null;
+				records = newRecords;
+				fingerprints = newFingerprints;
+				start = 0;
+			}
+			records[(start + size) % records.length] = record;
+			fingerprints[(start + size) % records.length] = fingerprint;
+			size++;
+		}
+		
+		public FastqRecord removeFirst() {
+			FastqRecord rtrn = records[start];
+			removeFirst(1);
+			return rtrn;
+		}
+		
+		public void clear() {
+			removeFirst(size);
+		}
+		
+		/**
+		 * @param n Number of records to remove from the start
+		 */
+		public void removeFirst(int n) {
+			for(int i = 0; i < n; i++) {
+				records[(start + i) % records.length] = null;
+			}
+			start = (start + n) % records.length;
+			size -= n;
+		}
+		
+		/**
+		 * @param mate A record from the other file
+		 * @param fingerprint Fingerprint of the read ID of the record
+		 * @param ids Read ID parser
+		 * @return The position of the first record with the same read ID, or -1 if there is none
+		 */
+		public int indexOf(FastqRecord mate, long fingerprint, ReadIdParser ids) {
+			for(int i = 0; i < size; i++) {
+				int j = (start + i) % records.length;
+				if(fingerprints[j] == fingerprint && ids.idEquals(records[j], mate)) {
+					return i;
 				}
 			}
-			line = null;
+			return -1;
 		}
-		r3.close();
-		b3.close();
-		w1.close();
 		
-		logger.info("Done writing filtered files.");
+	}
+	
+	/**
+	 * Gets the read ID from the name line of a fastq record, as the first field of the line split
+	 * around whitespace or a delimiter
+	 * Single character delimiters and whitespace are handled on the bytes of the record
+	 * @author prussell
+	 *
+	 */
+	private static class ReadIdParser {
+		
+		private StringParser sp;
+		private String delimiter;
+		private int delimiterByte; // The delimiter if it is a literal character, otherwise -1
+		
+		/**
+		 * @param delimiter Delimiter (a regular expression), or null if whitespace
+		 */
+		public ReadIdParser(String delimiter) {
+			this.delimiter = delimiter;
+			sp = new StringParser();
+			delimiterByte = -1;
+			if(delimiter == null) {
+				return;
+			}
+			if(delimiter.length() == 1 && delimiter.charAt(0) < 128 && "\\^$.|?*+()[]{}".indexOf(delimiter.charAt(0)) < 0) {
+				delimiterByte = delimiter.charAt(0);
+			}
+		}
+		
+		/**
+		 * @return Whether the ID can be found on the bytes of the record
+		 */
+		private boolean onBytes() {
+			return delimiter == null || delimiterByte >= 0;
+		}
+		
+		/**
+		 * @param record Fastq record
+		 * @return The length of the ID within the name of the record
+		 */
+		private int idLength(FastqRecord record) {
+			byte[] buffer = record.getBuffer();
+			int start = record.getNameOffset();
+			int length = record.getNameLength();
+			for(int i = 0; i < length; i++) {
+				byte b = buffer[start + i];
+				if(delimiter == null ? (b == ' ' || b == '\t' || b == 0x0b || b == '\f') : b == delimiterByte) {
+					return i;
+				}
+			}
+			return length;
+		}
+		
+		/**
+		 * @param record Fastq record
+		 * @return The read ID
+		 */
+		public String getId(FastqRecord record) {
+			if(onBytes()) {
+				return "@" + new String(record.getBuffer(), record.getNameOffset(), idLength(record));
+			}
+			sp.parse("@" + record.getName(), delimiter);
+			return sp.asString(0);
+		}
+		
+		/**
+		 * @param record1 Fastq record
+		 * @param record2 Fastq record
+		 * @return Whether the records have the same read ID
+		 */
+		public boolean idEquals(FastqRecord record1, FastqRecord record2) {
+			if(!onBytes()) {
+				return getId(record1).equals(getId(record2));
+			}
+			int length = idLength(record1);
+			if(idLength(record2) != length) {
+				return false;
+			}
+			byte[] buffer1 = record1.getBuffer();
+			byte[] buffer2 = record2.getBuffer();
+			for(int i = 0; i < length; i++) {
+				if(buffer1[record1.getNameOffset() + i] != buffer2[record2.getNameOffset() + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * @param record Fastq record
+		 * @return A 63-bit fingerprint of the read ID
+		 */
+		public long fingerprint(FastqRecord record) {
+			long h = 0xcbf29ce484222325L;
+			if(onBytes()) {
+				byte[] buffer = record.getBuffer();
+				int start = record.getNameOffset();
+				int length = idLength(record);
+				for(int i = 0; i < length; i++) {
+					h = (h ^ buffer[start + i]) * 0x100000001b3L;
+				}
+			} else {
+				String id = getId(record);
+				for(int i = 0; i < id.length(); i++) {
+					h = (h ^ id.charAt(i)) * 0x100000001b3L;
+				}
+			}
+			// Final mix so that all bits depend on the whole ID
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h & Long.MAX_VALUE;
+		}
 		
 	}
 	
 	
+	/**
+	 * Number of threads copying chunks in divideFastqFile
+	 */
+	public static int DIVIDE_THREADS = 4;
+	
 	/**
 	 * Divide a fastq file into several smaller fastq files and write to same directory
-	 * @param fastq Original fastq file
+	 * The file is cut into contiguous chunks of about equal size at record boundaries, and each chunk is
+	 * copied byte for byte without parsing. Files that already exist are not rewritten.
+	 * The cut points depend on the byte length of the records, so dividing the read 1 and read 2 files of
+	 * paired reads separately gives chunks whose reads do not correspond. Use
+	 * divideFastqFile(String, String, int) for paired files.
+	 * @param fastq Original fastq file, not compressed
 	 * @param numOutFiles Number of smaller files to write
 	 * @return The names of files written
 	 * @throws IOException
@@ -409,51 +721,297 @@ public class FastqUtils {
 		logger.info("");
 		logger.info("Dividing " + fastq + " into " + numOutFiles + " smaller files...");
 		
-		List<String> rtrn = new ArrayList<String>();
+		checkDivideArgs(fastq, numOutFiles);
+		List<String> rtrn = chunkNames(fastq, numOutFiles);
+		if(allExist(rtrn)) {
+			logger.warn("All fastq files already exist. Not regenerating files.");
+			return rtrn;
+		}
 		
-		boolean allExist = true;
-		BufferedWriter[] bw = new BufferedWriter[numOutFiles];
-		for(int i = 0; i < bw.length; i ++) {
-			String file = fastq + "." + i;
-			rtrn.add(file);
-			if(!new File(file).exists()) {
-				bw[i] = new BufferedWriter(new FileWriter(file));
-				allExist = false;
+		FileInputStream in = new FileInputStream(fastq);
+		try {
+			FileChannel channel = in.getChannel();
+			long[] boundaries = new long[numOutFiles + 1];
+			long size = channel.size();
+			boundaries[numOutFiles] = size;
+			for(int i = 1; i < numOutFiles; i++) {
+				boundaries[i] = Math.max(boundaries[i - 1], findRecordStart(channel, size / numOutFiles * i));
 			}
+			writeChunks(fastq, channel, boundaries, rtrn);
+		} finally {
+			in.close();
 		}
 		
-		if(allExist) {
+		logger.info("Done dividing fastq file.");
+		
+		return rtrn;
+		
+	}
+	
+	/**
+	 * Divide the read 1 and read 2 fastq files of paired reads into several smaller fastq files each and write to same directory
+	 * File 1 is cut into contiguous chunks of about equal size at record boundaries, and file 2 is cut at the
+	 * same record numbers, so chunk i of both files holds the same mates if the files list mates in the same
+	 * order. Both files are read once to count records up to the cut points; chunks are then copied byte
+	 * for byte without parsing. Files that already exist are not rewritten.
+	 * @param fastq1 Original fastq file read 1, not compressed
+	 * @param fastq2 Original fastq file read 2, not compressed
+	 * @param numOutFiles Number of smaller files to write for each file
+	 * @return The names of files written for each original file
+	 * @throws IOException
+	 */
+	public static Map<String, List<String>> divideFastqFile(String fastq1, String fastq2, int numOutFiles) throws IOException {
+		
+		logger.info("");
+		logger.info("Dividing " + fastq1 + " and " + fastq2 + " into " + numOutFiles + " smaller files each...");
+		
+		checkDivideArgs(fastq1, numOutFiles);
+		checkDivideArgs(fastq2, numOutFiles);
+		Map<String, List<String>> rtrn = new TreeMap<String, List<String>>();
+		List<String> names1 = chunkNames(fastq1, numOutFiles);
+		List<String> names2 = chunkNames(fastq2, numOutFiles);
+		rtrn.put(fastq1, names1);
+		rtrn.put(fastq2, names2);
+		if(allExist(names1) && allExist(names2)) {
 			logger.warn("All fastq files already exist. Not regenerating files.");
-			for(int i = 0; i < bw.length; i++) {
-				if(bw[i] != null) bw[i].close();
-			}
 			return rtrn;
 		}
 		
-		FastqParser p = new FastqParser();
-		p.start(new File(fastq));
-		
-		int recordNum = 0;
-		while(p.hasNext()) {
-			FastqSequence r = p.next();
-			try {
-				r.write(bw[recordNum % bw.length]);
-			} catch(NullPointerException e) {
-				logger.warn("Null pointer exception; skipping record num " + recordNum);
+		FileInputStream in1 = new FileInputStream(fastq1);
+		FileInputStream in2 = new FileInputStream(fastq2);
+		try {
+			FileChannel channel1 = in1.getChannel();
+			FileChannel channel2 = in2.getChannel();
+			long size1 = channel1.size();
+			long[] targets = new long[numOutFiles - 1];
+			for(int i = 1; i < numOutFiles; i++) {
+				targets[i - 1] = size1 / numOutFiles * i;
 			}
-			recordNum++;
-		}
-		
-		for(int i = 0; i < bw.length; i++) {
-			bw[i].close();
+			long[][] cuts1 = locateRecords(channel1, targets, false);
+			long[][] cuts2 = locateRecords(channel2, cuts1[1], true);
+			if(cuts1[1].length > 0 && cuts2[1][cuts2[1].length - 1] < cuts1[1][cuts1[1].length - 1]) {
+				logger.warn(fastq2 + " has fewer reads than " + fastq1 + ". Chunks of the two files will not have the same reads.");
+			}
+			writeChunks(fastq1, channel1, withEnds(cuts1[0], size1), names1);
+			writeChunks(fastq2, channel2, withEnds(cuts2[0], channel2.size()), names2);
+		} finally {
+			in1.close();
+			in2.close();
 		}
 		
-		logger.info("Done dividing fastq file.");
+		logger.info("Done dividing fastq files.");
 		
 		return rtrn;
 		
 	}
-
+	
+	private static void checkDivideArgs(String fastq, int numOutFiles) throws IOException {
+		if(numOutFiles < 1) {
+			throw new IllegalArgumentException("Number of files must be at least 1: " + numOutFiles);
+		}
+		if(FastqReader.isGzipped(new File(fastq))) {
+			throw new IllegalArgumentException("Can't divide compressed file " + fastq);
+		}
+	}
+	
+	private static List<String> chunkNames(String fastq, int numOutFiles) {
+		List<String> rtrn = new ArrayList<String>();
+		for(int i = 0; i < numOutFiles; i ++) {
+			rtrn.add(fastq + "." + i);
+		}
+		return rtrn;
+	}
+	
+	private static boolean allExist(List<String> files) {
+		for(String file : files) {
+			if(!new File(file).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param cuts Cut points inside a file
+	 * @param size File size
+	 * @return Boundaries of the chunks, from 0 to the file size
+	 */
+	private static long[] withEnds(long[] cuts, long size) {
+		long[] rtrn = new long[cuts.length + 2];
+		System.arraycopy(cuts, 0, rtrn, 1, cuts.length);
+		rtrn[cuts.length + 1] = size;
+		return rtrn;
+	}
+	
+	/**
+	 * Copy chunks of a fastq file to files that do not exist yet, on DIVIDE_THREADS threads
+	 * @param fastq Fastq file name
+	 * @param channel Fastq file
+	 * @param boundaries Start of each chunk, followed by the file size
+	 * @param names Name of the file for each chunk
+	 * @throws IOException
+	 */
+	private static void writeChunks(String fastq, final FileChannel channel, final long[] boundaries, List<String> names) throws IOException {
+		final List<Integer> toWrite = new ArrayList<Integer>();
+		for(int i = 0; i < names.size(); i++) {
+			if(!new File(names.get(i)).exists()) {
+				toWrite.add(Integer.valueOf(i));
+			}
+		}
+		if(toWrite.isEmpty()) {
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(DIVIDE_THREADS, toWrite.size())), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fastq-divider");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<Void>> copies = new ArrayList<Future<Void>>();
+			for(final Integer i : toWrite) {
+				final String file = names.get(i.intValue());
+				copies.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						FileChannel out = new FileOutputStream(file).getChannel();
+						try {
+							long pos = boundaries[i.intValue()];
+							long end = boundaries[i.intValue() + 1];
+							while(pos < end) {
+								pos += channel.transferTo(pos, end - pos, out);
+							}
+						} finally {
+							out.close();
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> copy : copies) {
+				copy.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while dividing " + fastq, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error dividing " + fastq, e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Find records in a fastq file by reading it from the start
+	 * Records are 4 lines; blank lines between records are skipped.
+	 * @param channel Fastq file
+	 * @param targets Increasing byte offsets, or record numbers (counting from 0) if byRecordNumber is true
+	 * @param byRecordNumber Whether the targets are record numbers
+	 * @return Byte offsets (rtrn[0]) and record numbers (rtrn[1]) of the first record at or after each target.
+	 * Targets after the last record give the file size and the number of records.
+	 * @throws IOException
+	 */
+	private static long[][] locateRecords(FileChannel channel, long[] targets, boolean byRecordNumber) throws IOException {
+		long[][] rtrn = new long[2][targets.length];
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		byte[] bytes = buffer.array();
+		long size = channel.size();
+		long pos = 0;
+		long record = 0;
+		int line = 0; // Line of the current record, or 0 between records
+		boolean lineStart = true;
+		int t = 0;
+		while(t < targets.length && pos < size) {
+			buffer.clear();
+			int n = channel.read(buffer, pos);
+			if(n < 0) {
+				break;
+			}
+			for(int i = 0; i < n && t < targets.length; i++) {
+				if(lineStart && line == 0 && bytes[i] == '@') {
+					while(t < targets.length && targets[t] <= (byRecordNumber ? record : pos + i)) {
+						rtrn[0][t] = pos + i;
+						rtrn[1][t] = record;
+						t++;
+					}
+					record++;
+					line = 1;
+				}
+				lineStart = bytes[i] == '\n';
+				if(lineStart && line > 0 && ++line > 4) {
+					line = 0;
+				}
+			}
+			pos += n;
+		}
+		for(; t < targets.length; t++) {
+			rtrn[0][t] = size;
+			rtrn[1][t] = record;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Find the start of the first fastq record at or after a position
+	 * A line is taken as a record start if it starts with @, the line two below starts with +, and the
+	 * sequence and quality lines have the same length. This excludes quality lines that start with @.
+	 * @param channel Fastq file
+	 * @param position Position to search from
+	 * @return The start of the first record at or after the position, or the file size if there is none
+	 * @throws IOException
+	 */
+	private static long findRecordStart(FileChannel channel, long position) throws IOException {
+		int windowSize = 1 << 16;
+		long size = channel.size();
+		while(true) {
+			// Read from the byte before the position, so a line starting at the position is found
+			long windowStart = Math.max(0, position - 1);
+			ByteBuffer window = ByteBuffer.allocate((int) Math.min(windowSize, size - windowStart));
+			while(window.hasRemaining() && channel.read(window, windowStart + window.position()) >= 0) {}
+			int length = window.position();
+			byte[] bytes = window.array();
+			boolean endOfFile = windowStart + length >= size;
+			// Line starts in the window, plus the end of the window if it ends the file
+			List<Integer> lineStarts = new ArrayList<Integer>();
+			if(windowStart == 0) {
+				lineStarts.add(Integer.valueOf(0));
+			}
+			for(int i = 0; i < length; i++) {
+				if(bytes[i] == '\n') {
+					lineStarts.add(Integer.valueOf(i + 1));
+				}
+			}
+			if(endOfFile && (length == 0 || bytes[length - 1] != '\n')) {
+				lineStarts.add(Integer.valueOf(length + 1));
+			}
+			for(int j = 0; j + 4 < lineStarts.size(); j++) {
+				int line = lineStarts.get(j).intValue();
+				if(line >= length || bytes[line] != '@') {
+					continue;
+				}
+				int plusLine = lineStarts.get(j + 2).intValue();
+				if(plusLine >= length || bytes[plusLine] != '+') {
+					continue;
+				}
+				int sequenceLength = lineStarts.get(j + 2).intValue() - lineStarts.get(j + 1).intValue();
+				int qualityLength = lineStarts.get(j + 4).intValue() - lineStarts.get(j + 3).intValue();
+				if(sequenceLength == qualityLength) {
+					return windowStart + line;
+				}
+			}
+			if(endOfFile) {
+				return size;
+			}
+			// No complete record in the window
+			windowSize *= 2;
+		}
+	}
+	
 	
 	/**
 	 * @param args
@@ -468,6 +1026,7 @@ public class FastqUtils {
 		p.addStringArg("-o2", "Output fastq 2", true);
 		p.addStringArg("-d", "Fastq read number delimiter if other than whitespace", false, null);
 		p.addBooleanArg("-f", "Filter paired fastq files missing reads", true);
+		p.addBooleanArg("-s", "Paired fastq files list mates in the same order", false, false);
 		p.parse(args);
 		String input1 = p.getStringArg("-i1");
 		String input2 = p.getStringArg("-i2");
@@ -475,9 +1034,10 @@ public class FastqUtils {
 		String output2 = p.getStringArg("-o2");
 		String delimiter = p.getStringArg("-d");
 		boolean filterPairedFiles = p.getBooleanArg("-f");
+		boolean sameOrder = p.getBooleanArg("-s");
 		
 		if(filterPairedFiles) {
-			filterPairedFastqFilesMissingReads(input1, input2, output1, output2, delimiter);
+			filterPairedFastqFilesMissingReads(input1, input2, output1, output2, delimiter, sameOrder);
 		}
 		
 		logger.info("");
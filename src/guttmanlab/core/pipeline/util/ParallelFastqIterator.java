@@ -0,0 +1,296 @@
+package guttmanlab.core.pipeline.util;
+
+import guttmanlab.core.util.BlockCompressedReadAheadInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Iterates over the records of a fastq file that is decompressed and parsed on several threads
+ *
+ * A splitter thread reads the uncompressed file and cuts it into chunks of whole records. BGZF files
+ * are inflated in parallel with BlockCompressedReadAheadInputStream; plain gzip files are inflated on
+ * the splitter thread, which then does nothing else. Chunks are parsed into FastqSequences on a pool of
+ * worker threads and returned in file order. At most queueDepth chunks are held at once, so memory use
+ * is bounded.
+ * @author prussell
+ *
+ */
+public class ParallelFastqIterator implements Iterator<FastqSequence> {
+
+	private File fastqFile;
+	private InputStream in;
+	private ExecutorService parsers;
+	private Thread splitter;
+	private BlockingQueue<Future<List<FastqSequence>>> queue;
+	private int chunkSize;
+	private List<FastqSequence> current;
+	private int currentPos;
+	private boolean done;
+	private static Logger logger = Logger.getLogger(ParallelFastqIterator.class.getName());
+
+	/**
+	 * Default chunk size in bytes
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+	/**
+	 * Default number of chunks in the queue per parser thread
+	 */
+	public static final int DEFAULT_CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * @param fastqFile Fastq file, optionally gzip or BGZF compressed
+	 * @param numThreads Number of parser threads, also used to inflate BGZF files
+	 * @throws IOException
+	 */
+	public ParallelFastqIterator(File fastqFile, int numThreads) throws IOException {
+		this(fastqFile, numThreads, numThreads * DEFAULT_CHUNKS_PER_THREAD, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param fastqFile Fastq file, optionally gzip or BGZF compressed
+	 * @param numThreads Number of parser threads, also used to inflate BGZF files
+	 * @param queueDepth Maximum number of chunks read ahead of the consumer
+	 * @param chunkSize Approximate number of uncompressed bytes parsed as one chunk
+	 * @throws IOException
+	 */
+	public ParallelFastqIterator(File fastqFile, int numThreads, int queueDepth, int chunkSize) throws IOException {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(queueDepth < 1) {
+			throw new IllegalArgumentException("Queue depth must be at least 1: " + queueDepth);
+		}
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+		}
+		this.fastqFile = fastqFile;
+		this.chunkSize = chunkSize;
+		this.in = open(fastqFile, numThreads);
+		this.queue = new ArrayBlockingQueue<Future<List<FastqSequence>>>(queueDepth);
+		this.current = new ArrayList<FastqSequence>();
+		this.parsers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fastq-parser");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.splitter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				split();
+			}
+		}, "fastq-splitter");
+		splitter.setDaemon(true);
+		splitter.start();
+	}
+
+	/**
+	 * @param file Fastq file
+	 * @param numThreads Number of threads to inflate a BGZF file
+	 * @return Uncompressed contents of the file
+	 * @throws IOException
+	 */
+	private static InputStream open(File file, int numThreads) throws IOException {
+		if(!FastqReader.isGzipped(file)) {
+			return new FileInputStream(file);
+		}
+		InputStream check = new BufferedInputStream(new FileInputStream(file));
+		boolean bgzf;
+		try {
+			bgzf = BlockCompressedInputStream.isValidFile(check);
+		} finally {
+			check.close();
+		}
+		if(bgzf) {
+			logger.info("Inflating BGZF file " + file.getPath() + " on " + numThreads + " threads");
+			return new BlockCompressedReadAheadInputStream(file, numThreads);
+		}
+		return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16);
+	}
+
+	/**
+	 * Read the input and queue chunks of whole records for parsing, followed by the end of input marker
+	 * Runs on the splitter thread
+	 */
+	private void split() {
+		try {
+			byte[] buf = new byte[chunkSize];
+			int length = 0;
+			int scanPos = 0; // First byte not yet scanned for newlines
+			int lineStart = 0;
+			int lineInRecord = 0; // Number of lines of the current record seen
+			int lastBoundary = 0; // End of the last complete record
+			while(true) {
+				int n = in.read(buf, length, buf.length - length);
+				if(n < 0) {
+					break;
+				}
+				length += n;
+				for(int i = scanPos; i < length; i++) {
+					if(buf[i] != '\n') {
+						continue;
+					}
+					// Blank lines between records are skipped, as in FastqReader
+					boolean blank = i == lineStart || (i == lineStart + 1 && buf[lineStart] == '\r');
+					if(lineInRecord > 0 || !blank) {
+						lineInRecord++;
+					}
+					if(lineInRecord == 4) {
+						lineInRecord = 0;
+						lastBoundary = i + 1;
+					}
+					lineStart = i + 1;
+				}
+				scanPos = length;
+				if(length == buf.length) {
+					if(lastBoundary == 0) {
+						// A record longer than the chunk
+						buf = Arrays.copyOf(buf, 2 * buf.length);
+						continue;
+					}
+					byte[] next = new byte[Math.max(chunkSize, 2 * (length - lastBoundary))];
+					System.arraycopy(buf, lastBoundary, next, 0, length - lastBoundary);
+					submit(buf, lastBoundary);
+					buf = next;
+					length -= lastBoundary;
+					scanPos = length;
+					lineStart -= lastBoundary;
+					lastBoundary = 0;
+				}
+			}
+			if(length > 0) {
+				submit(buf, length);
+			}
+			queue.put(finished(null));
+		} catch(InterruptedException e) {
+			// Closed by the consumer
+		} catch(Throwable e) {
+			try {
+				queue.put(finished(e));
+			} catch(InterruptedException e1) {
+				// Closed by the consumer
+			}
+		}
+	}
+
+	/**
+	 * Queue a chunk for parsing
+	 * @param data The chunk
+	 * @param length Length of the chunk in the array
+	 * @throws InterruptedException
+	 */
+	private void submit(final byte[] data, final int length) throws InterruptedException {
+		queue.put(parsers.submit(new Callable<List<FastqSequence>>() {
+			@Override
+			public List<FastqSequence> call() throws IOException {
+				List<FastqSequence> rtrn = new ArrayList<FastqSequence>();
+				FastqReader reader = new FastqReader(data, length);
+				FastqRecord record = new FastqRecord();
+				while(reader.next(record)) {
+					rtrn.add(record.toFastqSequence());
+				}
+				return rtrn;
+			}
+		}));
+	}
+
+	/**
+	 * @param error Error thrown by the future, or null for the end of input marker
+	 * @return A completed future with a null value or the error
+	 */
+	private static Future<List<FastqSequence>> finished(final Throwable error) {
+		FutureTask<List<FastqSequence>> rtrn = new FutureTask<List<FastqSequence>>(new Callable<List<FastqSequence>>() {
+			@Override
+			public List<FastqSequence> call() throws Exception {
+				if(error instanceof Exception) {
+					throw (Exception) error;
+				}
+				if(error != null) {
+					throw (Error) error;
+				}
+				return null;
+			}
+		});
+		rtrn.run();
+		return rtrn;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while(!done && currentPos >= current.size()) {
+			try {
+				List<FastqSequence> chunk = queue.take().get();
+				if(chunk == null) {
+					done = true;
+					close();
+				} else {
+					current = chunk;
+					currentPos = 0;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while reading " + fastqFile.getPath(), e);
+			} catch (ExecutionException e) {
+				done = true;
+				close();
+				throw new IllegalStateException("Error reading " + fastqFile.getPath(), e.getCause());
+			}
+		}
+		return currentPos < current.size();
+	}
+
+	@Override
+	public FastqSequence next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.get(currentPos++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop the threads and close the file
+	 */
+	public void close() {
+		done = true;
+		splitter.interrupt();
+		parsers.shutdownNow();
+		queue.clear();
+		try {
+			in.close();
+		} catch (IOException e) {
+			logger.warn("Error closing " + fastqFile.getPath(), e);
+		}
+	}
+
+}
@@ -1,16 +1,23 @@
 package guttmanlab.core.sequence;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 
@@ -38,43 +45,31 @@ public class FastaFileIOImpl implements FastaFileIO {
 	public Collection<Sequence> readFromFile(String fileName) {
 		logger.info("Reading sequences from fasta file " + fileName + "...");
 		Collection<Sequence> rtrn = new ArrayList<Sequence>();
-		try {
-			BufferedReader reader = new BufferedReader(new FileReader(fileName));
-			boolean started = false;
-			String currSeqID = null;
-			StringBuilder currSeq = null;
-			while(reader.ready()) {
-				String line = reader.readLine();
-				if(line.startsWith(">")) {
-					if(started) {
-						rtrn.add(new Sequence(currSeqID, currSeq.toString()));
-						logger.info("Added " + currSeqID + " " + currSeq.length());
-					}
-					currSeqID = line.substring(1);
-					currSeq = new StringBuilder();
-					continue;
-				}
-				currSeq.append(line);
-				started = true;
-			}
-			Sequence lastSeq = new Sequence(currSeqID, currSeq.toString());
-			rtrn.add(lastSeq);
-			reader.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			System.exit(-1);
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(-1);
+		Iterator<Sequence> iter = iterateThroughFile(fileName);
+		while(iter.hasNext()) {
+			Sequence seq = iter.next();
+			rtrn.add(seq);
+			logger.info("Added " + seq.getName() + " " + seq.getLength());
 		}
 		logger.info("Got " + rtrn.size() + " sequences.");
 		return rtrn;
 	}
 	
-
+	/**
+	 * Iterate through the sequences of a fasta file, reading one sequence at a time
+	 * The file can be gzip compressed
+	 * @param fileName Fasta file path
+	 * @return An iterator over the sequences in the file
+	 */
 	@Override
 	public Iterator<Sequence> iterateThroughFile(String fileName) {
-		throw new UnsupportedOperationException();
+		try {
+			return new FastaIterator(fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
 	}
 
 	@Override
@@ -121,4 +116,162 @@ public class FastaFileIOImpl implements FastaFileIO {
 		}
 	}
 
+	/**
+	 * Reads one sequence at a time from a fasta file through a buffered channel
+	 * Sequence names are the full header line without the ">"
+	 * @author prussell
+	 *
+	 */
+	private static class FastaIterator implements Iterator<Sequence> {
+		
+		private String fileName;
+		private ReadableByteChannel channel;
+		private ByteBuffer buffer;
+		private byte[] bases;
+		private int numBases;
+		private String nextName; // Header of the next sequence, already read
+		private Sequence next;
+		private static final int BUFFER_SIZE = 1 << 16;
+		private static final Charset ASCII = Charset.forName("US-ASCII");
+		
+		public FastaIterator(String fileName) throws IOException {
+			this.fileName = fileName;
+			channel = openChannel(fileName);
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.flip();
+			bases = new byte[BUFFER_SIZE];
+			// Read up to the first header
+			int b;
+			while((b = read()) != -1) {
+				if(b == '>') {
+					nextName = readLine();
+					break;
+				}
+				if(!Character.isWhitespace(b)) {
+					throw new IllegalArgumentException("Sequence before first header in " + fileName);
+				}
+			}
+			if(nextName == null) {
+				channel.close();
+			}
+		}
+		
+		/**
+		 * @param fileName File path
+		 * @return A channel over the contents of the file, decompressed if the file is gzip compressed
+		 * @throws IOException
+		 */
+		private static ReadableByteChannel openChannel(String fileName) throws IOException {
+			FileChannel fileChannel = new FileInputStream(fileName).getChannel();
+			ByteBuffer magic = ByteBuffer.allocate(2);
+			while(magic.hasRemaining() && fileChannel.read(magic) != -1) {}
+			fileChannel.position(0);
+			if(magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+				InputStream in = new GZIPInputStream(Channels.newInputStream(fileChannel), BUFFER_SIZE);
+				return Channels.newChannel(in);
+			}
+			return fileChannel;
+		}
+		
+		/**
+		 * @return The next byte, or -1 at the end of the file
+		 * @throws IOException
+		 */
+		private int read() throws IOException {
+			if(!buffer.hasRemaining()) {
+				buffer.clear();
+				int n = 0;
+				while(n == 0) {
+					n = channel.read(buffer);
+				}
+				buffer.flip();
+				if(n < 0) {
+					return -1;
+				}
+			}
+			return buffer.get() & 0xff;
+		}
+		
+		/**
+		 * @return The rest of the current line without the line terminator
+		 * @throws IOException
+		 */
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while((b = read()) != -1 && b != '\n') {
+				if(b != '\r') {
+					sb.append((char) b);
+				}
+			}
+			return sb.toString();
+		}
+		
+		/**
+		 * Read the sequence of the current record and the header of the following record
+		 * @throws IOException
+		 */
+		private void advance() throws IOException {
+			String name = nextName;
+			nextName = null;
+			numBases = 0;
+			boolean lineStart = true;
+			int b;
+			while((b = read()) != -1) {
+				if(lineStart && b == '>') {
+					nextName = readLine();
+					break;
+				}
+				if(b == '\n') {
+					lineStart = true;
+					continue;
+				}
+				lineStart = false;
+				if(b == '\r') {
+					continue;
+				}
+				if(numBases == bases.length) {
+					bases = Arrays.copyOf(bases, 2 * bases.length);
+				}
+				bases[numBases++] = (byte) b;
+			}
+			next = new Sequence(name, new String(bases, 0, numBases, ASCII));
+			if(nextName == null) {
+				channel.close();
+			}
+			if(bases.length > BUFFER_SIZE && numBases < bases.length / 4) {
+				// Release the buffer after a large sequence
+				bases = new byte[BUFFER_SIZE];
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if(next == null && nextName != null) {
+				try {
+					advance();
+				} catch (IOException e) {
+					throw new IllegalStateException("Error reading " + fileName, e);
+				}
+			}
+			return next != null;
+		}
+		
+		@Override
+		public Sequence next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Sequence rtrn = next;
+			next = null;
+			return rtrn;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+	}
+
 }
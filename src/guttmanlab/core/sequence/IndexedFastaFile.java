@@ -0,0 +1,378 @@
+package guttmanlab.core.sequence;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SingleInterval;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Random access to the sequences of a fasta file through a faidx (.fai) index.
+ * The index is read from fasta + ".fai", or built and written there if it does not exist.
+ *
+ * Each sequence is memory-mapped the first time it is used, and subsequences are copied out of the
+ * mapped file by computing byte offsets from the line lengths in the index, so the genome is never
+ * loaded onto the heap. Sequence names are the first word of the header line, as in samtools faidx.
+ * @author prussell
+ *
+ */
+public class IndexedFastaFile {
+
+	private File fastaFile;
+	private Map<String, Entry> entries;
+	private Map<String, MappedByteBuffer> mappedSequences;
+	private static Logger logger = Logger.getLogger(IndexedFastaFile.class.getName());
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * One line of a fasta index
+	 */
+	private static class Entry {
+		private String name;
+		private long length; // Number of bases
+		private long offset; // File offset of the first base
+		private int lineBases; // Bases per line
+		private int lineWidth; // Bytes per line including the line terminator
+
+		/**
+		 * @return The number of bytes from the first base to the end of the last base
+		 */
+		private long getSpan() {
+			if(length == 0) {
+				return 0;
+			}
+			return ((length - 1) / lineBases) * lineWidth + (length - 1) % lineBases + 1;
+		}
+
+		@Override
+		public String toString() {
+			return name + "\t" + length + "\t" + offset + "\t" + lineBases + "\t" + lineWidth;
+		}
+	}
+
+	/**
+	 * @param fastaFileName Fasta file
+	 * @throws IOException
+	 */
+	public IndexedFastaFile(String fastaFileName) throws IOException {
+		fastaFile = new File(fastaFileName);
+		File indexFile = new File(getIndexFileName(fastaFileName));
+		if(!indexFile.exists()) {
+			buildIndex(fastaFileName);
+		}
+		entries = readIndex(indexFile);
+		mappedSequences = new HashMap<String, MappedByteBuffer>();
+	}
+
+	/**
+	 * @param fastaFileName Fasta file
+	 * @return The index file for the fasta file
+	 */
+	public static String getIndexFileName(String fastaFileName) {
+		return fastaFileName + ".fai";
+	}
+
+	private static Map<String, Entry> readIndex(File indexFile) throws IOException {
+		Map<String, Entry> rtrn = new LinkedHashMap<String, Entry>();
+		BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.isEmpty()) {
+					continue;
+				}
+				String[] tokens = line.split("\t");
+				if(tokens.length < 5) {
+					throw new IllegalArgumentException("Invalid fasta index line in " + indexFile.getPath() + ": " + line);
+				}
+				Entry entry = new Entry();
+				entry.name = tokens[0];
+				entry.length = Long.parseLong(tokens[1]);
+				entry.offset = Long.parseLong(tokens[2]);
+				entry.lineBases = Integer.parseInt(tokens[3]);
+				entry.lineWidth = Integer.parseInt(tokens[4]);
+				rtrn.put(entry.name, entry);
+			}
+		} finally {
+			reader.close();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Write a faidx index for a fasta file
+	 * All lines of a sequence except the last must have the same length
+	 * @param fastaFileName Fasta file
+	 * @throws IOException
+	 */
+	public static void buildIndex(String fastaFileName) throws IOException {
+		logger.info("Writing fasta index for " + fastaFileName + "...");
+		List<Entry> entries = new ArrayList<Entry>();
+		InputStream in = new FileInputStream(fastaFileName);
+		try {
+			Entry current = null;
+			long position = 0;
+			boolean lastLineShort = false; // Whether a line shorter than lineBases has been seen for the current sequence
+			StringBuilder header = null;
+			int lineBytes = 0; // Bytes on the current line including the terminator
+			int lineBasesCount = 0; // Bases on the current line
+			byte[] buffer = new byte[1 << 20];
+			int n;
+			while((n = in.read(buffer)) != -1) {
+				for(int i = 0; i < n; i++) {
+					int b = buffer[i] & 0xFF;
+					position++;
+					lineBytes++;
+					if(header != null) {
+						if(b == '\n') {
+							current = new Entry();
+							current.name = firstWord(header.toString().trim());
+							current.offset = position;
+							entries.add(current);
+							header = null;
+							lineBytes = 0;
+							lastLineShort = false;
+						} else {
+							header.append((char) b);
+						}
+						continue;
+					}
+					if(lineBytes == 1 && b == '>') {
+						header = new StringBuilder();
+						continue;
+					}
+					if(b == '\n') {
+						if(current == null) {
+							if(lineBasesCount > 0) {
+								throw new IllegalArgumentException("Sequence before first header in " + fastaFileName);
+							}
+						} else if(lineBasesCount == 0) {
+							// A blank line inside a sequence, including right after the header, is a short line, so any
+							// later bases are an error, as in samtools faidx. Blank lines before the next header are allowed.
+							lastLineShort = true;
+						} else {
+							if(lastLineShort) {
+								throw new IllegalArgumentException("Different line lengths in sequence " + current.name + " of " + fastaFileName);
+							}
+							if(current.lineBases == 0) {
+								current.lineBases = lineBasesCount;
+								current.lineWidth = lineBytes;
+							} else if(lineBasesCount > current.lineBases || lineBytes != current.lineWidth - current.lineBases + lineBasesCount) {
+								throw new IllegalArgumentException("Different line lengths in sequence " + current.name + " of " + fastaFileName);
+							} else if(lineBasesCount < current.lineBases) {
+								lastLineShort = true;
+							}
+							current.length += lineBasesCount;
+						}
+						lineBytes = 0;
+						lineBasesCount = 0;
+						continue;
+					}
+					if(b != '\r') {
+						lineBasesCount++;
+					}
+				}
+			}
+			// Last line without a terminator
+			if(header != null) {
+				current = new Entry();
+				current.name = firstWord(header.toString().trim());
+				current.offset = position;
+				entries.add(current);
+			} else if(current != null && lineBasesCount > 0) {
+				if(lastLineShort || (current.lineBases > 0 && lineBasesCount > current.lineBases)) {
+					throw new IllegalArgumentException("Different line lengths in sequence " + current.name + " of " + fastaFileName);
+				}
+				if(current.lineBases == 0) {
+					current.lineBases = lineBasesCount;
+					current.lineWidth = lineBytes + 1;
+				}
+				current.length += lineBasesCount;
+			}
+		} finally {
+			in.close();
+		}
+		BufferedWriter writer = new BufferedWriter(new FileWriter(getIndexFileName(fastaFileName)));
+		try {
+			for(Entry entry : entries) {
+				writer.write(entry.toString());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		logger.info("Indexed " + entries.size() + " sequences.");
+	}
+
+	private static String firstWord(String header) {
+		for(int i = 0; i < header.length(); i++) {
+			if(Character.isWhitespace(header.charAt(i))) {
+				return header.substring(0, i);
+			}
+		}
+		return header;
+	}
+
+	/**
+	 * @return The sequence names in file order
+	 */
+	public Collection<String> getSequenceNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * @param name Sequence name
+	 * @return Whether the file contains the sequence
+	 */
+	public boolean containsSequence(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @param name Sequence name
+	 * @return The length of the sequence
+	 */
+	public long getLength(String name) {
+		return getEntry(name).length;
+	}
+
+	private Entry getEntry(String name) {
+		Entry rtrn = entries.get(name);
+		if(rtrn == null) {
+			throw new IllegalArgumentException("No sequence " + name + " in " + fastaFile.getPath());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param entry Index entry
+	 * @return The mapped bytes of the sequence, starting at the first base
+	 * @throws IOException
+	 */
+	private synchronized MappedByteBuffer getMappedSequence(Entry entry) throws IOException {
+		MappedByteBuffer rtrn = mappedSequences.get(entry.name);
+		if(rtrn == null) {
+			long span = entry.getSpan();
+			if(span > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Sequence " + entry.name + " is too large to map");
+			}
+			RandomAccessFile raf = new RandomAccessFile(fastaFile, "r");
+			try {
+				rtrn = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, span);
+			} finally {
+				raf.close();
+			}
+			mappedSequences.put(entry.name, rtrn);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Copy bases of a sequence into an array
+	 * @param name Sequence name
+	 * @param start Start position, zero-based
+	 * @param end Position after the last position
+	 * @param dest Array to copy to
+	 * @param destPos Position in the array to copy to
+	 * @throws IOException
+	 */
+	private void copyBases(String name, int start, int end, byte[] dest, int destPos) throws IOException {
+		Entry entry = getEntry(name);
+		MappedByteBuffer mapped = getMappedSequence(entry);
+		int pos = start;
+		while(pos < end) {
+			int column = pos % entry.lineBases;
+			int n = Math.min(end - pos, entry.lineBases - column);
+			int offset = (int) ((long) (pos / entry.lineBases) * entry.lineWidth + column);
+			// Absolute reads so the buffer position is never shared between threads
+			for(int i = 0; i < n; i++) {
+				dest[destPos + i] = mapped.get(offset + i);
+			}
+			pos += n;
+			destPos += n;
+		}
+	}
+
+	/**
+	 * Get a subsequence
+	 * @param name Sequence name
+	 * @param start Start position of subsequence, zero-based
+	 * @param end Position after last position to include
+	 * @return The subsequence, truncated to the sequence bounds, with the same name as the sequence
+	 * @throws IOException
+	 */
+	public Sequence getSubSequence(String name, int start, int end) throws IOException {
+		int from = Math.max(start, 0);
+		int to = (int) Math.min(end, getLength(name));
+		byte[] bases = new byte[Math.max(to - from, 0)];
+		copyBases(name, from, to, bases, 0);
+		return new Sequence(name, new String(bases, ASCII));
+	}
+
+	/**
+	 * @param name Sequence name
+	 * @return The full sequence
+	 * @throws IOException
+	 */
+	public Sequence getSequence(String name) throws IOException {
+		return getSubSequence(name, 0, (int) getLength(name));
+	}
+
+	/**
+	 * Get the spliced transcribed sequence of an annotation
+	 * Bases are reported in 5' to 3' direction
+	 * @param annot The annotation
+	 * @return Sequence with same name as annotation containing the transcribed sequence
+	 * @throws IOException
+	 */
+	public Sequence getSubsequence(Annotation annot) throws IOException {
+		if(!annot.getOrientation().equals(Strand.POSITIVE) && !annot.getOrientation().equals(Strand.NEGATIVE)) {
+			throw new IllegalArgumentException("Strand must be known");
+		}
+		String name = annot.getReferenceName();
+		long length = getLength(name);
+		int size = 0;
+		Iterator<SingleInterval> blockIter = annot.getBlocks();
+		while(blockIter.hasNext()) {
+			SingleInterval block = blockIter.next();
+			size += Math.max(0, Math.min(block.getReferenceEndPosition(), length) - Math.max(block.getReferenceStartPosition(), 0));
+		}
+		byte[] bases = new byte[size];
+		int pos = 0;
+		blockIter = annot.getBlocks();
+		while(blockIter.hasNext()) {
+			SingleInterval block = blockIter.next();
+			int start = Math.max(block.getReferenceStartPosition(), 0);
+			int end = (int) Math.min(block.getReferenceEndPosition(), length);
+			if(end > start) {
+				copyBases(name, start, end, bases, pos);
+				pos += end - start;
+			}
+		}
+		if(annot.getOrientation().equals(Strand.NEGATIVE)) {
+			Sequence.reverseComplement(bases, 0, bases.length);
+		}
+		return new Sequence(annot.getName(), new String(bases, ASCII));
+	}
+
+}
@@ -0,0 +1,245 @@
+package guttmanlab.core.sequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Encode and count k-mers of nucleotide sequences
+ * A k-mer of length at most MAX_K is encoded in a long at 2 bits per base (A=0, C=1, G=2, T=3, first base
+ * in the highest bits), so encoded k-mers of the same length sort in lexicographic order. K-mers are
+ * read with a rolling encoding, and k-mers containing N or other non-ACGT characters are skipped.
+ * Case is ignored.
+ * @author prussell
+ *
+ */
+public final class KmerCounter {
+
+	private static Logger logger = Logger.getLogger(KmerCounter.class.getName());
+
+	/**
+	 * Maximum k-mer length
+	 */
+	public static final int MAX_K = 31;
+
+	private static final int[] CODES = new int[128];
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+	static {
+		for(int i = 0; i < CODES.length; i++) {
+			CODES[i] = -1;
+		}
+		CODES['A'] = CODES['a'] = 0;
+		CODES['C'] = CODES['c'] = 1;
+		CODES['G'] = CODES['g'] = 2;
+		CODES['T'] = CODES['t'] = 3;
+	}
+
+	/**
+	 * Prohibit instantiation
+	 */
+	private KmerCounter() {}
+
+	/**
+	 * Receives each k-mer of a sequence
+	 */
+	interface KmerVisitor {
+
+		/**
+		 * @param kmer Encoded k-mer
+		 * @param position Start position of the k-mer in the sequence
+		 */
+		public void visit(long kmer, int position);
+
+	}
+
+	private static void checkK(int k) {
+		if(k < 1 || k > MAX_K) {
+			throw new IllegalArgumentException("K must be between 1 and " + MAX_K + ": " + k);
+		}
+	}
+
+	/**
+	 * @param c A base
+	 * @return The code of the base, or -1 if the base is not A, C, G or T
+	 */
+	private static int code(char c) {
+		return c < CODES.length ? CODES[c] : -1;
+	}
+
+	/**
+	 * @param kmer A k-mer
+	 * @return The encoded k-mer
+	 */
+	public static long encode(String kmer) {
+		checkK(kmer.length());
+		long rtrn = 0;
+		for(int i = 0; i < kmer.length(); i++) {
+			int code = code(kmer.charAt(i));
+			if(code < 0) {
+				throw new IllegalArgumentException("Invalid base in k-mer " + kmer);
+			}
+			rtrn = (rtrn << 2) | code;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param kmer Encoded k-mer
+	 * @param k K-mer length
+	 * @return The k-mer in upper case
+	 */
+	public static String decode(long kmer, int k) {
+		checkK(k);
+		char[] rtrn = new char[k];
+		for(int i = k - 1; i >= 0; i--) {
+			rtrn[i] = BASES[(int) (kmer & 3)];
+			kmer >>>= 2;
+		}
+		return new String(rtrn);
+	}
+
+	/**
+	 * @param kmer Encoded k-mer
+	 * @param k K-mer length
+	 * @return The encoded reverse complement of the k-mer
+	 */
+	public static long reverseComplement(long kmer, int k) {
+		long rtrn = 0;
+		for(int i = 0; i < k; i++) {
+			rtrn = (rtrn << 2) | (3 - (kmer & 3));
+			kmer >>>= 2;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Pass each k-mer of a sequence to a visitor in order of position
+	 * @param seq The sequence
+	 * @param k K-mer length
+	 * @param canonical If true, visit the smaller of each k-mer and its reverse complement
+	 * @param visitor The visitor
+	 */
+	static void visitKmers(Sequence seq, int k, boolean canonical, KmerVisitor visitor) {
+		checkK(k);
+		long mask = (1L << (2 * k)) - 1;
+		int rcShift = 2 * (k - 1);
+		long forward = 0;
+		long reverse = 0;
+		int valid = 0; // Number of valid bases ending at the current position
+		int length = seq.getLength();
+		PackedSequence packed = seq instanceof PackedSequence ? (PackedSequence) seq : null;
+		String bases = packed == null ? seq.getSequenceBases() : null;
+		for(int i = 0; i < length; i++) {
+			int code = packed == null ? code(bases.charAt(i)) : packed.getBaseCode(i);
+			if(code < 0) {
+				valid = 0;
+				continue;
+			}
+			forward = ((forward << 2) | code) & mask;
+			reverse = (reverse >>> 2) | ((long) (3 - code) << rcShift);
+			valid++;
+			if(valid >= k) {
+				visitor.visit(canonical && reverse < forward ? reverse : forward, i - k + 1);
+			}
+		}
+	}
+
+	/**
+	 * Count the k-mers of a sequence
+	 * @param seq The sequence
+	 * @param k K-mer length
+	 * @param canonical If true, count each k-mer together with its reverse complement under the smaller encoding
+	 * @return Table of k-mer counts
+	 */
+	public static KmerTable count(Sequence seq, int k, boolean canonical) {
+		KmerTable rtrn = new KmerTable();
+		addCounts(seq, k, canonical, rtrn);
+		return rtrn;
+	}
+
+	private static void addCounts(Sequence seq, int k, boolean canonical, final KmerTable table) {
+		visitKmers(seq, k, canonical, new KmerVisitor() {
+			@Override
+			public void visit(long kmer, int position) {
+				table.increment(kmer);
+			}
+		});
+	}
+
+	/**
+	 * Count the k-mers of a collection of sequences such as the chromosomes of a genome
+	 * Threads take whole sequences and count them into one shared table through their own
+	 * KmerTable.Counter, so the table is not duplicated per thread.
+	 * @param seqs The sequences
+	 * @param k K-mer length
+	 * @param canonical If true, count each k-mer together with its reverse complement under the smaller encoding
+	 * @param numThreads Number of threads
+	 * @return Table of k-mer counts over all sequences
+	 */
+	public static KmerTable count(final List<? extends Sequence> seqs, final int k, final boolean canonical, int numThreads) {
+		checkK(k);
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		int threads = Math.min(numThreads, Math.max(seqs.size(), 1));
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "kmer-counter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final KmerTable rtrn = new KmerTable();
+		final AtomicInteger nextSeq = new AtomicInteger(0);
+		List<Future<Void>> counters = new ArrayList<Future<Void>>();
+		try {
+			for(int i = 0; i < threads; i++) {
+				counters.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						final KmerTable.Counter counter = rtrn.newCounter();
+						int i;
+						while((i = nextSeq.getAndIncrement()) < seqs.size()) {
+							Sequence seq = seqs.get(i);
+							visitKmers(seq, k, canonical, new KmerVisitor() {
+								@Override
+								public void visit(long kmer, int position) {
+									counter.increment(kmer);
+								}
+							});
+							logger.info("Counted " + k + "-mers of " + seq.getName());
+						}
+						counter.flush();
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> future : counters) {
+				future.get();
+			}
+			logger.info("Counted " + rtrn.size() + " distinct " + k + "-mers in " + seqs.size() + " sequences.");
+			return rtrn;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while counting k-mers", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Error counting k-mers", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package guttmanlab.core.sequence;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SingleInterval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exact index of the positions of all k-mers in a collection of sequences
+ * K-mers are counted first (in parallel, with KmerCounter), and the positions are then stored in one
+ * array grouped by k-mer, with the start of each group kept per slot of the count table. Each position
+ * takes 8 bytes, plus the count table, and there can be at most about 2^31 positions, so the index suits
+ * transcriptomes and sets of chromosomes. Use KmerCounter alone when only counts are needed, e.g. to
+ * check uniqueness across a whole genome (see KmerTable for its memory use).
+ * @author prussell
+ *
+ */
+public class KmerIndex {
+
+	private int k;
+	private List<String> sequenceNames;
+	private KmerTable counts;
+	private int[][] groupStarts; // Start in positions of the group of each slot of each shard of counts
+	private long[] positions; // Sequence number in the high 32 bits and position in the low 32 bits
+	private static Logger logger = Logger.getLogger(KmerIndex.class.getName());
+
+	/**
+	 * @param seqs The sequences to index
+	 * @param k K-mer length
+	 * @param numThreads Number of threads for counting
+	 */
+	public KmerIndex(List<? extends Sequence> seqs, int k, int numThreads) {
+		this.k = k;
+		counts = KmerCounter.count(seqs, k, false, numThreads);
+		sequenceNames = new ArrayList<String>();
+		for(Sequence seq : seqs) {
+			sequenceNames.add(seq.getName());
+		}
+		groupStarts = new int[KmerTable.NUM_SHARDS][];
+		long total = 0;
+		for(int shard = 0; shard < KmerTable.NUM_SHARDS; shard++) {
+			groupStarts[shard] = new int[counts.getCapacity(shard)];
+			for(int slot = 0; slot < groupStarts[shard].length; slot++) {
+				groupStarts[shard][slot] = (int) total;
+				total += counts.getCountAt(shard, slot);
+				if(total > Integer.MAX_VALUE - 8) {
+					throw new IllegalArgumentException("Too many k-mer positions to index");
+				}
+			}
+		}
+		positions = new long[(int) total];
+		// Next free position of each group
+		final int[][] next = new int[KmerTable.NUM_SHARDS][];
+		for(int shard = 0; shard < KmerTable.NUM_SHARDS; shard++) {
+			next[shard] = groupStarts[shard].clone();
+		}
+		for(int i = 0; i < seqs.size(); i++) {
+			final long seqBits = (long) i << 32;
+			KmerCounter.visitKmers(seqs.get(i), k, false, new KmerCounter.KmerVisitor() {
+				@Override
+				public void visit(long kmer, int position) {
+					positions[next[KmerTable.getShard(kmer)][counts.getSlot(kmer)]++] = seqBits | position;
+				}
+			});
+		}
+		logger.info("Indexed " + total + " positions of " + counts.size() + " distinct " + k + "-mers.");
+	}
+
+	/**
+	 * @return K-mer length
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @return Table of k-mer counts on the forward strand of the sequences
+	 */
+	public KmerTable getCounts() {
+		return counts;
+	}
+
+	/**
+	 * @param kmer A k-mer
+	 * @param bothStrands Whether to also count occurrences of the reverse complement
+	 * @return The number of occurrences of the k-mer
+	 */
+	public int getCount(String kmer, boolean bothStrands) {
+		long encoded = encode(kmer);
+		int rtrn = counts.getCount(encoded);
+		if(bothStrands) {
+			long rc = KmerCounter.reverseComplement(encoded, k);
+			if(rc != encoded) {
+				rtrn += counts.getCount(rc);
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param kmer A k-mer
+	 * @param bothStrands Whether to also count occurrences of the reverse complement
+	 * @return Whether the k-mer occurs exactly once
+	 */
+	public boolean isUnique(String kmer, boolean bothStrands) {
+		return getCount(kmer, bothStrands) == 1;
+	}
+
+	/**
+	 * Get the positions of a k-mer in order of sequence and position
+	 * Occurrences of the reverse complement are reported on the negative strand, after all
+	 * forward occurrences.
+	 * @param kmer A k-mer
+	 * @param bothStrands Whether to also find occurrences of the reverse complement
+	 * @return The occurrences of the k-mer
+	 */
+	public List<SingleInterval> getPositions(String kmer, boolean bothStrands) {
+		long encoded = encode(kmer);
+		List<SingleInterval> rtrn = new ArrayList<SingleInterval>();
+		addPositions(encoded, Strand.POSITIVE, rtrn);
+		if(bothStrands) {
+			long rc = KmerCounter.reverseComplement(encoded, k);
+			if(rc != encoded) {
+				addPositions(rc, Strand.NEGATIVE, rtrn);
+			}
+		}
+		return rtrn;
+	}
+
+	private void addPositions(long kmer, Strand strand, List<SingleInterval> rtrn) {
+		int slot = counts.getSlot(kmer);
+		if(slot < 0) {
+			return;
+		}
+		int shard = KmerTable.getShard(kmer);
+		int start = groupStarts[shard][slot];
+		int end = start + counts.getCountAt(shard, slot);
+		for(int i = start; i < end; i++) {
+			String name = sequenceNames.get((int) (positions[i] >>> 32));
+			int position = (int) positions[i];
+			rtrn.add(new SingleInterval(name, position, position + k, strand));
+		}
+	}
+
+	private long encode(String kmer) {
+		if(kmer.length() != k) {
+			throw new IllegalArgumentException("K-mer " + kmer + " does not have length " + k);
+		}
+		return KmerCounter.encode(kmer);
+	}
+
+}
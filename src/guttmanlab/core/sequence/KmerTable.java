@@ -0,0 +1,306 @@
+package guttmanlab.core.sequence;
+
+import java.util.Arrays;
+
+/**
+ * Counts of k-mers encoded as longs by KmerCounter, or of any other non-negative longs
+ * K-mers are spread over NUM_SHARDS shards by the top bits of their hash. Each shard is an open addressing
+ * table with linear probing over primitive arrays, so no object is created per k-mer, and doubles on its
+ * own when it is half full. The table holds up to about NUM_SHARDS * 2^29 (over 10^11) distinct k-mers.
+ * Each distinct k-mer takes 24 to 48 bytes (12-byte slots at 25% to 50% load), e.g. 60 to 120 GB for the
+ * 2.5 * 10^9 distinct 25-mers of a mammalian genome; as shards grow separately, growing needs little
+ * extra memory.
+ * The table is not thread safe, except that several threads can increment counts at once through their
+ * own Counter.
+ * @author prussell
+ *
+ */
+public class KmerTable {
+
+	private Shard[] shards;
+
+	/**
+	 * Number of shards
+	 */
+	public static final int NUM_SHARDS = 1 << 8;
+
+	private static final int SHARD_BITS = 8;
+	private static final long EMPTY = -1; // Encoded k-mers are never negative
+	private static final int MAX_SHARD_CAPACITY = 1 << 30;
+	private static final int MIN_SHARD_CAPACITY = 1 << 4;
+	private static final int COUNTER_BUFFER_SIZE = 1 << 8;
+
+	public KmerTable() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize Expected number of distinct k-mers
+	 */
+	public KmerTable(long expectedSize) {
+		long perShard = expectedSize / NUM_SHARDS + 1;
+		int capacity = MIN_SHARD_CAPACITY;
+		while(capacity < MAX_SHARD_CAPACITY && capacity / 2 < perShard) {
+			capacity <<= 1;
+		}
+		shards = new Shard[NUM_SHARDS];
+		for(int i = 0; i < NUM_SHARDS; i++) {
+			shards[i] = new Shard(capacity);
+		}
+	}
+
+	/**
+	 * @param kmer Encoded k-mer
+	 * @return Hash of the k-mer; the top bits choose the shard and the next bits the slot
+	 */
+	private static long hash(long kmer) {
+		return kmer * 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * @param kmer Encoded k-mer
+	 * @return The shard of the k-mer
+	 */
+	static int getShard(long kmer) {
+		return (int) (hash(kmer) >>> (64 - SHARD_BITS));
+	}
+
+	private static void checkKmer(long kmer) {
+		if(kmer < 0) {
+			throw new IllegalArgumentException("Invalid encoded k-mer " + kmer);
+		}
+	}
+
+	/**
+	 * One open addressing table
+	 */
+	private static class Shard {
+
+		private long[] keys;
+		private int[] counts;
+		private int size;
+		private int shift; // 64 minus the number of bits in a slot index
+
+		Shard(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			counts = new int[capacity];
+			shift = 64 - Integer.numberOfTrailingZeros(capacity);
+			size = 0;
+		}
+
+		/**
+		 * @param kmer Encoded k-mer
+		 * @return The slot holding the k-mer, or the empty slot where it would go
+		 */
+		private int probe(long kmer) {
+			int mask = keys.length - 1;
+			int slot = (int) ((hash(kmer) << SHARD_BITS) >>> shift);
+			while(keys[slot] != EMPTY && keys[slot] != kmer) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		void add(long kmer, int count) {
+			int slot = probe(kmer);
+			if(keys[slot] == EMPTY) {
+				if(size >= keys.length / 2) {
+					grow();
+					slot = probe(kmer);
+				}
+				keys[slot] = kmer;
+				size++;
+			}
+			counts[slot] += count;
+		}
+
+		private void grow() {
+			if(keys.length >= MAX_SHARD_CAPACITY) {
+				throw new IllegalStateException("K-mer table shard is full: " + size + " k-mers");
+			}
+			long[] oldKeys = keys;
+			int[] oldCounts = counts;
+			allocate(2 * keys.length);
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldKeys[i] != EMPTY) {
+					int slot = probe(oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+					size++;
+				}
+			}
+		}
+
+		int getSlot(long kmer) {
+			int slot = probe(kmer);
+			return keys[slot] == EMPTY ? -1 : slot;
+		}
+
+	}
+
+	/**
+	 * Add to the count of a k-mer
+	 * @param kmer Encoded k-mer
+	 * @param count Number to add
+	 */
+	public void add(long kmer, int count) {
+		checkKmer(kmer);
+		shards[getShard(kmer)].add(kmer, count);
+	}
+
+	/**
+	 * Add one to the count of a k-mer
+	 * @param kmer Encoded k-mer
+	 */
+	public void increment(long kmer) {
+		add(kmer, 1);
+	}
+
+	/**
+	 * Add all counts of another table to this table
+	 * @param other Other table
+	 */
+	public void addAll(KmerTable other) {
+		for(Shard shard : other.shards) {
+			for(int i = 0; i < shard.keys.length; i++) {
+				if(shard.keys[i] != EMPTY) {
+					add(shard.keys[i], shard.counts[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param kmer Encoded k-mer
+	 * @return The count of the k-mer
+	 */
+	public int getCount(long kmer) {
+		if(kmer < 0) {
+			return 0;
+		}
+		Shard shard = shards[getShard(kmer)];
+		return shard.counts[shard.probe(kmer)];
+	}
+
+	/**
+	 * @return The number of distinct k-mers
+	 */
+	public long size() {
+		long rtrn = 0;
+		for(Shard shard : shards) {
+			rtrn += shard.size;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return The distinct k-mers in no particular order
+	 */
+	public long[] getKmers() {
+		long size = size();
+		if(size > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Too many k-mers for an array: " + size);
+		}
+		long[] rtrn = new long[(int) size];
+		int i = 0;
+		for(Shard shard : shards) {
+			for(long key : shard.keys) {
+				if(key != EMPTY) {
+					rtrn[i++] = key;
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return A new counter for the current thread
+	 */
+	public Counter newCounter() {
+		return new Counter();
+	}
+
+	/**
+	 * Increments counts of the table from one thread while other threads use their own counters
+	 * K-mers are buffered per shard and added to the shard under its lock when the buffer is full, so
+	 * threads share one table and rarely wait for each other. Call flush() when done.
+	 */
+	public class Counter {
+
+		private long[][] buffers;
+		private int[] sizes;
+
+		private Counter() {
+			buffers = new long[NUM_SHARDS][COUNTER_BUFFER_SIZE];
+			sizes = new int[NUM_SHARDS];
+		}
+
+		/**
+		 * Add one to the count of a k-mer
+		 * @param kmer Encoded k-mer
+		 */
+		public void increment(long kmer) {
+			checkKmer(kmer);
+			int shard = getShard(kmer);
+			buffers[shard][sizes[shard]++] = kmer;
+			if(sizes[shard] == COUNTER_BUFFER_SIZE) {
+				flush(shard);
+			}
+		}
+
+		private void flush(int shard) {
+			long[] buffer = buffers[shard];
+			Shard target = shards[shard];
+			synchronized(target) {
+				for(int i = 0; i < sizes[shard]; i++) {
+					target.add(buffer[i], 1);
+				}
+			}
+			sizes[shard] = 0;
+		}
+
+		/**
+		 * Add all buffered k-mers to the table
+		 */
+		public void flush() {
+			for(int i = 0; i < NUM_SHARDS; i++) {
+				flush(i);
+			}
+		}
+
+	}
+
+	/**
+	 * @param shard A shard
+	 * @return The number of slots in the shard
+	 */
+	int getCapacity(int shard) {
+		return shards[shard].keys.length;
+	}
+
+	/**
+	 * @param kmer Encoded k-mer
+	 * @return The slot holding the k-mer within its shard, or -1 if the k-mer is not in the table
+	 */
+	int getSlot(long kmer) {
+		if(kmer < 0) {
+			return -1;
+		}
+		return shards[getShard(kmer)].getSlot(kmer);
+	}
+
+	/**
+	 * @param shard A shard
+	 * @param slot A slot of the shard
+	 * @return The count in the slot
+	 */
+	int getCountAt(int shard, int slot) {
+		return shards[shard].counts[slot];
+	}
+
+}
@@ -0,0 +1,194 @@
+package guttmanlab.core.sequence;
+
+/**
+ * A nucleotide sequence stored at 2 bits per base
+ * A, C, G and T are packed 32 bases to a long. N positions and lower case positions are recorded in
+ * separate bitmaps, which are only allocated if the sequence contains N or lower case bases, so soft
+ * masked sequences keep their case. Characters other than ACGTN are stored as N.
+ *
+ * Subsequences and reverse complements are views that share the packed storage of the original
+ * sequence, so getSubSequence() and reverseComplement() take constant time and memory.
+ * getSequenceBases() decodes the bases to a new String on every call.
+ * @author prussell
+ *
+ */
+public class PackedSequence extends Sequence {
+
+	private long[] packed; // 2-bit base codes, 32 bases per long
+	private long[] nMask; // Set bits are N, or null if there are no N
+	private long[] lowerMask; // Set bits are lower case, or null if there are no lower case bases
+	private int offset; // Position of the first base of this view in the storage
+	private int length;
+	private boolean reverseComplement; // Whether this view is the reverse complement of the storage
+
+	/**
+	 * Base codes returned by getBaseCode()
+	 */
+	public static final int A = 0;
+	public static final int C = 1;
+	public static final int G = 2;
+	public static final int T = 3;
+	public static final int N = -1;
+
+	private static final char[] UPPER_BASES = {'A', 'C', 'G', 'T'};
+	private static final char[] LOWER_BASES = {'a', 'c', 'g', 't'};
+
+	/**
+	 * @param name Sequence name
+	 * @param seq Sequence bases
+	 */
+	public PackedSequence(String name, String seq) {
+		super(name, null);
+		length = seq.length();
+		packed = new long[(length + 31) / 32];
+		for(int i = 0; i < length; i++) {
+			char c = seq.charAt(i);
+			int code;
+			switch(c) {
+			case 'A': case 'a': code = A; break;
+			case 'C': case 'c': code = C; break;
+			case 'G': case 'g': code = G; break;
+			case 'T': case 't': code = T; break;
+			default:
+				code = A;
+				if(nMask == null) {
+					nMask = new long[(length + 63) / 64];
+				}
+				nMask[i >>> 6] |= 1L << i;
+			}
+			packed[i >>> 5] |= (long) code << ((i & 31) << 1);
+			if(Character.isLowerCase(c)) {
+				if(lowerMask == null) {
+					lowerMask = new long[(length + 63) / 64];
+				}
+				lowerMask[i >>> 6] |= 1L << i;
+			}
+		}
+	}
+
+	/**
+	 * @param seq Sequence to pack
+	 */
+	public PackedSequence(Sequence seq) {
+		this(seq.getName(), seq.getSequenceBases());
+	}
+
+	/**
+	 * A view of the storage of another packed sequence
+	 */
+	private PackedSequence(String name, PackedSequence storage, int offset, int length, boolean reverseComplement) {
+		super(name, null);
+		this.packed = storage.packed;
+		this.nMask = storage.nMask;
+		this.lowerMask = storage.lowerMask;
+		this.offset = offset;
+		this.length = length;
+		this.reverseComplement = reverseComplement;
+	}
+
+	/**
+	 * @param i Position in this sequence
+	 * @return Position in the storage
+	 */
+	private int storagePosition(int i) {
+		if(i < 0 || i >= length) {
+			throw new IndexOutOfBoundsException("Position " + i + " is outside sequence of length " + length);
+		}
+		return reverseComplement ? offset + length - 1 - i : offset + i;
+	}
+
+	private static boolean isSet(long[] mask, int pos) {
+		return mask != null && (mask[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	/**
+	 * @param i Position
+	 * @return The code of the base at the position (A, C, G or T), or N
+	 */
+	public int getBaseCode(int i) {
+		int pos = storagePosition(i);
+		if(isSet(nMask, pos)) {
+			return N;
+		}
+		int code = (int) (packed[pos >>> 5] >>> ((pos & 31) << 1)) & 3;
+		return reverseComplement ? 3 - code : code;
+	}
+
+	/**
+	 * @param i Position
+	 * @return Whether the base at the position is N
+	 */
+	public boolean isN(int i) {
+		return isSet(nMask, storagePosition(i));
+	}
+
+	/**
+	 * @param i Position
+	 * @return The base at the position
+	 */
+	public char charAt(int i) {
+		int pos = storagePosition(i);
+		boolean lower = isSet(lowerMask, pos);
+		if(isSet(nMask, pos)) {
+			return lower ? 'n' : 'N';
+		}
+		int code = (int) (packed[pos >>> 5] >>> ((pos & 31) << 1)) & 3;
+		if(reverseComplement) {
+			code = 3 - code;
+		}
+		return lower ? LOWER_BASES[code] : UPPER_BASES[code];
+	}
+
+	@Override
+	public String getSequenceBases() {
+		char[] rtrn = new char[length];
+		getBases(0, length, rtrn, 0);
+		return new String(rtrn);
+	}
+
+	@Override
+	public void getBases(int start, int end, char[] dest, int destPos) {
+		for(int i = start; i < end; i++) {
+			dest[destPos++] = charAt(i);
+		}
+	}
+
+	@Override
+	public void getBases(int start, int end, byte[] dest, int destPos) {
+		for(int i = start; i < end; i++) {
+			dest[destPos++] = (byte) charAt(i);
+		}
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return An unnamed view of the reverse complement of this sequence
+	 */
+	@Override
+	public PackedSequence reverseComplement() {
+		return new PackedSequence(null, this, offset, length, !reverseComplement);
+	}
+
+	/**
+	 * Get a view of a subsequence
+	 * @param name Name of new sequence to return
+	 * @param start Start position of subsequence
+	 * @param end Position after last position to include
+	 * @return The subsequence
+	 */
+	@Override
+	public PackedSequence getSubSequence(String name, int start, int end) {
+		int from = Math.max(start, 0);
+		int to = Math.min(end, length);
+		if(to < from) {
+			throw new IndexOutOfBoundsException("Invalid subsequence " + start + "-" + end + " of sequence of length " + length);
+		}
+		int storageStart = reverseComplement ? offset + length - to : offset + from;
+		return new PackedSequence(name, this, storageStart, to - from, reverseComplement);
+	}
+
+}
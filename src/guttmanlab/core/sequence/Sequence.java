@@ -26,47 +26,76 @@ public class Sequence {
 		this.sequence=seq;
 	}
 	
+	/**
+	 * Complement of each ASCII character; characters other than ACGTN are their own complement
+	 */
+	private static final char[] COMPLEMENT = new char[128];
+	
+	static {
+		for(char c = 0; c < COMPLEMENT.length; c++) {
+			COMPLEMENT[c] = c;
+		}
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+		COMPLEMENT['T'] = 'A';
+		COMPLEMENT['a'] = 't';
+		COMPLEMENT['c'] = 'g';
+		COMPLEMENT['g'] = 'c';
+		COMPLEMENT['t'] = 'a';
+	}
+	
+	/**
+	 * @param c A base
+	 * @return The complement of the base, keeping case
+	 */
+	public static char complement(char c) {
+		return c < COMPLEMENT.length ? COMPLEMENT[c] : c;
+	}
+	
+	/**
+	 * @param b A base as an ASCII byte
+	 * @return The complement of the base, keeping case
+	 */
+	public static byte complement(byte b) {
+		return b >= 0 ? (byte) COMPLEMENT[b] : b;
+	}
+	
+	/**
+	 * Reverse complement a range of an array in place
+	 * @param bases The bases
+	 * @param start First position of the range
+	 * @param end Position after the last position of the range
+	 */
+	public static void reverseComplement(char[] bases, int start, int end) {
+		for(int i = start, j = end - 1; i <= j; i++, j--) {
+			char left = complement(bases[i]);
+			bases[i] = complement(bases[j]);
+			bases[j] = left;
+		}
+	}
+	
+	/**
+	 * Reverse complement a range of an array of ASCII bases in place
+	 * @param bases The bases
+	 * @param start First position of the range
+	 * @param end Position after the last position of the range
+	 */
+	public static void reverseComplement(byte[] bases, int start, int end) {
+		for(int i = start, j = end - 1; i <= j; i++, j--) {
+			byte left = complement(bases[i]);
+			bases[i] = complement(bases[j]);
+			bases[j] = left;
+		}
+	}
+	
 	/**
 	 * @return A new sequence that is the reverse complement of this sequence
 	 */
 	public Sequence reverseComplement() {
-		Sequence tmpSeq = new Sequence(this.sequence);
-		tmpSeq.reverse();
-		return tmpSeq;
-	}
-	
-	
-	private void reverse() {
-		String seqBases = getSequenceBases();
-		String reversedSeq = "";
-		for(int j = seqBases.length() - 1; j >= 0 ; j--) {
-			char c = seqBases.charAt(j);
-			if('c' == c) {
-				reversedSeq+='g';
-			}else if ('C' == c) {
-				reversedSeq+='G';
-			}else if ('G' == c) {
-				reversedSeq+='C';
-			}else if ('g' == c) {
-				reversedSeq+=('c');
-			}else if ('a' == c) {
-				reversedSeq+=('t');
-			}else if ('A' == c) {
-				reversedSeq+=('T');
-			}else if('t' == c) {
-				reversedSeq+=('a');
-			}else if('T' == c) {
-				reversedSeq+=('A');
-			}else if('N'==c){
-				reversedSeq+=('N');
-			}else if('n'==c){
-				reversedSeq+=('n');
-			}else {
-				reversedSeq+=(c);
-			}
-		}
-		
-		this.sequence = reversedSeq;
+		char[] bases = getSequenceBases().toCharArray();
+		reverseComplement(bases, 0, bases.length);
+		return new Sequence(new String(bases));
 	}
 	
 	/**
@@ -101,29 +130,114 @@ public class Sequence {
 	}
 	
 	/**
-	 * Get the spliced transcribed sequence of an annotation
-	 * Bases are reported in 5' to 3' direction
+	 * Copy bases to an array
+	 * @param start First position to copy
+	 * @param end Position after the last position to copy
+	 * @param dest Array to copy to
+	 * @param destPos Position in the array to copy to
+	 */
+	public void getBases(int start, int end, char[] dest, int destPos) {
+		sequence.getChars(start, end, dest, destPos);
+	}
+	
+	/**
+	 * Copy bases to an array as ASCII bytes
+	 * @param start First position to copy
+	 * @param end Position after the last position to copy
+	 * @param dest Array to copy to
+	 * @param destPos Position in the array to copy to
+	 */
+	public void getBases(int start, int end, byte[] dest, int destPos) {
+		for(int i = start; i < end; i++) {
+			dest[destPos++] = (byte) sequence.charAt(i);
+		}
+	}
+	
+	/**
 	 * @param annot The annotation
-	 * @return Sequence with same name as annotation containing the transcribed sequence
+	 * @return The number of bases of the spliced sequence of the annotation within this sequence
 	 */
-	public Sequence getSubsequence(Annotation annot) {
+	public int getSubsequenceLength(Annotation annot) {
+		int rtrn = 0;
+		Iterator<SingleInterval> blockIter = annot.getBlocks();
+		while(blockIter.hasNext()) {
+			SingleInterval block = blockIter.next();
+			rtrn += Math.max(0, Math.min(block.getReferenceEndPosition(), getLength()) - Math.max(block.getReferenceStartPosition(), 0));
+		}
+		return rtrn;
+	}
+	
+	private static void checkStrand(Annotation annot) {
 		if(!annot.getOrientation().equals(Strand.POSITIVE) && !annot.getOrientation().equals(Strand.NEGATIVE)) {
 			throw new IllegalArgumentException("Strand must be known");
 		}
-		String seq = "";
+	}
+	
+	/**
+	 * Write the spliced transcribed sequence of an annotation to an array
+	 * Bases are written in 5' to 3' direction
+	 * @param annot The annotation
+	 * @param dest Array to write to, with room for getSubsequenceLength(annot) bases after destPos
+	 * @param destPos Position in the array to write to
+	 * @return The number of bases written
+	 */
+	public int getSubsequence(Annotation annot, char[] dest, int destPos) {
+		checkStrand(annot);
+		int pos = destPos;
 		Iterator<SingleInterval> blockIter = annot.getBlocks();
 		while(blockIter.hasNext()) {
 			SingleInterval block = blockIter.next();
-			Sequence blockSequence = getSubSequence("", block.getReferenceStartPosition(), block.getReferenceEndPosition());
-			String forwardBases = blockSequence.getSequenceBases();
-			if(annot.getOrientation().equals(Strand.POSITIVE)) {
-				seq += forwardBases;
-			} else {
-				String rc = new Sequence(forwardBases).reverseComplement().getSequenceBases();
-				seq = rc + seq;
+			int start = Math.max(block.getReferenceStartPosition(), 0);
+			int end = Math.min(block.getReferenceEndPosition(), getLength());
+			if(end > start) {
+				getBases(start, end, dest, pos);
+				pos += end - start;
 			}
 		}
-		return new Sequence(annot.getName(), seq);
+		if(annot.getOrientation().equals(Strand.NEGATIVE)) {
+			reverseComplement(dest, destPos, pos);
+		}
+		return pos - destPos;
+	}
+	
+	/**
+	 * Write the spliced transcribed sequence of an annotation to an array as ASCII bytes
+	 * Bases are written in 5' to 3' direction
+	 * @param annot The annotation
+	 * @param dest Array to write to, with room for getSubsequenceLength(annot) bases after destPos
+	 * @param destPos Position in the array to write to
+	 * @return The number of bases written
+	 */
+	public int getSubsequence(Annotation annot, byte[] dest, int destPos) {
+		checkStrand(annot);
+		int pos = destPos;
+		Iterator<SingleInterval> blockIter = annot.getBlocks();
+		while(blockIter.hasNext()) {
+			SingleInterval block = blockIter.next();
+			int start = Math.max(block.getReferenceStartPosition(), 0);
+			int end = Math.min(block.getReferenceEndPosition(), getLength());
+			if(end > start) {
+				getBases(start, end, dest, pos);
+				pos += end - start;
+			}
+		}
+		if(annot.getOrientation().equals(Strand.NEGATIVE)) {
+			reverseComplement(dest, destPos, pos);
+		}
+		return pos - destPos;
+	}
+	
+	/**
+	 * Get the spliced transcribed sequence of an annotation
+	 * Bases are reported in 5' to 3' direction
+	 * @param annot The annotation
+	 * @return Sequence with same name as annotation containing the transcribed sequence
+	 */
+	public Sequence getSubsequence(Annotation annot) {
+		checkStrand(annot);
+		char[] bases = new char[getSubsequenceLength(annot)];
+		getSubsequence(annot, bases, 0);
+		return new Sequence(annot.getName(), new String(bases));
 	}
 	
 	/**
@@ -149,11 +263,11 @@ public class Sequence {
 	}
 	
 	public boolean equals(Object o) {
-		if(!o.getClass().equals(Sequence.class)) {
+		if(!(o instanceof Sequence)) {
 			return false;
 		}
 		Sequence otherSeq = (Sequence)o;
-		if(!getName().equals(otherSeq.getName()))	{
+		if(getName() == null ? otherSeq.getName() != null : !getName().equals(otherSeq.getName()))	{
 			return false;
 		}
 		if(!getSequenceBases().equals(otherSeq.getSequenceBases()))	{
@@ -1,9 +1,19 @@
 package guttmanlab.core.serialize;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Properties;
 import java.util.TreeMap;
 
 import org.apache.avro.Schema;
@@ -22,14 +32,19 @@ import org.apache.log4j.Logger;
  */
 public abstract class AbstractAvroIndex<T extends Comparable<T>> implements AvroIndex<T> {
 	
-	private String avroFileName; // The avro data file based on the schema
+	protected String avroFileName; // The avro data file based on the schema
 	protected String indexFileName; // The index written by this class
 	protected TreeMap<T, Long> positionsByKey; // File position of record at beginning of each block
 	protected DataFileReader<GenericRecord> reader; // Reader for avro file
 	private Schema schema; // Data schema
+	private Schema readerSchema; // Schema records are decoded with, a projection of the data schema or the data schema itself
 	protected String indexedField; // The name of the field in the schema that is indexed by this index
 	private static Logger logger = Logger.getLogger(AbstractAvroIndex.class.getName());
 	private static String VALIDATED_INDEX_SUFFIX = ".VALIDATED";
+	private static String INDEX_HASH = "index.md5";
+	private static String INDEX_LENGTH = "index.length";
+	private static String INDEX_LAST_MODIFIED = "index.lastModified";
+	private static String AVRO_LENGTH = "avro.length";
 	
 	/**
 	 * Get index file name corresponding to an avro file name
@@ -57,6 +72,7 @@ public abstract class AbstractAvroIndex<T extends Comparable<T>> implements Avro
 		schema = new Schema.Parser().parse(new File(schemaFile));
 		indexedField = indexedFieldName;
 		//genericRecord = new GenericData.Record(schema);
+		readerSchema = schema;
 		DatumReader<GenericRecord> datumReader = new GenericDatumReader<GenericRecord>(schema);
 		reader = new DataFileReader<GenericRecord>(new File(avroFileName), datumReader);
 		loadIndex(!indexIsValidated());
@@ -64,7 +80,79 @@ public abstract class AbstractAvroIndex<T extends Comparable<T>> implements Avro
 	}
 	
 	/**
-	 * Check if there is a validation file with the index file that is newer than the index
+	 * Share the loaded index of another index object and open a separate reader for the same avro file
+	 * The index of the other object must not be reloaded while this object is in use
+	 * @param shared Index object whose index is shared
+	 * @throws IOException
+	 */
+	protected AbstractAvroIndex(AbstractAvroIndex<T> shared) throws IOException {
+		avroFileName = shared.avroFileName;
+		indexFileName = shared.indexFileName;
+		positionsByKey = shared.positionsByKey;
+		schema = shared.schema;
+		indexedField = shared.indexedField;
+		readerSchema = shared.readerSchema;
+		DatumReader<GenericRecord> datumReader = new GenericDatumReader<GenericRecord>(readerSchema);
+		reader = new DataFileReader<GenericRecord>(new File(avroFileName), datumReader);
+	}
+	
+	/**
+	 * Only decode some fields of each record. Other fields are skipped while reading and are null in the
+	 * returned records. The indexed field is always decoded.
+	 * @param fieldNames Names of fields to decode, or null to decode all fields
+	 * @throws IOException
+	 */
+	public void setProjection(Collection<String> fieldNames) throws IOException {
+		Schema projection = fieldNames == null ? schema : getProjection(schema, fieldNames, indexedField);
+		reader.close();
+		readerSchema = projection;
+		reader = new DataFileReader<GenericRecord>(new File(avroFileName), new GenericDatumReader<GenericRecord>(readerSchema));
+	}
+	
+	/**
+	 * @return The schema records are decoded with, which is the data schema unless a projection is set
+	 */
+	public Schema getReaderSchema() {
+		return readerSchema;
+	}
+	
+	/**
+	 * Get a record schema with a subset of the fields of another record schema
+	 * @param schema Record schema
+	 * @param fieldNames Names of fields to keep
+	 * @param requiredField Name of a field to keep even if not in the list, or null
+	 * @return Schema with the same name and the kept fields in their original order
+	 */
+	public static Schema getProjection(Schema schema, Collection<String> fieldNames, String requiredField) {
+		for(String fieldName : fieldNames) {
+			if(schema.getField(fieldName) == null) {
+				throw new IllegalArgumentException("Schema has no field " + fieldName);
+			}
+		}
+		List<Schema.Field> fields = new ArrayList<Schema.Field>();
+		for(Schema.Field field : schema.getFields()) {
+			if(fieldNames.contains(field.name()) || field.name().equals(requiredField)) {
+				fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultValue(), field.order()));
+			}
+		}
+		Schema rtrn = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError());
+		rtrn.setFields(fields);
+		return rtrn;
+	}
+	
+	/**
+	 * Close the avro file reader
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+	
+	/**
+	 * Check if there is a validation file for the index.
+	 * If the validation file records the hash of the validated index, the index is validated if its size and
+	 * modification time are unchanged or, failing that, if its contents still have the same hash.
+	 * Validation files without a hash are accepted if they are newer than the index.
 	 * @return True iff the index has been validated
 	 * @throws IOException 
 	 */
@@ -78,10 +166,36 @@ public abstract class AbstractAvroIndex<T extends Comparable<T>> implements Avro
 		// Check that validation file exists
 		File validatedFile = new File(getValidationFileName());
 		if(!validatedFile.exists()) return false;
-		// Check that validation file is newer than index
-		if(indexFile.lastModified() > validatedFile.lastModified()) {
-			validatedFile.delete();
-			return false;
+		Properties validated = new Properties();
+		InputStream in = new FileInputStream(validatedFile);
+		try {
+			validated.load(in);
+		} finally {
+			in.close();
+		}
+		String hash = validated.getProperty(INDEX_HASH);
+		if(hash == null) {
+			// Check that validation file is newer than index
+			if(indexFile.lastModified() > validatedFile.lastModified()) {
+				validatedFile.delete();
+				return false;
+			}
+		} else {
+			if(!Long.toString(avroFile.length()).equals(validated.getProperty(AVRO_LENGTH))) {
+				validatedFile.delete();
+				return false;
+			}
+			boolean unchanged = Long.toString(indexFile.length()).equals(validated.getProperty(INDEX_LENGTH)) 
+					&& Long.toString(indexFile.lastModified()).equals(validated.getProperty(INDEX_LAST_MODIFIED));
+			if(!unchanged) {
+				String currentHash = getIndexHash(indexFileName);
+				if(!hash.equals(currentHash)) {
+					validatedFile.delete();
+					return false;
+				}
+				logger.info("Index " + indexFileName + " was touched but its contents match the validated index.");
+				reportIndexValidated(currentHash);
+			}
 		}
 		logger.info("Index " + indexFileName + " is validated.");
 		return true;
@@ -92,10 +206,64 @@ public abstract class AbstractAvroIndex<T extends Comparable<T>> implements Avro
 	 * @throws IOException
 	 */
 	public void reportIndexValidated() throws IOException {
-		File validatedFile = new File(getValidationFileName());
-		@SuppressWarnings("unused")
-		boolean created = validatedFile.createNewFile();
-		validatedFile.setLastModified(System.currentTimeMillis());
+		reportIndexValidated(getIndexHash(indexFileName));
+	}
+	
+	/**
+	 * Write the validation file for the index, recording the hash of the validated index
+	 * @param indexHash Hash of the index file contents
+	 * @throws IOException
+	 */
+	protected void reportIndexValidated(String indexHash) throws IOException {
+		File indexFile = new File(indexFileName).getCanonicalFile();
+		Properties validated = new Properties();
+		validated.setProperty(INDEX_HASH, indexHash);
+		validated.setProperty(INDEX_LENGTH, Long.toString(indexFile.length()));
+		validated.setProperty(INDEX_LAST_MODIFIED, Long.toString(indexFile.lastModified()));
+		validated.setProperty(AVRO_LENGTH, Long.toString(new File(avroFileName).length()));
+		OutputStream out = new FileOutputStream(getValidationFileName());
+		try {
+			validated.store(out, "Validated index " + indexFile.getPath());
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get the MD5 hash of the contents of an index file
+	 * @param indexFile Index file name
+	 * @return Hex string of the hash
+	 * @throws IOException
+	 */
+	public static String getIndexHash(String indexFile) throws IOException {
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new FileInputStream(indexFile);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder rtrn = new StringBuilder();
+		for(byte b : digest.digest()) {
+			rtrn.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+		}
+		return rtrn.toString();
+	}
+	
+	/**
+	 * @return The data schema
+	 */
+	protected Schema getSchema() {
+		return schema;
 	}
 	
 	/**
@@ -114,7 +282,7 @@ public abstract class AbstractAvroIndex<T extends Comparable<T>> implements Avro
 	 * or if the first record containing the key happens to be the first record of a block,
 	 * this method will return the beginning of the previous block
 	 */
-	private long getLowerBoundStartPos(T key) {
+	protected long getLowerBoundStartPos(T key) {
 		// The file position of the last key before the key of interest
 		// Head map is exclusive in case the key extends over multiple blocks
 		try {
@@ -168,8 +336,8 @@ public abstract class AbstractAvroIndex<T extends Comparable<T>> implements Avro
 		DataFileReader<GenericRecord> dataFileReader = new DataFileReader<GenericRecord>(new File(inputAvro), datumReader);
 		// Write index to a file
 		FileWriter w = new FileWriter(getIndexFileName(inputAvro));
-		// Go to the first sync point
-		dataFileReader.previousSync();
+		// Go to the first block. The reader buffers ahead, so tell() is only a block start right after a seek.
+		dataFileReader.sync(0);
 		while (true) {
 			long pos = dataFileReader.tell();
 			try {
@@ -1,6 +1,7 @@
 package guttmanlab.core.serialize;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.avro.generic.GenericRecord;
@@ -42,5 +43,15 @@ public interface AvroIndex<T extends Comparable<T>> {
 	 * @throws IOException 
 	 */
 	public <P extends GenericRecord> List<P> get(T key) throws IOException;
+	
+	/**
+	 * Get the records for many keys in one pass over the file
+	 * Keys are sorted and deduplicated, and each block of the avro file is read at most once
+	 * Other queries on this index should not be made until the returned iterator is exhausted
+	 * @param keys The keys, in any order
+	 * @return One group per distinct key, in sorted key order, with an empty list for keys that are not in the file
+	 * @throws IOException
+	 */
+	public Iterator<? extends KeyRecords<T, ? extends GenericRecord>> getAll(Iterable<T> keys) throws IOException;
 
 }
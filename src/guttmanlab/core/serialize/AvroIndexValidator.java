@@ -0,0 +1,240 @@
+package guttmanlab.core.serialize;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.log4j.Logger;
+
+/**
+ * Checks that the first record of each indexed block of an avro file has the key reported by the index.
+ *
+ * The checks are split into ranges of consecutive blocks that are validated in parallel, each with its
+ * own DataFileReader. Completed ranges are recorded in a checkpoint file next to the index together with
+ * the hash of the index, so an interrupted validation of the same index resumes where it stopped.
+ * The checkpoint file is deleted when validation finishes.
+ */
+class AvroIndexValidator {
+
+	private String avroFileName;
+	private Schema schema;
+	private String indexedField;
+	private String indexHash;
+	private File checkpointFile;
+	private int numThreads;
+	private List<String> keys;
+	private List<Long> syncPositions;
+	private List<Long> blockPositions;
+	private static Logger logger = Logger.getLogger(AvroIndexValidator.class.getName());
+	private static String CHECKPOINT_SUFFIX = ".VALIDATING";
+
+	/**
+	 * Number of blocks in each range
+	 */
+	public static final int RANGE_SIZE = 10000;
+
+	/**
+	 * @param avroFileName Avro file
+	 * @param schema Data schema
+	 * @param indexedField The name of the indexed field
+	 * @param indexFileName The index being validated
+	 * @param indexHash Hash of the index file contents
+	 * @param numThreads Number of validation threads
+	 * @throws IOException
+	 */
+	AvroIndexValidator(String avroFileName, Schema schema, String indexedField, String indexFileName, String indexHash, int numThreads) throws IOException {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		this.avroFileName = avroFileName;
+		this.schema = schema;
+		this.indexedField = indexedField;
+		this.indexHash = indexHash;
+		this.checkpointFile = new File(new File(indexFileName).getCanonicalPath() + CHECKPOINT_SUFFIX);
+		this.numThreads = numThreads;
+		this.keys = new ArrayList<String>();
+		this.syncPositions = new ArrayList<Long>();
+		this.blockPositions = new ArrayList<Long>();
+	}
+
+	/**
+	 * Add a block to check, in file order
+	 * @param key The key reported by the index for the first record of the block
+	 * @param syncPosition Position to sync the reader from so that the next record is the first record of the block
+	 * @param blockPosition The position of the block reported by the index
+	 */
+	void addCheck(String key, long syncPosition, long blockPosition) {
+		keys.add(key);
+		syncPositions.add(Long.valueOf(syncPosition));
+		blockPositions.add(Long.valueOf(blockPosition));
+	}
+
+	/**
+	 * Validate all blocks that were not validated by an earlier interrupted run
+	 * @return Keys whose first record could not be read and should be left out of the index
+	 * @throws IOException
+	 * @throws IllegalStateException if a block does not start with the key reported by the index
+	 */
+	Collection<String> validate() throws IOException {
+		int numRanges = (keys.size() + RANGE_SIZE - 1) / RANGE_SIZE;
+		final Set<String> skipped = new TreeSet<String>();
+		Set<Integer> completed = readCheckpoint(skipped);
+		if(!completed.isEmpty()) {
+			logger.info("Resuming index validation: " + completed.size() + " of " + numRanges + " ranges already validated.");
+		}
+		final FileWriter checkpoint = new FileWriter(checkpointFile, !completed.isEmpty());
+		if(completed.isEmpty()) {
+			checkpoint.write("hash\t" + indexHash + "\n");
+			checkpoint.flush();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "avro-index-validator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		LinkedList<Future<Void>> pending = new LinkedList<Future<Void>>();
+		final int[] numDone = new int[] {completed.size()};
+		final int totalRanges = numRanges;
+		try {
+			for(int i = 0; i < numRanges; i++) {
+				if(completed.contains(Integer.valueOf(i))) {
+					continue;
+				}
+				final int range = i;
+				pending.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						Collection<String> rangeSkipped = validateRange(range);
+						synchronized(checkpoint) {
+							for(String key : rangeSkipped) {
+								checkpoint.write("skip\t" + range + "\t" + key + "\n");
+							}
+							checkpoint.write("done\t" + range + "\n");
+							checkpoint.flush();
+							skipped.addAll(rangeSkipped);
+							numDone[0]++;
+							if(numDone[0] % 10 == 0) {
+								logger.info("Validated " + numDone[0] + " of " + totalRanges + " index ranges");
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> future : pending) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while validating index", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IllegalStateException) {
+				throw (IllegalStateException) cause;
+			}
+			throw new IOException("Error validating index", cause);
+		} finally {
+			pool.shutdownNow();
+			checkpoint.close();
+		}
+		checkpointFile.delete();
+		return skipped;
+	}
+
+	/**
+	 * Validate one range of blocks with a dedicated reader
+	 * @param range The range number
+	 * @return Keys whose first record could not be read
+	 * @throws IOException
+	 */
+	private Collection<String> validateRange(int range) throws IOException {
+		Collection<String> rtrn = new ArrayList<String>();
+		int end = Math.min(keys.size(), (range + 1) * RANGE_SIZE);
+		DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(new File(avroFileName), new GenericDatumReader<GenericRecord>(schema));
+		try {
+			GenericRecord record = null;
+			for(int i = range * RANGE_SIZE; i < end; i++) {
+				String key = keys.get(i);
+				reader.sync(syncPositions.get(i).longValue());
+				try {
+					record = reader.next(record);
+				} catch(AvroRuntimeException e) {
+					logger.warn("Caught exception. Skipping record at position " + blockPositions.get(i) + ": " + e.getMessage());
+					rtrn.add(key);
+					continue;
+				}
+				String recordKey = record.get(indexedField).toString();
+				if(!recordKey.equals(key)) {
+					throw new IllegalStateException("At file block " + reader.tell() + ": Index validation error: beginning of block " + blockPositions.get(i) + " in avro file has key " + recordKey + ". Index has " + key + ".");
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Read the ranges completed by an earlier run on the same index
+	 * @param skipped Collection to add the skipped keys of completed ranges to
+	 * @return The completed ranges, or an empty set if there is no checkpoint for this index
+	 * @throws IOException
+	 */
+	private Set<Integer> readCheckpoint(Collection<String> skipped) throws IOException {
+		Set<Integer> rtrn = new HashSet<Integer>();
+		if(!checkpointFile.exists()) {
+			return rtrn;
+		}
+		Collection<String> skippedInFile = new ArrayList<String>();
+		BufferedReader b = new BufferedReader(new FileReader(checkpointFile));
+		try {
+			String line = b.readLine();
+			if(line == null || !line.equals("hash\t" + indexHash)) {
+				logger.info("Ignoring validation checkpoint for a different index: " + checkpointFile.getPath());
+				return rtrn;
+			}
+			while((line = b.readLine()) != null) {
+				String[] tokens = line.split("\t", 3);
+				if(tokens[0].equals("done") && tokens.length == 2) {
+					rtrn.add(Integer.valueOf(tokens[1]));
+				} else if(tokens[0].equals("skip") && tokens.length == 3) {
+					skippedInFile.add(tokens[1] + "\t" + tokens[2]);
+				}
+			}
+		} finally {
+			b.close();
+		}
+		// Only keep skipped keys from ranges that were recorded as done
+		for(String skip : skippedInFile) {
+			String[] tokens = skip.split("\t", 2);
+			if(rtrn.contains(Integer.valueOf(tokens[0]))) {
+				skipped.add(tokens[1]);
+			}
+		}
+		return rtrn;
+	}
+
+}
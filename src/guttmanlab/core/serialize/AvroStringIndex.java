@@ -3,11 +3,14 @@ package guttmanlab.core.serialize;
 import guttmanlab.core.util.StringParser;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -28,6 +31,18 @@ public class AvroStringIndex extends AbstractAvroIndex<String> {
 
 	private static Logger logger = Logger.getLogger(AvroStringIndex.class.getName());
 	public static long MAX_RECORDS_TO_GET = Long.MAX_VALUE; //If there are more than this many records with the key, throw an IllegalArgumentException
+	public static int VALIDATION_THREADS = Runtime.getRuntime().availableProcessors(); // Number of threads used to validate the index
+	private MappedStringIndex mappedIndex; // Binary index, or null if the text index is loaded into positionsByKey
+	private volatile DecodedBlockCache blockCache; // Cache of decoded blocks for seek and get, or null if not caching
+	
+	/**
+	 * Get binary index file name corresponding to an avro file name
+	 * @param avroFile Avro file name
+	 * @return Binary index file name
+	 */
+	public static String getBinaryIndexFileName(String avroFile) {
+		return getIndexFileName(avroFile) + ".bin";
+	}
 	
 	/**
 	 * Read index information from index file
@@ -38,21 +53,81 @@ public class AvroStringIndex extends AbstractAvroIndex<String> {
 	public AvroStringIndex(String avroFileName, String schemaFile, String indexedFieldName) throws IOException {
 		super(avroFileName, schemaFile, indexedFieldName);
 	}
+	
+	/**
+	 * Share the loaded index and block cache of another index and open a separate reader for the same avro file
+	 * @param shared Index whose index and block cache are shared
+	 * @throws IOException
+	 */
+	protected AvroStringIndex(AvroStringIndex shared) throws IOException {
+		super(shared);
+		mappedIndex = shared.mappedIndex;
+		blockCache = shared.blockCache;
+	}
 
+	/**
+	 * Load the index. If the index has been validated and a binary index newer than the text index
+	 * exists, the binary index is memory-mapped. Otherwise the text index is read and a binary index
+	 * is written for later loads.
+	 */
 	@Override
 	public void loadIndex(boolean validate) throws IOException {
+		File binaryFile = new File(getBinaryIndexFileName(avroFileName));
+		if(!validate && binaryFile.exists() && binaryFile.lastModified() >= new File(indexFileName).lastModified()) {
+			logger.info("Mapping binary index " + binaryFile.getPath());
+			positionsByKey = null;
+			mappedIndex = new MappedStringIndex(binaryFile);
+			return;
+		}
+		loadTextIndex(validate);
+		try {
+			MappedStringIndex.write(positionsByKey, binaryFile);
+		} catch(IOException e) {
+			logger.warn("Could not write binary index " + binaryFile.getPath() + ": " + e.getMessage());
+		}
+	}
+	
+	@Override
+	protected long getLowerBoundStartPos(String key) {
+		if(mappedIndex == null) {
+			return super.getLowerBoundStartPos(key);
+		}
+		int lower = mappedIndex.lowerIndex(key);
+		if(lower < 0) {
+			if(mappedIndex.numKeys() > 0 && mappedIndex.getKey(0).equals(key)) {
+				throw new IllegalStateException("Query does not work for the very first barcode in file: " + key + ". TODO: fix.");
+			}
+			throw new NoSuchElementException("Key " + key + " not found.");
+		}
+		return mappedIndex.getPosition(lower);
+	}
+	
+	/**
+	 * Read the text index into positionsByKey
+	 * @param validate Check that the index is valid. Index order is checked while reading; blocks of the
+	 * avro file are checked in parallel by AvroIndexValidator with VALIDATION_THREADS threads.
+	 * @throws IOException
+	 */
+	private void loadTextIndex(boolean validate) throws IOException {
 		logger.info("");
 		logger.info("Reading index from file " + indexFileName + "...");
+		mappedIndex = null;
 		positionsByKey = new TreeMap<String, Long>();
+		String indexHash = null;
+		AvroIndexValidator validator = null;
+		if(validate) {
+			indexHash = getIndexHash(indexFileName);
+			validator = new AvroIndexValidator(avroFileName, getSchema(), indexedField, indexFileName, indexHash, VALIDATION_THREADS);
+		}
 		FileReader r = new FileReader(indexFileName);
 		BufferedReader b = new BufferedReader(r);
 		StringParser s = new StringParser();
 		long previousPos = 0;
 		long currentPos = 0;
 		String[] previousKey = new String[1];
-		Collection<Long> messagesWritten = new TreeSet<Long>();
-		while(b.ready()) {
-			s.parse(b.readLine());
+		String line = null;
+		while((line = b.readLine()) != null) {
+			s.parse(line);
 			String key = s.asString(0);
 			currentPos = s.asLong(1);
 			// Check that the block numbers are increasing
@@ -65,48 +140,167 @@ public class AvroStringIndex extends AbstractAvroIndex<String> {
 			if(!key.equals(previousKey[0])) {
 				// We've found a new key
 				previousKey[0] = key;
-				if(validate) {
-					// Check that the first record in this block has the reported key
-					GenericData.Record record = null;
-					reader.sync(previousPos);
-					try {
-						record = new GenericData.Record((Record) reader.next(), true);
-					} catch(AvroRuntimeException e) {
-						e.printStackTrace();
-						logger.warn("Caught exception. Skipping record at position " + currentPos);
-						continue;
-					}
-					String recordKey = record.get(indexedField).toString();
-					if(!recordKey.equals(key)) {
-						b.close();
-						throw new IllegalStateException("At file block " + reader.tell() + ": Index validation error: beginning of block " + currentPos + " in avro file has key " + recordKey + ". Index has " + key + ".");
-					}
-				}
 				Long prevVal = positionsByKey.put(key, Long.valueOf(currentPos));
 				if(validate) {
 					if(prevVal != null) {
 						b.close();
 						throw new IllegalStateException("Key " + key + " was already in map with value " + prevVal);
 					}
-					long nearestMillion = currentPos - (currentPos % 1000000);
-					if(nearestMillion % 10000000 == 0 && !messagesWritten.contains(Long.valueOf(nearestMillion))) {
-						logger.info("Index position " + nearestMillion);
-						messagesWritten.add(Long.valueOf(nearestMillion));
-					}				
+					// Check later that the first record in this block has the reported key
+					validator.addCheck(key, previousPos, currentPos);
 				}
 			}
 			previousPos = currentPos;
 		}
 		b.close();
 		if(validate) {
-			reportIndexValidated();
+			logger.info("Validating " + positionsByKey.size() + " index blocks with " + VALIDATION_THREADS + " threads...");
+			for(String key : validator.validate()) {
+				positionsByKey.remove(key);
+			}
+			reportIndexValidated(indexHash);
+		}
+	}
+	
+
+	/**
+	 * Get the start position of the last indexed block before the first block containing the key
+	 * @param key The key
+	 * @return The block position, or -1 if no indexed block has a smaller key
+	 */
+	private long getBatchStartPos(String key) {
+		if(mappedIndex != null) {
+			int lower = mappedIndex.lowerIndex(key);
+			return lower < 0 ? -1 : mappedIndex.getPosition(lower);
+		}
+		Map.Entry<String, Long> lower = positionsByKey.lowerEntry(key);
+		return lower == null ? -1 : lower.getValue().longValue();
+	}
+	
+	@Override
+	public Iterator<KeyRecords<String, GenericRecord>> getAll(Iterable<String> keys) throws IOException {
+		return getAll(keys, null, null);
+	}
+	
+	/**
+	 * Get the records for many keys in one pass over the file
+	 * Optionally exclude records with some attribute contained in a set of values to exclude
+	 * Keys are sorted and deduplicated. The reader only seeks forward, when the next key starts in a block
+	 * after the current one, so each block is decoded at most once.
+	 * Other queries on this index should not be made until the returned iterator is exhausted
+	 * @param keys The keys, in any order
+	 * @param nameOfAttributeForExclusionSet The name of the attribute to check for exclusion, or null if not using
+	 * @param attributeValuesToExclude The attribute values to exclude, or null if not using
+	 * @return One group per distinct key, in sorted key order, with an empty list for keys that are not in the file
+	 * @throws IOException
+	 */
+	public Iterator<KeyRecords<String, GenericRecord>> getAll(Iterable<String> keys, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
+		TreeSet<String> sortedKeys = new TreeSet<String>();
+		for(String key : keys) {
+			sortedKeys.add(key);
 		}
+		return new BatchGetIterator(sortedKeys.iterator(), nameOfAttributeForExclusionSet, attributeValuesToExclude);
 	}
 	
+	/**
+	 * Streams the records for sorted keys, reading forward through the file
+	 * @author prussell
+	 *
+	 */
+	private class BatchGetIterator implements Iterator<KeyRecords<String, GenericRecord>> {
+		
+		private Iterator<String> sortedKeys;
+		private String nameOfAttributeForExclusionSet;
+		private Collection<String> attributeValuesToExclude;
+		private GenericData.Record pending; // The first record after the last key, which may belong to the next key
+		private boolean positioned; // Whether the reader has been positioned by this iterator
+		private boolean atEnd; // Whether the end of the file has been reached
+		
+		public BatchGetIterator(Iterator<String> sortedKeys, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) {
+			this.sortedKeys = sortedKeys;
+			this.nameOfAttributeForExclusionSet = nameOfAttributeForExclusionSet;
+			this.attributeValuesToExclude = attributeValuesToExclude;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return sortedKeys.hasNext();
+		}
+
+		@Override
+		public KeyRecords<String, GenericRecord> next() {
+			String key = sortedKeys.next();
+			try {
+				return new KeyRecords<String, GenericRecord>(key, getRecords(key));
+			} catch(IOException e) {
+				throw new AvroRuntimeException(e);
+			}
+		}
+		
+		private List<GenericRecord> getRecords(String key) throws IOException {
+			List<GenericRecord> rtrn = new ArrayList<GenericRecord>();
+			if(atEnd) {
+				// All records are before an earlier, smaller key
+				return rtrn;
+			}
+			if(pending == null || pending.get(indexedField).toString().compareTo(key) < 0) {
+				// Seek only if the key starts after the block that was read last
+				long start = getBatchStartPos(key);
+				if(!positioned || start > reader.tell()) {
+					if(start < 0) {
+						reader.sync(0);
+					} else {
+						reader.seek(start);
+					}
+					positioned = true;
+					pending = null;
+				}
+			}
+			while(true) {
+				GenericData.Record record = pending;
+				pending = null;
+				if(record == null) {
+					if(!reader.hasNext()) {
+						atEnd = true;
+						break;
+					}
+					record = new GenericData.Record((Record) reader.next(), true);
+				}
+				int compare = record.get(indexedField).toString().compareTo(key);
+				if(compare < 0) {
+					continue;
+				}
+				if(compare > 0) {
+					pending = record;
+					break;
+				}
+				if(nameOfAttributeForExclusionSet != null && attributeValuesToExclude != null) {
+					String attribute = record.get(nameOfAttributeForExclusionSet).toString();
+					if(attributeValuesToExclude.contains(attribute)) {
+						continue;
+					}
+				}
+				rtrn.add(record);
+			}
+			if(rtrn.size() > MAX_RECORDS_TO_GET) {
+				throw new IllegalArgumentException("Key " + key + " has " + rtrn.size() + " records, more than the max of " + MAX_RECORDS_TO_GET + ".");
+			}
+			return rtrn;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public GenericRecord seek(String key) throws IOException {
+		if(blockCache != null) {
+			return seekCached(key);
+		}
 		seekToBlockStart(key);
 		while(true) {
 			try {
@@ -144,6 +338,9 @@ public class AvroStringIndex extends AbstractAvroIndex<String> {
 	 * @throws IOException
 	 */
 	public List<GenericRecord> get(String key, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
+		if(blockCache != null) {
+			return getCached(key, nameOfAttributeForExclusionSet, attributeValuesToExclude);
+		}
 		List<GenericRecord> rtrn = new ArrayList<GenericRecord>();
 		try {
 			GenericData.Record first = new GenericData.Record((Record) seek(key), true);
@@ -192,4 +389,129 @@ public class AvroStringIndex extends AbstractAvroIndex<String> {
 	}
 	
 	
+	/**
+	 * Serve seek() and get() from a cache of decoded blocks
+	 * Records returned by cached lookups are shared with the cache and must not be modified
+	 * Batch lookups with getAll() read the file directly
+	 * @param cache The cache, or null to read the file on every lookup. Only share a cache between indexes of the same avro file with the same projection.
+	 */
+	public void setBlockCache(DecodedBlockCache cache) {
+		blockCache = cache;
+	}
+	
+	/**
+	 * Only decode some fields of each record, and clear the block cache, which holds records decoded
+	 * with the previous projection
+	 */
+	@Override
+	public void setProjection(Collection<String> fieldNames) throws IOException {
+		super.setProjection(fieldNames);
+		if(blockCache != null) {
+			blockCache.clear();
+		}
+	}
+	
+	/**
+	 * @return The cache of decoded blocks, or null if lookups are not cached
+	 */
+	public DecodedBlockCache getBlockCache() {
+		return blockCache;
+	}
+	
+	/**
+	 * Get a decoded block from the cache, or decode it from the file and cache it
+	 * @param position File position of the block
+	 * @return The block
+	 * @throws IOException
+	 */
+	private DecodedBlockCache.Block getBlock(long position) throws IOException {
+		DecodedBlockCache.Block rtrn = blockCache.get(position);
+		if(rtrn != null) {
+			return rtrn;
+		}
+		List<GenericRecord> records = new ArrayList<GenericRecord>();
+		reader.seek(position);
+		long nextBlockPosition = -1;
+		while(reader.hasNext()) {
+			records.add(reader.next());
+			// The reader moves its sync point to the next block after the last record of a block
+			if(reader.previousSync() != position) {
+				nextBlockPosition = reader.previousSync();
+				break;
+			}
+		}
+		if(nextBlockPosition >= 0 && !reader.hasNext()) {
+			nextBlockPosition = -1;
+		}
+		rtrn = new DecodedBlockCache.Block(records, nextBlockPosition);
+		blockCache.put(position, rtrn);
+		return rtrn;
+	}
+	
+	private GenericRecord seekCached(String key) throws IOException {
+		long position = getLowerBoundStartPos(key);
+		while(position >= 0) {
+			DecodedBlockCache.Block block = getBlock(position);
+			for(GenericRecord record : block.getRecords()) {
+				int compare = record.get(indexedField).toString().compareTo(key);
+				if(compare == 0) {
+					return record;
+				}
+				if(compare > 0) {
+					throw new NoSuchElementException("Key " + key + " not found.");
+				}
+			}
+			position = block.getNextBlockPosition();
+		}
+		throw new NoSuchElementException("Key " + key + " not found.");
+	}
+	
+	private List<GenericRecord> getCached(String key, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
+		List<GenericRecord> rtrn = new ArrayList<GenericRecord>();
+		try {
+			boolean found = false;
+			long position = getLowerBoundStartPos(key);
+			while(position >= 0) {
+				DecodedBlockCache.Block block = getBlock(position);
+				for(GenericRecord record : block.getRecords()) {
+					String strCurrKey = record.get(indexedField).toString();
+					int compare = strCurrKey.compareTo(key);
+					if(compare < 0) {
+						if(found) {
+							throw new IllegalStateException("Wrong sort order for keys " + key + " " + strCurrKey);
+						}
+						continue;
+					}
+					if(compare > 0) {
+						position = -1;
+						break;
+					}
+					found = true;
+					if(nameOfAttributeForExclusionSet != null && attributeValuesToExclude != null) {
+						String attribute = record.get(nameOfAttributeForExclusionSet).toString();
+						if(attributeValuesToExclude.contains(attribute)) {
+							continue;
+						}
+					}
+					rtrn.add(record);
+				}
+				if(position >= 0) {
+					position = block.getNextBlockPosition();
+				}
+			}
+			if(!found) {
+				// As for uncached lookups, which fail in seek()
+				throw new NoSuchElementException("Key " + key + " not found.");
+			}
+		} catch(IllegalStateException e) {
+			logger.warn("Caught exception on query " + key);
+			logger.warn("Returned matches will be incomplete for this key.");
+			logger.warn(e.getMessage());
+		}
+		if(rtrn.size() <= MAX_RECORDS_TO_GET) {
+			return rtrn;
+		}
+		throw new IllegalArgumentException("Key " + key + " has " + rtrn.size() + " records, more than the max of " + MAX_RECORDS_TO_GET + ".");
+	}
+	
 }
@@ -0,0 +1,131 @@
+package guttmanlab.core.serialize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * A string index that can be queried from several threads at once.
+ * The index is loaded once and shared; each querying thread gets its own reader over the avro file the
+ * first time it makes a query. A block cache set with setBlockCache() is shared by all threads.
+ *
+ * Batch iterators returned by getAll() use the reader of the thread that created them and should be
+ * consumed on that thread. The index should not be reloaded, and the projection should not be changed,
+ * while queries are running.
+ * @author prussell
+ *
+ */
+public class ConcurrentAvroStringIndex extends AvroStringIndex {
+
+	private volatile ThreadLocal<AvroStringIndex> threadIndex; // Reader for each querying thread
+	private List<AvroStringIndex> openIndexes; // All per-thread readers, to close
+
+	/**
+	 * Read index information from index file
+	 * @param avroFileName Avro file
+	 * @param schemaFile Avro schema file
+	 * @param indexedFieldName The name of the field in the schema that is indexed in this index
+	 */
+	public ConcurrentAvroStringIndex(String avroFileName, String schemaFile, String indexedFieldName) throws IOException {
+		super(avroFileName, schemaFile, indexedFieldName);
+	}
+
+	/**
+	 * Load the index and discard the per-thread readers of a previously loaded index
+	 */
+	@Override
+	public void loadIndex(boolean validate) throws IOException {
+		super.loadIndex(validate);
+		closeThreadIndexes();
+		threadIndex = new ThreadLocal<AvroStringIndex>();
+	}
+
+	/**
+	 * @return The index for the current thread, opened on the first call from the thread
+	 * @throws IOException
+	 */
+	private AvroStringIndex getThreadIndex() throws IOException {
+		ThreadLocal<AvroStringIndex> local = threadIndex;
+		AvroStringIndex rtrn = local.get();
+		if(rtrn == null) {
+			rtrn = new AvroStringIndex(this);
+			local.set(rtrn);
+			synchronized(this) {
+				openIndexes.add(rtrn);
+			}
+		}
+		return rtrn;
+	}
+
+	private synchronized void closeThreadIndexes() throws IOException {
+		if(openIndexes != null) {
+			for(AvroStringIndex index : openIndexes) {
+				index.close();
+			}
+		}
+		openIndexes = new ArrayList<AvroStringIndex>();
+	}
+
+	@Override
+	public synchronized void setBlockCache(DecodedBlockCache cache) {
+		super.setBlockCache(cache);
+		for(AvroStringIndex index : openIndexes) {
+			index.setBlockCache(cache);
+		}
+	}
+
+	@Override
+	public synchronized void setProjection(Collection<String> fieldNames) throws IOException {
+		super.setProjection(fieldNames);
+		for(AvroStringIndex index : openIndexes) {
+			index.setProjection(fieldNames);
+		}
+	}
+
+	@Override
+	public GenericRecord seek(String key) throws IOException {
+		return getThreadIndex().seek(key);
+	}
+
+	@Override
+	public List<GenericRecord> get(String key) throws IOException {
+		return getThreadIndex().get(key);
+	}
+
+	@Override
+	public List<GenericRecord> get(String key, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
+		return getThreadIndex().get(key, nameOfAttributeForExclusionSet, attributeValuesToExclude);
+	}
+
+	@Override
+	public Iterator<KeyRecords<String, GenericRecord>> getAll(Iterable<String> keys) throws IOException {
+		return getThreadIndex().getAll(keys);
+	}
+
+	@Override
+	public Iterator<KeyRecords<String, GenericRecord>> getAll(Iterable<String> keys, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
+		return getThreadIndex().getAll(keys, nameOfAttributeForExclusionSet, attributeValuesToExclude);
+	}
+
+	/**
+	 * @return The current position of the reader of the calling thread
+	 */
+	@Override
+	public long getCurrentFilePosition() throws IOException {
+		return getThreadIndex().getCurrentFilePosition();
+	}
+
+	/**
+	 * Close the readers of all threads
+	 */
+	@Override
+	public void close() throws IOException {
+		closeThreadIndexes();
+		super.close();
+	}
+
+}
@@ -0,0 +1,179 @@
+package guttmanlab.core.serialize;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * A least-recently-used cache of decoded avro file blocks, keyed by the file position of the block.
+ * The cache is bounded by the total number of records in the cached blocks. All methods are synchronized
+ * so one cache can be shared by several readers of the same avro file.
+ *
+ * Cached records are shared between lookups and must not be modified.
+ */
+public class DecodedBlockCache {
+
+	private LinkedHashMap<Long, Block> blocks;
+	private long maxRecords;
+	private long numRecords;
+	private long numHits;
+	private long numMisses;
+	private long numEvictions;
+
+	/**
+	 * Default maximum number of cached records
+	 */
+	public static final long DEFAULT_MAX_RECORDS = 1000000;
+
+	/**
+	 * A decoded block and the position of the block that follows it
+	 */
+	public static class Block {
+
+		private List<GenericRecord> records;
+		private long nextBlockPosition;
+
+		/**
+		 * @param records The records of the block in file order
+		 * @param nextBlockPosition The file position of the next block, or -1 if this is the last block
+		 */
+		public Block(List<GenericRecord> records, long nextBlockPosition) {
+			this.records = records;
+			this.nextBlockPosition = nextBlockPosition;
+		}
+
+		/**
+		 * @return The records of the block in file order
+		 */
+		public List<GenericRecord> getRecords() {
+			return records;
+		}
+
+		/**
+		 * @return The file position of the next block, or -1 if this is the last block
+		 */
+		public long getNextBlockPosition() {
+			return nextBlockPosition;
+		}
+	}
+
+	/**
+	 * Cache up to DEFAULT_MAX_RECORDS records
+	 */
+	public DecodedBlockCache() {
+		this(DEFAULT_MAX_RECORDS);
+	}
+
+	/**
+	 * @param maxRecords Maximum total number of records in the cached blocks
+	 */
+	public DecodedBlockCache(long maxRecords) {
+		if(maxRecords < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1: " + maxRecords);
+		}
+		this.maxRecords = maxRecords;
+		this.blocks = new LinkedHashMap<Long, Block>(16, 0.75f, true);
+	}
+
+	/**
+	 * @param position File position of the block
+	 * @return The cached block, or null if the block is not cached
+	 */
+	public synchronized Block get(long position) {
+		Block rtrn = blocks.get(Long.valueOf(position));
+		if(rtrn == null) {
+			numMisses++;
+		} else {
+			numHits++;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Cache a block, evicting the least recently used blocks if the cache is full.
+	 * Blocks with more records than the cache can hold are not cached.
+	 * @param position File position of the block
+	 * @param block The decoded block
+	 */
+	public synchronized void put(long position, Block block) {
+		int size = block.getRecords().size();
+		if(size > maxRecords) {
+			return;
+		}
+		Block previous = blocks.put(Long.valueOf(position), block);
+		if(previous != null) {
+			numRecords -= previous.getRecords().size();
+		}
+		numRecords += size;
+		Iterator<Map.Entry<Long, Block>> iter = blocks.entrySet().iterator();
+		while(numRecords > maxRecords && iter.hasNext()) {
+			Map.Entry<Long, Block> eldest = iter.next();
+			numRecords -= eldest.getValue().getRecords().size();
+			iter.remove();
+			numEvictions++;
+		}
+	}
+
+	/**
+	 * Remove all blocks and reset the counters
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		numRecords = 0;
+		numHits = 0;
+		numMisses = 0;
+		numEvictions = 0;
+	}
+
+	/**
+	 * @return The number of cached blocks
+	 */
+	public synchronized int getNumBlocks() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return The number of records in the cached blocks
+	 */
+	public synchronized long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @return The number of lookups that found the block
+	 */
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+
+	/**
+	 * @return The number of lookups that did not find the block
+	 */
+	public synchronized long getNumMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * @return The number of blocks removed to make room for other blocks
+	 */
+	public synchronized long getNumEvictions() {
+		return numEvictions;
+	}
+
+	/**
+	 * @return The fraction of lookups that found the block, or 0 if there were no lookups
+	 */
+	public synchronized double getHitRate() {
+		long lookups = numHits + numMisses;
+		return lookups == 0 ? 0 : (double) numHits / lookups;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "blocks=" + blocks.size() + " records=" + numRecords + " hits=" + numHits + " misses=" + numMisses + " evictions=" + numEvictions;
+	}
+
+}
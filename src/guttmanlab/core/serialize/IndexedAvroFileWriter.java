@@ -0,0 +1,180 @@
+package guttmanlab.core.serialize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a snappy-compressed avro file and, optionally, its AbstractAvroIndex index for one field in the
+ * same pass. When indexing, the writer ends a block every DataFileConstants.DEFAULT_SYNC_INTERVAL bytes
+ * of encoded records and writes an index line with the key of the first record of each block.
+ *
+ * Records must be appended in order of the indexed field. If a key is smaller than the previous key, a
+ * warning is logged and no index is written.
+ * @author prussell
+ *
+ */
+public class IndexedAvroFileWriter {
+
+	private DataFileWriter<GenericRecord> dataFileWriter;
+	private GenericDatumWriter<GenericRecord> datumWriter;
+	private BinaryEncoder encoder;
+	private ExposedByteArrayOutputStream buffer;
+	private File avroFile;
+	private File indexFile;
+	private FileWriter indexWriter;
+	private String indexField;
+	private String previousKey;
+	private long blockBytes;
+	private boolean blockStarted;
+	private boolean unsorted;
+	private long numRecords;
+	private static Logger logger = Logger.getLogger(IndexedAvroFileWriter.class.getName());
+
+	/**
+	 * @param schema Avro schema
+	 * @param avroFile Avro file to write
+	 * @param indexField Field to index, or null to not write an index
+	 * @throws IOException
+	 */
+	public IndexedAvroFileWriter(Schema schema, File avroFile, String indexField) throws IOException {
+		if(indexField != null && schema.getField(indexField) == null) {
+			throw new IllegalArgumentException("Schema has no field " + indexField);
+		}
+		this.indexField = indexField;
+		this.avroFile = avroFile;
+		datumWriter = new GenericDatumWriter<GenericRecord>(schema);
+		buffer = new ExposedByteArrayOutputStream();
+		dataFileWriter = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+		dataFileWriter.setCodec(CodecFactory.snappyCodec());
+		if(indexField != null) {
+			// Avro ends a block after the record that fills DEFAULT_SYNC_INTERVAL bytes, which is also when the
+			// next record is indexed, so every block is indexed. A larger interval would make avro allocate a
+			// buffer of that size up front.
+			dataFileWriter.setSyncInterval(DataFileConstants.DEFAULT_SYNC_INTERVAL);
+		}
+		dataFileWriter.create(schema, avroFile);
+		if(indexField != null) {
+			indexFile = new File(AbstractAvroIndex.getIndexFileName(avroFile.getPath()));
+			indexWriter = new FileWriter(indexFile);
+		}
+	}
+
+	/**
+	 * Encode and append a record
+	 * @param record The record
+	 * @throws IOException
+	 */
+	public void append(GenericRecord record) throws IOException {
+		buffer.reset();
+		encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+		datumWriter.write(record, encoder);
+		encoder.flush();
+		appendEncoded(ByteBuffer.wrap(buffer.getBuffer(), 0, buffer.size()), indexField == null ? null : record.get(indexField));
+	}
+
+	/**
+	 * Append an encoded record
+	 * @param datum The record in avro binary format
+	 * @param key Value of the indexed field of the record, or null if not indexing
+	 * @throws IOException
+	 */
+	public void appendEncoded(ByteBuffer datum, Object key) throws IOException {
+		int length = datum.remaining();
+		if(indexField != null && !unsorted) {
+			if(key == null) {
+				throw new IllegalStateException("Indexed value cannot be null");
+			}
+			String strKey = key.toString();
+			if(previousKey != null && strKey.compareTo(previousKey) < 0) {
+				logger.warn("Records are not sorted by " + indexField + " (" + previousKey + " before " + strKey + "). Not writing index.");
+				unsorted = true;
+			} else if(!blockStarted || blockBytes >= DataFileConstants.DEFAULT_SYNC_INTERVAL) {
+				// End the current block and index the next one
+				long position = dataFileWriter.sync();
+				indexWriter.write(strKey + "\t" + position + "\n");
+				blockStarted = true;
+				blockBytes = 0;
+			}
+			previousKey = strKey;
+		}
+		dataFileWriter.appendEncoded(datum);
+		numRecords++;
+		blockBytes += length;
+		if(indexField != null && unsorted && blockBytes >= DataFileConstants.DEFAULT_SYNC_INTERVAL) {
+			dataFileWriter.sync();
+			blockBytes = 0;
+		}
+	}
+
+	/**
+	 * @return Whether an index is being written
+	 */
+	public boolean isIndexed() {
+		return indexField != null && !unsorted;
+	}
+
+	/**
+	 * @return The number of records appended
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Close the avro file and the index. The index is deleted if records were not sorted.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		dataFileWriter.close();
+		if(indexWriter != null) {
+			indexWriter.close();
+			if(unsorted) {
+				indexFile.delete();
+			} else {
+				// The index must not be older than the avro file
+				indexFile.setLastModified(System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * Close and delete the partial avro file and the index after an error
+	 * @throws IOException
+	 */
+	public void abort() throws IOException {
+		dataFileWriter.close();
+		avroFile.delete();
+		if(indexWriter != null) {
+			indexWriter.close();
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * A byte array output stream whose buffer can be read without copying
+	 */
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+		public ExposedByteArrayOutputStream() {
+			super(1024);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package guttmanlab.core.serialize;
+
+import java.util.List;
+
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * A key queried from an avro index together with the records that have the key
+ *
+ * @param <T> the type of the indexed field
+ * @param <P> the type of the records
+ */
+public class KeyRecords<T extends Comparable<T>, P extends GenericRecord> {
+
+	private T key;
+	private List<P> records;
+
+	/**
+	 * @param key the queried key
+	 * @param records the records with the key, in file order
+	 */
+	public KeyRecords(T key, List<P> records) {
+		this.key = key;
+		this.records = records;
+	}
+
+	/**
+	 * @return the queried key
+	 */
+	public T getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the records with the key in file order, or an empty list if the key is not in the file
+	 */
+	public List<P> getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the number of records with the key
+	 */
+	public int getNumRecords() {
+		return records.size();
+	}
+}
@@ -0,0 +1,256 @@
+package guttmanlab.core.serialize;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * A binary, memory-mapped index from string keys to avro file positions.
+ *
+ * Keys are stored sorted and prefix-compressed: each key is written as the length of the prefix it
+ * shares with the previous key followed by the remaining UTF-8 bytes. Every RESTART_INTERVAL keys a
+ * key is written in full, and the byte offsets of these restart keys are stored so that lookups can
+ * binary search the restart keys and then scan at most RESTART_INTERVAL keys. File positions are
+ * stored as a long array. Nothing is copied onto the heap when the index is opened, and lookups only
+ * use absolute reads of the mapped buffer, so one instance can be shared between threads.
+ *
+ * File layout (big-endian): magic, version, number of keys, restart interval, number of restarts,
+ * position array, restart offset array, key data.
+ */
+public class MappedStringIndex {
+
+	private MappedByteBuffer buffer;
+	private int numKeys;
+	private int restartInterval;
+	private int numRestarts;
+	private int positionsStart;
+	private int restartsStart;
+	private int keysStart;
+
+	private static final int MAGIC = 0x41564958; // "AVIX"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 20;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Number of keys between keys that are stored in full
+	 */
+	public static final int RESTART_INTERVAL = 16;
+
+	/**
+	 * Map an index file into memory
+	 * @param file Binary index file written by write()
+	 * @throws IOException
+	 */
+	public MappedStringIndex(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if(raf.length() > Integer.MAX_VALUE) {
+				throw new IOException("Index file " + file.getPath() + " is too large to map");
+			}
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if(buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a binary avro index: " + file.getPath());
+		}
+		if(buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported binary avro index version " + buffer.getInt(4) + " in " + file.getPath());
+		}
+		numKeys = buffer.getInt(8);
+		restartInterval = buffer.getInt(12);
+		numRestarts = buffer.getInt(16);
+		positionsStart = HEADER_LENGTH;
+		restartsStart = positionsStart + 8 * numKeys;
+		keysStart = restartsStart + 4 * numRestarts;
+	}
+
+	/**
+	 * Write a binary index
+	 * @param positionsByKey File position of the first block for each key, sorted by key
+	 * @param file File to write
+	 * @throws IOException
+	 */
+	public static void write(SortedMap<String, Long> positionsByKey, File file) throws IOException {
+		ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+		List<Integer> restarts = new ArrayList<Integer>();
+		byte[] previous = new byte[0];
+		int i = 0;
+		for(String key : positionsByKey.keySet()) {
+			byte[] current = key.getBytes(UTF8);
+			int shared = 0;
+			if(i % RESTART_INTERVAL == 0) {
+				restarts.add(Integer.valueOf(keyBytes.size()));
+			} else {
+				int max = Math.min(previous.length, current.length);
+				while(shared < max && previous[shared] == current[shared]) {
+					shared++;
+				}
+			}
+			writeVarInt(keyBytes, shared);
+			writeVarInt(keyBytes, current.length - shared);
+			keyBytes.write(current, shared, current.length - shared);
+			previous = current;
+			i++;
+		}
+		long length = HEADER_LENGTH + 8L * positionsByKey.size() + 4L * restarts.size() + keyBytes.size();
+		if(length > Integer.MAX_VALUE) {
+			throw new IOException("Too many keys for a binary index: " + positionsByKey.size());
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(positionsByKey.size());
+			out.writeInt(RESTART_INTERVAL);
+			out.writeInt(restarts.size());
+			for(Map.Entry<String, Long> entry : positionsByKey.entrySet()) {
+				out.writeLong(entry.getValue().longValue());
+			}
+			for(Integer restart : restarts) {
+				out.writeInt(restart.intValue());
+			}
+			keyBytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * @return The number of keys in the index
+	 */
+	public int numKeys() {
+		return numKeys;
+	}
+
+	/**
+	 * @param index Index of a key in sorted order
+	 * @return The file position of the first block containing the key
+	 */
+	public long getPosition(int index) {
+		return buffer.getLong(positionsStart + 8 * index);
+	}
+
+	/**
+	 * @param index Index of a key in sorted order
+	 * @return The key
+	 */
+	public String getKey(int index) {
+		int restart = index / restartInterval;
+		int offset = keysStart + buffer.getInt(restartsStart + 4 * restart);
+		byte[] key = new byte[0];
+		int[] next = new int[1];
+		for(int i = restart * restartInterval; i <= index; i++) {
+			key = readKey(offset, key, next);
+			offset = next[0];
+		}
+		return new String(key, UTF8);
+	}
+
+	/**
+	 * Get the index of the greatest key strictly less than a key
+	 * @param key The key
+	 * @return The index of the greatest key less than the key, or -1 if there is none
+	 */
+	public int lowerIndex(String key) {
+		// Find the last restart whose key is less than the key
+		int lo = 0;
+		int hi = numRestarts - 1;
+		int restart = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(getKey(mid * restartInterval).compareTo(key) < 0) {
+				restart = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if(restart < 0) {
+			return -1;
+		}
+		// Scan forward from the restart key
+		int offset = keysStart + buffer.getInt(restartsStart + 4 * restart);
+		int end = Math.min(numKeys, (restart + 1) * restartInterval);
+		byte[] current = new byte[0];
+		int[] next = new int[1];
+		int rtrn = -1;
+		for(int i = restart * restartInterval; i < end; i++) {
+			current = readKey(offset, current, next);
+			offset = next[0];
+			if(new String(current, UTF8).compareTo(key) >= 0) {
+				break;
+			}
+			rtrn = i;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Get the index of a key
+	 * @param key The key
+	 * @return The index of the key, or -1 if it is not in the index
+	 */
+	public int indexOf(String key) {
+		int lower = lowerIndex(key);
+		int candidate = lower + 1;
+		if(candidate < numKeys && getKey(candidate).equals(key)) {
+			return candidate;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode the key at a byte offset
+	 * @param offset Absolute byte offset of the key
+	 * @param previous The previous key, whose prefix is shared
+	 * @param next Set to the offset of the following key
+	 * @return The key bytes
+	 */
+	private byte[] readKey(int offset, byte[] previous, int[] next) {
+		int[] pos = new int[] {offset};
+		int shared = readVarInt(pos);
+		int nonShared = readVarInt(pos);
+		byte[] rtrn = new byte[shared + nonShared];
+		System.arraycopy(previous, 0, rtrn, 0, shared);
+		for(int i = 0; i < nonShared; i++) {
+			rtrn[shared + i] = buffer.get(pos[0] + i);
+		}
+		next[0] = pos[0] + nonShared;
+		return rtrn;
+	}
+
+	private int readVarInt(int[] pos) {
+		int rtrn = 0;
+		int shift = 0;
+		while(true) {
+			byte b = buffer.get(pos[0]++);
+			rtrn |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return rtrn;
+			}
+			shift += 7;
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package guttmanlab.core.serialize;
+
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.log4j.Logger;
+
+/**
+ * Sort an avro file by a field and write the index for the field, so the sorted file can be queried
+ * with AvroStringIndex.
+ *
+ * Records are read in runs of at most maxRecordsInMemory records. Each run is sorted in memory and
+ * spilled to a temporary snappy-compressed avro file, and the runs are then merged into the output.
+ * Keys are compared as strings, like AvroStringIndex does, and records with equal keys keep their input order.
+ * @author prussell
+ *
+ */
+public class SortAvroFile {
+
+	private static Logger logger = Logger.getLogger(SortAvroFile.class.getName());
+
+	/**
+	 * Default maximum number of records held in memory
+	 */
+	public static final int DEFAULT_MAX_RECORDS_IN_MEMORY = 1000000;
+
+	/**
+	 * A record with its key, ordered by key and then by run
+	 */
+	private static class KeyedRecord implements Comparable<KeyedRecord> {
+
+		private String key;
+		private GenericRecord record;
+		private int run;
+
+		public KeyedRecord(GenericRecord record, String field, int run) {
+			Object val = record.get(field);
+			if(val == null) {
+				throw new IllegalStateException("Indexed value cannot be null");
+			}
+			this.key = val.toString();
+			this.record = record;
+			this.run = run;
+		}
+
+		@Override
+		public int compareTo(KeyedRecord o) {
+			int rtrn = key.compareTo(o.key);
+			if(rtrn != 0) {
+				return rtrn;
+			}
+			return run - o.run;
+		}
+	}
+
+	/**
+	 * Sort an avro file by a field and write the sorted file and its index
+	 * @param schemaFile Avro schema file
+	 * @param inputAvro Avro file to sort
+	 * @param field Field to sort by and index
+	 * @param outputAvro Sorted avro file to write
+	 * @param maxRecordsInMemory Maximum number of records held in memory
+	 * @param tmpDir Directory for temporary files, or null for the system default
+	 * @throws IOException
+	 */
+	public static void sort(String schemaFile, String inputAvro, String field, String outputAvro, int maxRecordsInMemory, File tmpDir) throws IOException {
+		if(maxRecordsInMemory < 1) {
+			throw new IllegalArgumentException("Maximum records in memory must be at least 1: " + maxRecordsInMemory);
+		}
+		logger.info("Sorting " + inputAvro + " by field " + field + "...");
+		long start = System.nanoTime();
+		Schema schema = new Schema.Parser().parse(new File(schemaFile));
+		if(schema.getField(field) == null) {
+			throw new IllegalArgumentException("Schema has no field " + field);
+		}
+		List<File> runFiles = new ArrayList<File>();
+		List<KeyedRecord> run = new ArrayList<KeyedRecord>();
+		DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(new File(inputAvro), new GenericDatumReader<GenericRecord>(schema));
+		try {
+			// Sort and spill runs
+			while(reader.hasNext()) {
+				run.add(new KeyedRecord(reader.next(), field, 0));
+				if(run.size() == maxRecordsInMemory && reader.hasNext()) {
+					runFiles.add(writeRun(schema, run, tmpDir));
+					run.clear();
+				}
+			}
+			Collections.sort(run);
+			IndexedAvroFileWriter writer = new IndexedAvroFileWriter(schema, new File(outputAvro), field);
+			try {
+				if(runFiles.isEmpty()) {
+					// Everything fits in memory
+					for(KeyedRecord record : run) {
+						writer.append(record.record);
+					}
+				} else {
+					if(!run.isEmpty()) {
+						runFiles.add(writeRun(schema, run, tmpDir));
+						run.clear();
+					}
+					logger.info("Merging " + runFiles.size() + " sorted runs...");
+					merge(schema, runFiles, field, writer);
+				}
+			} catch(IOException e) {
+				writer.abort();
+				throw e;
+			} catch(RuntimeException e) {
+				writer.abort();
+				throw e;
+			}
+			writer.close();
+			logger.info("Wrote " + writer.getNumRecords() + " sorted records to " + outputAvro);
+		} finally {
+			reader.close();
+			for(File runFile : runFiles) {
+				runFile.delete();
+			}
+		}
+		long time = (System.nanoTime() - start) / 1000000000;
+		logger.info("Sorted and indexed in " + time + " seconds.");
+	}
+
+	/**
+	 * Sort a run and write it to a temporary file
+	 * @param schema Avro schema
+	 * @param run The records
+	 * @param tmpDir Directory for temporary files, or null for the system default
+	 * @return The temporary file
+	 * @throws IOException
+	 */
+	private static File writeRun(Schema schema, List<KeyedRecord> run, File tmpDir) throws IOException {
+		Collections.sort(run);
+		File rtrn = File.createTempFile("sort_run", ".avro", tmpDir);
+		rtrn.deleteOnExit();
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+		writer.setCodec(CodecFactory.snappyCodec());
+		writer.create(schema, rtrn);
+		try {
+			for(KeyedRecord record : run) {
+				writer.append(record.record);
+			}
+		} finally {
+			writer.close();
+		}
+		logger.info("Wrote sorted run of " + run.size() + " records to " + rtrn.getPath());
+		return rtrn;
+	}
+
+	/**
+	 * Merge sorted runs into the output
+	 * @param schema Avro schema
+	 * @param runFiles Sorted run files in input order
+	 * @param field Field to sort by
+	 * @param writer Output writer
+	 * @throws IOException
+	 */
+	private static void merge(Schema schema, List<File> runFiles, String field, IndexedAvroFileWriter writer) throws IOException {
+		List<DataFileReader<GenericRecord>> readers = new ArrayList<DataFileReader<GenericRecord>>();
+		try {
+			PriorityQueue<KeyedRecord> heads = new PriorityQueue<KeyedRecord>();
+			for(int i = 0; i < runFiles.size(); i++) {
+				DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(runFiles.get(i), new GenericDatumReader<GenericRecord>(schema));
+				readers.add(reader);
+				if(reader.hasNext()) {
+					heads.add(new KeyedRecord(reader.next(), field, i));
+				}
+			}
+			while(!heads.isEmpty()) {
+				KeyedRecord head = heads.poll();
+				writer.append(head.record);
+				Iterator<GenericRecord> reader = readers.get(head.run);
+				if(reader.hasNext()) {
+					heads.add(new KeyedRecord(reader.next(), field, head.run));
+				}
+			}
+		} finally {
+			for(DataFileReader<GenericRecord> reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-s", "Avro schema file with .avsc extension", true);
+		p.addStringArg("-a", "Input Avro file with .avro extension", true);
+		p.addStringArg("-f", "Name of field to sort by and index (must match schema)", true);
+		p.addStringArg("-o", "Output sorted Avro file with .avro extension", true);
+		p.addIntArg("-m", "Maximum number of records to hold in memory", false, DEFAULT_MAX_RECORDS_IN_MEMORY);
+		p.addStringArg("-t", "Directory for temporary files", false, null);
+		p.parse(args);
+		String schema = p.getStringArg("-s");
+		String avro = p.getStringArg("-a");
+		String field = p.getStringArg("-f");
+		String output = p.getStringArg("-o");
+		int maxRecords = p.getIntArg("-m");
+		String tmpDir = p.getStringArg("-t");
+		sort(schema, avro, field, output, maxRecords, tmpDir == null ? null : new File(tmpDir));
+	}
+
+}
@@ -0,0 +1,386 @@
+package guttmanlab.core.serialize.sam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecord.SAMTagAndValue;
+
+/**
+ * Encodes SAM records directly in avro binary format for a SAM record schema such as AvroSamRecord.avsc.
+ *
+ * The schema is resolved once: each field is mapped to a SAM field or tag and its avro type is fixed,
+ * so records are written field by field with no generic record or field name lookups.
+ * Tags are stored in nullable fields named "tag" + tag name, and any other nullable fields are written
+ * as null. Tags with no field in the schema and tags whose values do not match the field type are left
+ * out of the record and counted.
+ *
+ * A codec reuses its buffers and is not thread-safe; use one codec per thread.
+ * @author prussell
+ *
+ */
+public class AvroSamCodec {
+
+	private Schema schema;
+	private Field[] fields;
+	private Map<String, Integer> tagFieldIndex; // Field index by tag name
+	private Object[] values; // Values of the current record by field index
+	private ExposedByteArrayOutputStream buffer;
+	private BinaryEncoder encoder;
+	private long numRecords;
+	private Map<String, Long> numUnknownTags; // Tags without a schema field
+	private Map<String, Long> numMismatchedTags; // Tags with values that do not match the field type
+	private static Logger logger = Logger.getLogger(AvroSamCodec.class.getName());
+
+	/**
+	 * Prefix of schema field names for SAM tags
+	 */
+	public static final String TAG_FIELD_PREFIX = "tag";
+
+	private enum SamField {
+		QNAME, FLAG, RNAME, POS, MAPQ, CIGAR, RNEXT, PNEXT, TLEN, SEQ, QUAL, TAG, OTHER
+	}
+
+	/**
+	 * A schema field with the SAM field it holds and its resolved type
+	 */
+	private static class Field {
+		private SamField samField;
+		private Schema.Type type; // Type of the value, or of the non-null branch for nullable fields
+		private int valueBranch = -1; // Union branch of the value, or -1 if not a union
+		private int nullBranch = -1; // Union branch of null, or -1 if not nullable
+		private String name;
+	}
+
+	/**
+	 * @param schema Avro schema with a field for each of qname, flag, rname, pos, mapq, cigar, rnext, pnext, tlen, seq and qual
+	 * and optional nullable fields for tags
+	 */
+	public AvroSamCodec(Schema schema) {
+		this.schema = schema;
+		List<Schema.Field> schemaFields = schema.getFields();
+		fields = new Field[schemaFields.size()];
+		tagFieldIndex = new HashMap<String, Integer>();
+		for(Schema.Field schemaField : schemaFields) {
+			Field field = resolve(schemaField);
+			fields[schemaField.pos()] = field;
+			if(field.samField == SamField.TAG) {
+				tagFieldIndex.put(schemaField.name().substring(TAG_FIELD_PREFIX.length()), Integer.valueOf(schemaField.pos()));
+			}
+		}
+		for(SamField samField : SamField.values()) {
+			if(samField != SamField.TAG && samField != SamField.OTHER && schema.getField(samField.name().toLowerCase()) == null) {
+				throw new IllegalArgumentException("Schema has no field " + samField.name().toLowerCase());
+			}
+		}
+		values = new Object[fields.length];
+		buffer = new ExposedByteArrayOutputStream();
+		numUnknownTags = new TreeMap<String, Long>();
+		numMismatchedTags = new TreeMap<String, Long>();
+	}
+
+	private static Field resolve(Schema.Field schemaField) {
+		Field rtrn = new Field();
+		rtrn.name = schemaField.name();
+		if(rtrn.name.startsWith(TAG_FIELD_PREFIX) && rtrn.name.length() == TAG_FIELD_PREFIX.length() + 2) {
+			rtrn.samField = SamField.TAG;
+		} else {
+			try {
+				rtrn.samField = SamField.valueOf(rtrn.name.toUpperCase());
+			} catch(IllegalArgumentException e) {
+				rtrn.samField = SamField.OTHER;
+			}
+		}
+		Schema fieldSchema = schemaField.schema();
+		if(fieldSchema.getType() == Schema.Type.UNION) {
+			List<Schema> branches = fieldSchema.getTypes();
+			for(int i = 0; i < branches.size(); i++) {
+				Schema.Type type = branches.get(i).getType();
+				if(type == Schema.Type.NULL) {
+					rtrn.nullBranch = i;
+				} else if(rtrn.valueBranch < 0) {
+					rtrn.valueBranch = i;
+					rtrn.type = type;
+				}
+			}
+		} else {
+			rtrn.type = fieldSchema.getType();
+		}
+		if(rtrn.samField == SamField.OTHER || rtrn.samField == SamField.TAG) {
+			if(rtrn.nullBranch < 0) {
+				throw new IllegalArgumentException("Schema field " + rtrn.name + " is not a SAM field and must be nullable");
+			}
+			if(rtrn.samField == SamField.OTHER) {
+				return rtrn;
+			}
+		}
+		if(rtrn.type != null && !isSupported(rtrn.type)) {
+			throw new IllegalArgumentException("Unsupported type " + rtrn.type + " for schema field " + rtrn.name);
+		}
+		return rtrn;
+	}
+
+	private static boolean isSupported(Schema.Type type) {
+		return type == Schema.Type.INT || type == Schema.Type.LONG || type == Schema.Type.STRING
+				|| type == Schema.Type.FLOAT || type == Schema.Type.DOUBLE;
+	}
+
+	/**
+	 * @return The schema
+	 */
+	public Schema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * Encode a record into a buffer that is reused by the next call
+	 * @param record SAM record
+	 * @return The encoded datum, valid until the next call
+	 * @throws IOException
+	 */
+	public ByteBuffer encode(SAMRecord record) throws IOException {
+		buffer.reset();
+		encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+		encode(record, encoder);
+		encoder.flush();
+		return ByteBuffer.wrap(buffer.getBuffer(), 0, buffer.size());
+	}
+
+	/**
+	 * Encode a record
+	 * @param record SAM record
+	 * @param out Encoder to write the datum to
+	 * @throws IOException
+	 */
+	public void encode(SAMRecord record, Encoder out) throws IOException {
+		numRecords++;
+		Arrays.fill(values, null);
+		for(int i = 0; i < fields.length; i++) {
+			if(fields[i].samField != SamField.TAG && fields[i].samField != SamField.OTHER) {
+				values[i] = getValue(record, fields[i].samField);
+			}
+		}
+		for(SAMTagAndValue tag : record.getAttributes()) {
+			Integer index = tagFieldIndex.get(tag.tag);
+			if(index == null) {
+				increment(numUnknownTags, tag.tag);
+				continue;
+			}
+			Object value = convert(tag.value, fields[index.intValue()].type);
+			if(value == null) {
+				increment(numMismatchedTags, tag.tag);
+				continue;
+			}
+			values[index.intValue()] = value;
+		}
+		for(int i = 0; i < fields.length; i++) {
+			write(fields[i], values[i], out);
+		}
+	}
+
+	/**
+	 * @param fieldName Schema field name
+	 * @return The position of the field in the schema
+	 */
+	public int getFieldPosition(String fieldName) {
+		Schema.Field field = schema.getField(fieldName);
+		if(field == null) {
+			throw new IllegalArgumentException("Schema has no field " + fieldName);
+		}
+		return field.pos();
+	}
+	
+	/**
+	 * Get the value a record would have for a schema field
+	 * @param record SAM record
+	 * @param fieldPosition Position of the field in the schema
+	 * @return The value, or null if the field would be null
+	 */
+	public Object getFieldValue(SAMRecord record, int fieldPosition) {
+		Field field = fields[fieldPosition];
+		switch(field.samField) {
+		case TAG: 
+			Object tagValue = record.getAttribute(field.name.substring(TAG_FIELD_PREFIX.length()));
+			return tagValue == null ? null : convert(tagValue, field.type);
+		case OTHER:
+			return null;
+		default:
+			return getValue(record, field.samField);
+		}
+	}
+
+	private static Object getValue(SAMRecord record, SamField samField) {
+		switch(samField) {
+		case QNAME: return record.getReadName();
+		case FLAG: return Integer.valueOf(record.getFlags());
+		case RNAME: return record.getReferenceName();
+		case POS: return Integer.valueOf(record.getAlignmentStart());
+		case MAPQ: return Integer.valueOf(record.getMappingQuality());
+		case CIGAR: return record.getCigarString();
+		case RNEXT: return record.getMateReferenceName();
+		case PNEXT: return Integer.valueOf(record.getMateAlignmentStart());
+		case TLEN: return Integer.valueOf(record.getInferredInsertSize());
+		case SEQ: return record.getReadString();
+		case QUAL: return record.getBaseQualityString();
+		default: throw new IllegalArgumentException("Not a fixed SAM field: " + samField);
+		}
+	}
+
+	/**
+	 * Convert a tag value to the java type written for an avro type
+	 * @param value Tag value
+	 * @param type Avro type
+	 * @return The converted value, or null if the value cannot be stored as the type
+	 */
+	private static Object convert(Object value, Schema.Type type) {
+		if(type == null) {
+			return null;
+		}
+		switch(type) {
+		case STRING:
+			if(value instanceof String || value instanceof Character) {
+				return value.toString();
+			}
+			return null;
+		case INT:
+			if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return Integer.valueOf(((Number) value).intValue());
+			}
+			if(value instanceof Long && ((Long) value).longValue() == ((Long) value).intValue()) {
+				return Integer.valueOf(((Long) value).intValue());
+			}
+			return null;
+		case LONG:
+			if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return Long.valueOf(((Number) value).longValue());
+			}
+			return null;
+		case FLOAT:
+			if(value instanceof Float) {
+				return value;
+			}
+			return null;
+		case DOUBLE:
+			if(value instanceof Float || value instanceof Double) {
+				return Double.valueOf(((Number) value).doubleValue());
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	private static void write(Field field, Object value, Encoder out) throws IOException {
+		if(value == null) {
+			if(field.nullBranch < 0) {
+				throw new IllegalStateException("No value for non-null schema field " + field.name);
+			}
+			out.writeIndex(field.nullBranch);
+			out.writeNull();
+			return;
+		}
+		if(field.valueBranch >= 0) {
+			out.writeIndex(field.valueBranch);
+		}
+		switch(field.type) {
+		case STRING:
+			out.writeString((String) value);
+			break;
+		case INT:
+			out.writeInt(((Number) value).intValue());
+			break;
+		case LONG:
+			out.writeLong(((Number) value).longValue());
+			break;
+		case FLOAT:
+			out.writeFloat(((Number) value).floatValue());
+			break;
+		case DOUBLE:
+			out.writeDouble(((Number) value).doubleValue());
+			break;
+		default:
+			throw new IllegalStateException("Unsupported type " + field.type + " for schema field " + field.name);
+		}
+	}
+
+	private static void increment(Map<String, Long> counts, String tag) {
+		Long count = counts.get(tag);
+		counts.put(tag, Long.valueOf(count == null ? 1 : count.longValue() + 1));
+	}
+
+	/**
+	 * Add the record and dropped tag counts of another codec to this codec
+	 * @param other Other codec
+	 */
+	public void addCounts(AvroSamCodec other) {
+		numRecords += other.numRecords;
+		for(Map.Entry<String, Long> entry : other.numUnknownTags.entrySet()) {
+			Long count = numUnknownTags.get(entry.getKey());
+			numUnknownTags.put(entry.getKey(), Long.valueOf((count == null ? 0 : count.longValue()) + entry.getValue().longValue()));
+		}
+		for(Map.Entry<String, Long> entry : other.numMismatchedTags.entrySet()) {
+			Long count = numMismatchedTags.get(entry.getKey());
+			numMismatchedTags.put(entry.getKey(), Long.valueOf((count == null ? 0 : count.longValue()) + entry.getValue().longValue()));
+		}
+	}
+
+	/**
+	 * @return The number of records encoded
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @return The number of times each tag was dropped because the schema has no field for it
+	 */
+	public Map<String, Long> getNumUnknownTags() {
+		return numUnknownTags;
+	}
+
+	/**
+	 * @return The number of times each tag was dropped because its value does not match the schema field type
+	 */
+	public Map<String, Long> getNumMismatchedTags() {
+		return numMismatchedTags;
+	}
+
+	/**
+	 * Log the dropped tag counts
+	 */
+	public void logDroppedTags() {
+		for(Map.Entry<String, Long> entry : numUnknownTags.entrySet()) {
+			logger.warn("Dropped tag " + entry.getKey() + " from " + entry.getValue() + " of " + numRecords + " records: no field " + TAG_FIELD_PREFIX + entry.getKey() + " in schema");
+		}
+		for(Map.Entry<String, Long> entry : numMismatchedTags.entrySet()) {
+			logger.warn("Dropped tag " + entry.getKey() + " from " + entry.getValue() + " of " + numRecords + " records: value does not match schema field type");
+		}
+	}
+
+	/**
+	 * A byte array output stream whose buffer can be read without copying
+	 */
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+		public ExposedByteArrayOutputStream() {
+			super(1024);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+}
@@ -8,7 +8,6 @@ import guttmanlab.core.annotation.SAMFragment;
 import guttmanlab.core.annotation.SingleInterval;
 import guttmanlab.core.annotation.predicate.ReadFlag;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
-import guttmanlab.core.util.SAMFlagDecoder;
 
 import java.util.Collection;
 import java.util.Iterator;
@@ -26,49 +25,59 @@ public class AvroSamRecord extends BlockedAnnotation implements GenericRecord, M
 	private boolean firstReadTranscriptionStrand;
 	public static int MIN_MAPPING_QUALITY = 0;
 	public static int MAX_MAPPING_QUALITY = Integer.MAX_VALUE; // mapq=255 means mapping quality not available
+	private static final int FLAG_PAIRED = 0x1;
+	private static final int FLAG_REVERSE_STRAND = 0x10;
+	private static final int FLAG_FIRST_OF_PAIR = 0x40;
 	
 	public AvroSamRecord(GenericRecord genericRecord) {
 		this(genericRecord, true);
 	}
 	
+	/**
+	 * Only the mapping quality is checked on construction; the annotation is built from the cigar on first use
+	 * @param genericRecord Record with the SAM fields
+	 * @param firstReadIsTranscriptionStrand Whether the first read of a pair is on the transcription strand
+	 */
 	public AvroSamRecord(GenericRecord genericRecord, boolean firstReadIsTranscriptionStrand) {
-		
-		// Get basic attributes
 		firstReadTranscriptionStrand = firstReadIsTranscriptionStrand;
 		record = genericRecord;
 		if(!mappingQualityIsOk()) {
 			throw new IllegalStateException("Mapping quality not valid: " + getMappingQuality());
 		}
-		String cigar = getStringAttribute("cigar");
-		String chr = getReferenceName();
-		int start = getReferenceStartPosition();
-		String name = getName();
-		
-		// Determine strand
+	}
+	
+	/**
+	 * @return The annotation parsed from the cigar, constructed on the first call
+	 */
+	private Annotation getAnnotation() {
+		if(annotation == null) {
+			annotation = SAMFragment.parseCigar(getStringAttribute("cigar"), getReferenceName(), getReferenceStartPosition(), getStrand(), getName());
+		}
+		return annotation;
+	}
+	
+	/**
+	 * @return The transcription strand determined from the flag
+	 */
+	private Strand getStrand() {
 		int flag = getIntAttribute("flag");
-		SAMFlagDecoder decoder = new SAMFlagDecoder(flag);
-		boolean isPaired = decoder.templateHasMultipleSegmentsInSequencing();
-		boolean isFirst = decoder.firstSegmentInTemplate();
-		boolean plusStrand = !decoder.seqIsReverseComplemented();
-		Strand strand = null;
+		boolean isPaired = (flag & FLAG_PAIRED) != 0;
+		boolean isFirst = (flag & FLAG_FIRST_OF_PAIR) != 0;
+		boolean plusStrand = (flag & FLAG_REVERSE_STRAND) == 0;
 		if(isPaired) {
-			if((firstReadTranscriptionStrand && isFirst) || (!firstReadTranscriptionStrand && !isFirst)) {
-				strand = plusStrand ? Strand.POSITIVE : Strand.NEGATIVE;
-			}
-			if((firstReadTranscriptionStrand && !isFirst) || (!firstReadTranscriptionStrand && isFirst)) {
-				strand = plusStrand ? Strand.NEGATIVE : Strand.POSITIVE;
-			}
-		} else {
-			if(firstReadTranscriptionStrand && plusStrand || !firstReadTranscriptionStrand && !plusStrand) {
-				strand = Strand.POSITIVE;
-			}
-			if(firstReadTranscriptionStrand && !plusStrand || !firstReadTranscriptionStrand && plusStrand) {
-				strand = Strand.NEGATIVE;
-			}
+			return (firstReadTranscriptionStrand == isFirst) == plusStrand ? Strand.POSITIVE : Strand.NEGATIVE;
 		}
-		
-		// Construct annotation
-		annotation = SAMFragment.parseCigar(cigar, chr, start, strand, name);
+		return firstReadTranscriptionStrand == plusStrand ? Strand.POSITIVE : Strand.NEGATIVE;
+	}
+	
+	/**
+	 * Check the mapping quality of a record before constructing an AvroSamRecord
+	 * @param genericRecord Record with the SAM fields
+	 * @return True iff the record has a mapping quality that is at least the minimum and at most the maximum
+	 */
+	public static boolean mappingQualityIsOk(GenericRecord genericRecord) {
+		Object mapq = genericRecord.get("mapq");
+		return mapq != null && mappingQualityIsOk(((Integer) mapq).intValue());
 	}
 	
 	/**
@@ -148,37 +157,37 @@ public class AvroSamRecord extends BlockedAnnotation implements GenericRecord, M
 
 	@Override
 	public int getReferenceEndPosition() {
-		return annotation.getReferenceEndPosition();
+		return getAnnotation().getReferenceEndPosition();
 	}
 
 	@Override
 	public Iterator<SingleInterval> getBlocks() {
-		return annotation.getBlocks();
+		return getAnnotation().getBlocks();
 	}
 
 	@Override
 	public int getNumberOfBlocks() {
-		return annotation.getNumberOfBlocks();
+		return getAnnotation().getNumberOfBlocks();
 	}
 
 	@Override
 	public int size() {
-		return annotation.size();
+		return getAnnotation().size();
 	}
 
 	@Override
 	public Strand getOrientation() {
-		return annotation.getOrientation();
+		return getAnnotation().getOrientation();
 	}
 
 	@Override
 	public int getRelativePositionFrom5PrimeOfFeature(int referenceStart) {
-		return annotation.getRelativePositionFrom5PrimeOfFeature(referenceStart);
+		return getAnnotation().getRelativePositionFrom5PrimeOfFeature(referenceStart);
 	}
 
 	@Override
 	public AnnotationCollection<DerivedAnnotation<? extends Annotation>> getWindows(int windowSize, int stepSize) {
-		return annotation.getWindows(windowSize, stepSize);
+		return getAnnotation().getWindows(windowSize, stepSize);
 	}
 
 	@Override
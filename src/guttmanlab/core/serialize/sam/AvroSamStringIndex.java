@@ -5,10 +5,14 @@ import guttmanlab.core.annotationcollection.AnnotationCollection;
 import guttmanlab.core.annotationcollection.FeatureCollection;
 import guttmanlab.core.serialize.AvroIndex;
 import guttmanlab.core.serialize.AvroStringIndex;
+import guttmanlab.core.serialize.KeyRecords;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.avro.generic.GenericRecord;
@@ -36,10 +40,51 @@ public class AvroSamStringIndex implements AvroIndex<String> {
 	 * @throws IOException
 	 */
 	public AvroSamStringIndex(String avroFileName, String schemaFile, String indexedFieldName, AnnotationCollection<Gene> regionsToExclude) throws IOException {
-		stringIndex = new AvroStringIndex(avroFileName, schemaFile, indexedFieldName);
+		this(new AvroStringIndex(avroFileName, schemaFile, indexedFieldName), regionsToExclude);
+	}
+	
+	/**
+	 * Wrap a loaded string index, e.g. a ConcurrentAvroStringIndex to query from several threads
+	 * @param index String index over an avro database of SAM records
+	 * @param regionsToExclude Exclude matches that overlap any of these annotations, or null if not using
+	 */
+	public AvroSamStringIndex(AvroStringIndex index, AnnotationCollection<Gene> regionsToExclude) {
+		stringIndex = index;
 		excludeRegions = regionsToExclude;
 	}
+	
+	/**
+	 * Close the underlying index
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		stringIndex.close();
+	}
 
+	/**
+	 * The fields an AvroSamRecord needs to build its annotation
+	 */
+	public static final Collection<String> ANNOTATION_FIELDS = Collections.unmodifiableList(Arrays.asList("qname", "flag", "rname", "pos", "mapq", "cigar"));
+	
+	/**
+	 * Only decode the fields needed for record coordinates (ANNOTATION_FIELDS), skipping sequence,
+	 * qualities and tags. Returned records have null values for the other fields, so getNumHits() and
+	 * attribute exclusion sets are not available unless their fields are added with setProjection().
+	 * @throws IOException
+	 */
+	public void setAnnotationFieldsOnly() throws IOException {
+		setProjection(ANNOTATION_FIELDS);
+	}
+	
+	/**
+	 * Only decode some fields of each record
+	 * @param fieldNames Names of fields to decode, or null to decode all fields
+	 * @throws IOException
+	 */
+	public void setProjection(Collection<String> fieldNames) throws IOException {
+		stringIndex.setProjection(fieldNames);
+	}
+	
 	@Override
 	public void loadIndex(boolean validate) throws IOException {
 		stringIndex.loadIndex(validate);
@@ -57,21 +102,7 @@ public class AvroSamStringIndex implements AvroIndex<String> {
 	@Override
 	public List<AvroSamRecord> get(String key) throws IOException {
 		List<GenericRecord> genericRecords = stringIndex.get(key);
-		List<AvroSamRecord> rtrn = new ArrayList<AvroSamRecord>();
-		for(GenericRecord record : genericRecords) {
-			try {
-				AvroSamRecord samRecord = new AvroSamRecord(record);
-				// Skip the record if it overlaps a region from the exclusion set
-				if(excludeRegions != null && excludeRegions.overlaps(samRecord)) {
-					continue;
-				}
-				rtrn.add(samRecord);
-			} catch(IllegalStateException e) {
-				// Invalid mapping quality
-				continue;
-			}
-		}
-		return rtrn;
+		return toSamRecords(genericRecords);
 	}
 
 	@Override
@@ -90,8 +121,58 @@ public class AvroSamStringIndex implements AvroIndex<String> {
 	 */
 	public List<AvroSamRecord> get(String key, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
 		List<GenericRecord> genericRecords = stringIndex.get(key, nameOfAttributeForExclusionSet, attributeValuesToExclude);
+		return toSamRecords(genericRecords);
+	}
+
+	@Override
+	public Iterator<KeyRecords<String, AvroSamRecord>> getAll(Iterable<String> keys) throws IOException {
+		return toSamRecords(stringIndex.getAll(keys));
+	}
+	
+	/**
+	 * Get the records for many keys in one pass over the file
+	 * Optionally exclude records with some attribute contained in a set of values to exclude
+	 * Other queries on this index should not be made until the returned iterator is exhausted
+	 * @param keys The keys, in any order
+	 * @param nameOfAttributeForExclusionSet The name of the attribute to check for exclusion, or null if not using
+	 * @param attributeValuesToExclude The attribute values to exclude, or null if not using
+	 * @return One group per distinct key, in sorted key order, with an empty list for keys that are not in the file
+	 * @throws IOException
+	 */
+	public Iterator<KeyRecords<String, AvroSamRecord>> getAll(Iterable<String> keys, String nameOfAttributeForExclusionSet, Collection<String> attributeValuesToExclude) throws IOException {
+		return toSamRecords(stringIndex.getAll(keys, nameOfAttributeForExclusionSet, attributeValuesToExclude));
+	}
+	
+	private Iterator<KeyRecords<String, AvroSamRecord>> toSamRecords(final Iterator<KeyRecords<String, GenericRecord>> groups) {
+		return new Iterator<KeyRecords<String, AvroSamRecord>>() {
+			@Override
+			public boolean hasNext() {
+				return groups.hasNext();
+			}
+			@Override
+			public KeyRecords<String, AvroSamRecord> next() {
+				KeyRecords<String, GenericRecord> group = groups.next();
+				return new KeyRecords<String, AvroSamRecord>(group.getKey(), toSamRecords(group.getRecords()));
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Convert generic records to SAM records, skipping records with invalid mapping quality or in excluded regions
+	 * @param genericRecords Generic records
+	 * @return SAM records
+	 */
+	private List<AvroSamRecord> toSamRecords(List<GenericRecord> genericRecords) {
 		List<AvroSamRecord> rtrn = new ArrayList<AvroSamRecord>();
 		for(GenericRecord record : genericRecords) {
+			// Check mapping quality before constructing the record
+			if(!AvroSamRecord.mappingQualityIsOk(record)) {
+				continue;
+			}
 			try {
 				AvroSamRecord samRecord = new AvroSamRecord(record);
 				// Skip the record if it overlaps a region from the exclusion set
@@ -4,13 +4,10 @@ import guttmanlab.core.util.CommandLineParser;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
 
-import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.DatumWriter;
@@ -18,7 +15,6 @@ import org.apache.log4j.Logger;
 
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
-import net.sf.samtools.SAMRecord.SAMTagAndValue;
 import net.sf.samtools.SAMRecordIterator;
 
 /**
@@ -44,8 +40,8 @@ public class SerializeBam {
 		SAMRecordIterator samIter = samReader.iterator();
 		// Create the schema
 		Schema schema = new Schema.Parser().parse(new File(schemaFile));
-		// Create a record to hold sam record
-		GenericRecord avroRec = new GenericData.Record(schema);
+		// Codec to encode sam records for the schema
+		AvroSamCodec codec = new AvroSamCodec(schema);
 		// This file will have Avro output data
 		File AvroFile = new File(outputAvro);
 		// Create a writer to serialize the record
@@ -57,32 +53,13 @@ public class SerializeBam {
 		// Iterate over bam file and write to Avro output file
 		while(samIter.hasNext()) {
 			SAMRecord samRecord = samIter.next();
-			avroRec.put("qname", samRecord.getReadName());
-			avroRec.put("flag", samRecord.getFlags());
-			avroRec.put("rname", samRecord.getReferenceName());
-			avroRec.put("pos", samRecord.getAlignmentStart());
-			avroRec.put("mapq", samRecord.getMappingQuality());
-			avroRec.put("cigar", samRecord.getCigarString());
-			avroRec.put("rnext", samRecord.getMateReferenceName());
-			avroRec.put("pnext", samRecord.getMateAlignmentStart());
-			avroRec.put("tlen", samRecord.getInferredInsertSize());
-			avroRec.put("seq", samRecord.getReadString());
-			avroRec.put("qual", samRecord.getBaseQualityString());
-			List<SAMTagAndValue> tags = samRecord.getAttributes();
-			for(SAMTagAndValue tag : tags) {
-				String name = "tag" + tag.tag;
-				try {
-					avroRec.put(name, tag.value);
-				} catch(AvroRuntimeException e) {
-					// TODO keep track of these and report
-					// This exception is thrown if the schema does not contain the tag name
-				}
-			}
-			dataFileWriter.append(avroRec);
-		}  // end of for loop
-
+			dataFileWriter.appendEncoded(codec.encode(samRecord));
+		}
+		
+		samIter.close();
 		samReader.close();
 		dataFileWriter.close();
+		codec.logDroppedTags();
 		
 	}
 	
@@ -92,11 +69,19 @@ public class SerializeBam {
 		p.addStringArg("-s", "Avro schema file with .avsc extension", true);
 		p.addStringArg("-b", "Input bam file", true);
 		p.addStringArg("-a", "Output Avro file with .avro extension", true);
+		p.addIntArg("-t", "Number of converter threads", false, 1);
+		p.addStringArg("-f", "Field to index while writing (bam must be sorted by this field)", false, null);
 		p.parse(args);
 		String schema = p.getStringArg("-s");
 		String bam = p.getStringArg("-b");
 		String avro = p.getStringArg("-a");
-		serialize(schema, bam, avro);
+		int numThreads = p.getIntArg("-t");
+		String indexField = p.getStringArg("-f");
+		if(numThreads > 1 || indexField != null) {
+			new SerializeBamPipeline(new Schema.Parser().parse(new File(schema)), numThreads, indexField).serialize(bam, avro);
+		} else {
+			serialize(schema, bam, avro);
+		}
 		long time = (System.nanoTime() - start) / 1000000000;
 		logger.info("Total time: " + time + " seconds");
 	}
@@ -0,0 +1,317 @@
+package guttmanlab.core.serialize.sam;
+
+import guttmanlab.core.serialize.IndexedAvroFileWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.avro.Schema;
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Convert a bam file to an avro file with a pipeline of threads.
+ *
+ * The calling thread reads batches of records from the bam file. Converter threads encode each batch
+ * with an AvroSamCodec, and a writer thread appends the encoded records in their original order with
+ * DataFileWriter.appendEncoded. The queue between the reader and the writer holds at most queueDepth
+ * batches, so memory use is bounded.
+ *
+ * Optionally the writer also writes the AbstractAvroIndex index for one field (see IndexedAvroFileWriter),
+ * so a separate BuildAvroIndex pass over the output is not needed. The bam file must be sorted by the
+ * indexed field; if it is not, no index is written.
+ * @author prussell
+ *
+ */
+public class SerializeBamPipeline {
+
+	private Schema schema;
+	private int numThreads;
+	private int queueDepth;
+	private int batchSize;
+	private String indexField;
+	private List<AvroSamCodec> codecs;
+	private static Logger logger = Logger.getLogger(SerializeBamPipeline.class.getName());
+
+	/**
+	 * Default number of records converted as one batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	/**
+	 * Default number of batches in the queue per converter thread
+	 */
+	public static final int DEFAULT_BATCHES_PER_THREAD = 4;
+
+	/**
+	 * @param schema Avro schema for sam records
+	 * @param numThreads Number of converter threads
+	 * @param indexField Field to write the index for, or null to not write an index
+	 */
+	public SerializeBamPipeline(Schema schema, int numThreads, String indexField) {
+		this(schema, numThreads, numThreads * DEFAULT_BATCHES_PER_THREAD, DEFAULT_BATCH_SIZE, indexField);
+	}
+
+	/**
+	 * @param schema Avro schema for sam records
+	 * @param numThreads Number of converter threads
+	 * @param queueDepth Maximum number of batches read ahead of the writer
+	 * @param batchSize Number of records converted as one batch
+	 * @param indexField Field to write the index for, or null to not write an index
+	 */
+	public SerializeBamPipeline(Schema schema, int numThreads, int queueDepth, int batchSize, String indexField) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(queueDepth < 1) {
+			throw new IllegalArgumentException("Queue depth must be at least 1: " + queueDepth);
+		}
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+		}
+		this.schema = schema;
+		this.numThreads = numThreads;
+		this.queueDepth = queueDepth;
+		this.batchSize = batchSize;
+		this.indexField = indexField;
+		if(indexField != null) {
+			// Check the field exists
+			new AvroSamCodec(schema).getFieldPosition(indexField);
+		}
+	}
+
+	/**
+	 * Encoded records of a batch, with the value of the indexed field of each record
+	 */
+	private static class EncodedBatch {
+		private byte[] data;
+		private int[] ends; // End offset of each record in data
+		private Object[] keys; // Value of the indexed field of each record, or null if not indexing
+	}
+
+	/**
+	 * Convert a bam file
+	 * @param inputBam Bam file to serialize
+	 * @param outputAvro Avro file to write
+	 * @throws IOException
+	 */
+	public void serialize(String inputBam, String outputAvro) throws IOException {
+		// Open the input and check the index field before starting any thread or creating the output
+		final int fieldPosition = indexField == null ? -1 : new AvroSamCodec(schema).getFieldPosition(indexField);
+		SAMFileReader samReader = new SAMFileReader(new File(inputBam));
+		SAMRecordIterator samIter = null;
+		final IndexedAvroFileWriter avroWriter;
+		try {
+			samIter = samReader.iterator();
+			avroWriter = new IndexedAvroFileWriter(schema, new File(outputAvro), indexField);
+		} catch(Throwable e) {
+			if(samIter != null) {
+				samIter.close();
+			}
+			samReader.close();
+			throw e;
+		}
+		codecs = new ArrayList<AvroSamCodec>();
+		final ThreadLocal<AvroSamCodec> threadCodec = new ThreadLocal<AvroSamCodec>();
+		ExecutorService converters = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "avro-sam-converter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final BlockingQueue<Future<EncodedBatch>> queue = new ArrayBlockingQueue<Future<EncodedBatch>>(queueDepth);
+		// First error on any thread; once set, the writer keeps taking batches without writing them
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write(queue, avroWriter, error);
+			}
+		}, "avro-sam-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		try {
+			while(error.get() == null) {
+				final List<SAMRecord> batch = new ArrayList<SAMRecord>(batchSize);
+				while(batch.size() < batchSize && samIter.hasNext()) {
+					batch.add(samIter.next());
+				}
+				if(batch.isEmpty()) {
+					break;
+				}
+				queue.put(converters.submit(new Callable<EncodedBatch>() {
+					@Override
+					public EncodedBatch call() throws IOException {
+						AvroSamCodec codec = threadCodec.get();
+						if(codec == null) {
+							codec = new AvroSamCodec(schema);
+							threadCodec.set(codec);
+							synchronized(codecs) {
+								codecs.add(codec);
+							}
+						}
+						return encode(batch, codec, fieldPosition);
+					}
+				}));
+			}
+		} catch(Throwable e) {
+			error.compareAndSet(null, e);
+		} finally {
+			// The converters keep running until the writer has taken every queued batch and the end marker,
+			// so the writer is never left waiting on a dropped batch
+			finish(queue, converters, writer, error);
+			samIter.close();
+			samReader.close();
+			if(error.get() == null) {
+				avroWriter.close();
+			} else {
+				avroWriter.abort();
+			}
+		}
+		Throwable e = error.get();
+		if(e != null) {
+			if(e instanceof IOException) {
+				throw (IOException) e;
+			}
+			if(e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			if(e instanceof Error) {
+				throw (Error) e;
+			}
+			if(e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while converting " + inputBam, e);
+			}
+			throw new IOException("Error writing " + outputAvro, e);
+		}
+		AvroSamCodec counts = new AvroSamCodec(schema);
+		for(AvroSamCodec codec : codecs) {
+			counts.addCounts(codec);
+		}
+		logger.info("Wrote " + counts.getNumRecords() + " records to " + outputAvro);
+		counts.logDroppedTags();
+	}
+
+	/**
+	 * Encode a batch of records
+	 * @param batch The records
+	 * @param codec Codec for the current thread
+	 * @param fieldPosition Position of the indexed field, or -1 if not indexing
+	 * @return The encoded batch
+	 * @throws IOException
+	 */
+	private static EncodedBatch encode(List<SAMRecord> batch, AvroSamCodec codec, int fieldPosition) throws IOException {
+		EncodedBatch rtrn = new EncodedBatch();
+		ByteArrayOutputStream data = new ByteArrayOutputStream(256 * batch.size());
+		rtrn.ends = new int[batch.size()];
+		rtrn.keys = fieldPosition < 0 ? null : new Object[batch.size()];
+		for(int i = 0; i < batch.size(); i++) {
+			SAMRecord record = batch.get(i);
+			ByteBuffer encoded = codec.encode(record);
+			data.write(encoded.array(), encoded.position(), encoded.remaining());
+			rtrn.ends[i] = data.size();
+			if(fieldPosition >= 0) {
+				rtrn.keys[i] = codec.getFieldValue(record, fieldPosition);
+			}
+		}
+		rtrn.data = data.toByteArray();
+		return rtrn;
+	}
+
+	/**
+	 * Append encoded batches in order until the end of input marker
+	 * After an error, batches are taken without being written so the reading thread is not blocked.
+	 * @param queue Queue of batches
+	 * @param avroWriter Avro file writer
+	 * @param error Holder for the first error
+	 */
+	private static void write(BlockingQueue<Future<EncodedBatch>> queue, IndexedAvroFileWriter avroWriter, AtomicReference<Throwable> error) {
+		while(true) {
+			EncodedBatch batch;
+			try {
+				batch = queue.take().get();
+			} catch(InterruptedException e) {
+				error.compareAndSet(null, e);
+				return;
+			} catch(ExecutionException e) {
+				error.compareAndSet(null, e.getCause());
+				continue;
+			}
+			if(batch == null) {
+				return;
+			}
+			if(error.get() != null) {
+				continue;
+			}
+			try {
+				int start = 0;
+				for(int i = 0; i < batch.ends.length; i++) {
+					ByteBuffer datum = ByteBuffer.wrap(batch.data, start, batch.ends[i] - start);
+					avroWriter.appendEncoded(datum, batch.keys == null ? null : batch.keys[i]);
+					start = batch.ends[i];
+				}
+			} catch(Throwable e) {
+				error.compareAndSet(null, e);
+			}
+		}
+	}
+
+	/**
+	 * Queue the end of input marker and wait for the writer, then stop the converters
+	 * If the calling thread is interrupted, the writer is interrupted and still waited for, so the
+	 * output file is never closed while the writer is appending to it.
+	 * @param queue Queue of batches
+	 * @param converters Converter threads
+	 * @param writer Writer thread
+	 * @param error Holder for the first error
+	 */
+	private static void finish(BlockingQueue<Future<EncodedBatch>> queue, ExecutorService converters, Thread writer, AtomicReference<Throwable> error) {
+		boolean interrupted = false;
+		try {
+			queue.put(converters.submit(new Callable<EncodedBatch>() {
+				@Override
+				public EncodedBatch call() {
+					return null;
+				}
+			}));
+		} catch(InterruptedException e) {
+			interrupted = true;
+			error.compareAndSet(null, e);
+			writer.interrupt();
+		}
+		while(writer.isAlive()) {
+			try {
+				writer.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+				error.compareAndSet(null, e);
+				writer.interrupt();
+			}
+		}
+		converters.shutdownNow();
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
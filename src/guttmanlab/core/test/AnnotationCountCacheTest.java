@@ -0,0 +1,199 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.predicate.MaximumLengthFilter;
+import guttmanlab.core.annotation.predicate.StrandFilter;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+import org.apache.commons.collections15.Predicate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the read counts of BAMSingleReadCollection and their <bam>.counts sidecar file
+ */
+public class AnnotationCountCacheTest {
+
+	private static final String BAM = "src/guttmanlab/core/test/SingleCollectionTest.bam";
+	private static final String TOTAL = "__total__";
+	private File dir;
+	private File bam;
+	private File countFile;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("annotation-count-cache-test", "");
+		dir.delete();
+		dir.mkdir();
+		bam = new File(dir, "test.bam");
+		countFile = new File(dir, "test.bam.counts");
+		Files.copy(new File(BAM).toPath(), bam.toPath());
+		Files.copy(new File(BAM + ".bai").toPath(), new File(dir, "test.bam.bai").toPath());
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private BAMSingleReadCollection open(List<Predicate<SAMFragment>> filters) {
+		BAMSingleReadCollection rtrn = new BAMSingleReadCollection(bam);
+		for(Predicate<SAMFragment> filter : filters) {
+			rtrn.addFilter(filter);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return The number of reads on each reference and in total, counted by iterating over the collection
+	 */
+	private Map<String, Integer> iterate(List<Predicate<SAMFragment>> filters) {
+		Map<String, Integer> rtrn = new TreeMap<String, Integer>();
+		int total = 0;
+		CloseableIterator<SAMFragment> iter = open(filters).sortedIterator();
+		while(iter.hasNext()) {
+			String reference = iter.next().getSamRecord().getReferenceName();
+			Integer count = rtrn.get(reference);
+			rtrn.put(reference, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			total++;
+		}
+		iter.close();
+		rtrn.put(TOTAL, Integer.valueOf(total));
+		return rtrn;
+	}
+
+	private void checkCounts(List<Predicate<SAMFragment>> filters) {
+		Map<String, Integer> expected = iterate(filters);
+		BAMSingleReadCollection collection = open(filters);
+		assertEquals(filters.toString(), expected.get(TOTAL).intValue(), collection.getNumAnnotations());
+		SAMFileReader reader = new SAMFileReader(bam);
+		for(SAMSequenceRecord reference : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+			String name = reference.getSequenceName();
+			int count = expected.containsKey(name) ? expected.get(name).intValue() : 0;
+			assertEquals(filters + " " + name, count, collection.getNumAnnotations(name));
+		}
+		reader.close();
+		assertEquals(0, collection.getNumAnnotations("noSuchReference"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Predicate<SAMFragment>> filters(Predicate<?>... filters) {
+		return Arrays.asList((Predicate<SAMFragment>[]) filters);
+	}
+
+	private Properties readCountFile() throws IOException {
+		Properties rtrn = new Properties();
+		InputStream in = new FileInputStream(countFile);
+		rtrn.load(in);
+		in.close();
+		return rtrn;
+	}
+
+	/**
+	 * Replace a cached count in the sidecar file, keeping the recorded state of the BAM file
+	 */
+	private void setCachedCount(String key, int count) throws IOException {
+		Properties properties = readCountFile();
+		assertNotNull(key, properties.getProperty(key));
+		properties.setProperty(key, Integer.toString(count));
+		OutputStream out = new FileOutputStream(countFile);
+		properties.store(out, null);
+		out.close();
+	}
+
+	@Test
+	public void testCountsMatchIteration() throws IOException {
+		checkCounts(filters());
+		checkCounts(filters(new MaximumLengthFilter<SAMFragment>(20)));
+		checkCounts(filters(new MaximumLengthFilter<SAMFragment>(25)));
+		checkCounts(filters(new StrandFilter<SAMFragment>(Strand.POSITIVE)));
+		checkCounts(filters(new StrandFilter<SAMFragment>(Strand.NEGATIVE), new MaximumLengthFilter<SAMFragment>(25)));
+		// Counts from the sidecar file written above
+		assertTrue(countFile.exists());
+		checkCounts(filters(new MaximumLengthFilter<SAMFragment>(20)));
+		checkCounts(filters(new StrandFilter<SAMFragment>(Strand.NEGATIVE), new MaximumLengthFilter<SAMFragment>(25)));
+	}
+
+	@Test
+	public void testCountsWithoutIndex() {
+		// Without an index, the unfiltered counts are also computed by iterating and cached
+		new File(dir, "test.bam.bai").delete();
+		checkCounts(filters());
+		assertTrue(countFile.exists());
+		checkCounts(filters());
+	}
+
+	@Test
+	public void testCacheKeyedByFilters() throws IOException {
+		int count20 = open(filters(new MaximumLengthFilter<SAMFragment>(20))).getNumAnnotations();
+		int count25 = open(filters(new MaximumLengthFilter<SAMFragment>(25))).getNumAnnotations();
+		assertTrue(count20 < count25);
+		Properties properties = readCountFile();
+		assertEquals(Integer.toString(count20), properties.getProperty("MaximumLengthFilter(20);\t" + TOTAL));
+		assertEquals(Integer.toString(count25), properties.getProperty("MaximumLengthFilter(25);\t" + TOTAL));
+		// A changed count in the sidecar file is returned for its own filters only, which shows the counts are
+		// read from the file
+		setCachedCount("MaximumLengthFilter(20);\t" + TOTAL, 1000);
+		assertEquals(1000, open(filters(new MaximumLengthFilter<SAMFragment>(20))).getNumAnnotations());
+		assertEquals(count25, open(filters(new MaximumLengthFilter<SAMFragment>(25))).getNumAnnotations());
+		assertEquals(iterate(filters(new MaximumLengthFilter<SAMFragment>(21))).get(TOTAL).intValue(),
+				open(filters(new MaximumLengthFilter<SAMFragment>(21))).getNumAnnotations());
+		// Filters in a different order are a different set of counts
+		List<Predicate<SAMFragment>> twoFilters = filters(new MaximumLengthFilter<SAMFragment>(20), new StrandFilter<SAMFragment>(Strand.POSITIVE));
+		assertEquals(iterate(twoFilters).get(TOTAL).intValue(), open(twoFilters).getNumAnnotations());
+		assertEquals("1000", readCountFile().getProperty("MaximumLengthFilter(20);\t" + TOTAL));
+	}
+
+	@Test
+	public void testBamChangeInvalidatesCache() throws IOException {
+		List<Predicate<SAMFragment>> filters = filters(new MaximumLengthFilter<SAMFragment>(25));
+		int count = open(filters).getNumAnnotations();
+		setCachedCount("MaximumLengthFilter(25);\t" + TOTAL, 1000);
+		assertEquals(1000, open(filters).getNumAnnotations());
+		// Touching the BAM file discards all cached counts
+		assertTrue(bam.setLastModified(bam.lastModified() - 10000));
+		assertEquals(count, open(filters).getNumAnnotations());
+		assertEquals(Integer.toString(count), readCountFile().getProperty("MaximumLengthFilter(25);\t" + TOTAL));
+		assertEquals(Long.toString(bam.lastModified()), readCountFile().getProperty("bam.lastModified"));
+	}
+
+	@Test
+	public void testUncacheableFilter() {
+		// A filter without toString() cannot be identified in the sidecar file, so its counts are not cached
+		Predicate<SAMFragment> filter = new Predicate<SAMFragment>() {
+			@Override
+			public boolean evaluate(SAMFragment read) {
+				return read.getSamRecord().getReadNegativeStrandFlag();
+			}
+		};
+		assertEquals(iterate(filters(filter)).get(TOTAL).intValue(), open(filters(filter)).getNumAnnotations());
+		assertFalse(countFile.exists());
+	}
+
+}
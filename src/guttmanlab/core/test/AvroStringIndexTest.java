@@ -0,0 +1,203 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import guttmanlab.core.serialize.AbstractAvroIndex;
+import guttmanlab.core.serialize.AvroStringIndex;
+import guttmanlab.core.serialize.KeyRecords;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AvroStringIndexTest {
+
+	private static final String SCHEMA = "{\"type\": \"record\", \"name\": \"TestRecord\", \"fields\": ["
+			+ "{\"name\": \"key\", \"type\": \"string\"}, {\"name\": \"tag\", \"type\": \"string\"}, {\"name\": \"value\", \"type\": \"int\"}]}";
+	private File dir;
+	private String avroFile;
+	private String schemaFile;
+	private TreeMap<String, List<String>> expected; // Tag and value of the records of each key, in file order
+	private List<String> queries;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("avro-string-index-test", "");
+		dir.delete();
+		dir.mkdir();
+		schemaFile = new File(dir, "test.avsc").getPath();
+		FileWriter w = new FileWriter(schemaFile);
+		w.write(SCHEMA);
+		w.close();
+		avroFile = new File(dir, "test.avro").getPath();
+		// Sorted keys with 1 to 3 records each, and a few keys with enough records to span several blocks
+		Random random = new Random(5);
+		expected = new TreeMap<String, List<String>>();
+		for(int i = 0; i < 300; i++) {
+			String key = String.format("key%04d", 2 * i);
+			int numRecords = i % 50 == 7 ? 40 : 1 + random.nextInt(3);
+			List<String> records = new ArrayList<String>();
+			for(int j = 0; j < numRecords; j++) {
+				records.add("xyz".charAt(random.nextInt(3)) + ":" + random.nextInt(1000));
+			}
+			expected.put(key, records);
+		}
+		Schema schema = new Schema.Parser().parse(SCHEMA);
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+		// Small blocks, so that keys span blocks
+		writer.setSyncInterval(64);
+		writer.create(schema, new File(avroFile));
+		for(String key : expected.keySet()) {
+			for(String record : expected.get(key)) {
+				GenericRecord r = new GenericData.Record(schema);
+				r.put("key", key);
+				r.put("tag", record.substring(0, 1));
+				r.put("value", Integer.valueOf(record.substring(2)));
+				writer.append(r);
+			}
+		}
+		writer.close();
+		AbstractAvroIndex.writeIndex("key", schemaFile, avroFile);
+		// Every key, keys between keys, and keys before and after all keys in the file
+		queries = new ArrayList<String>();
+		for(int i = -1; i <= 600; i++) {
+			queries.add(String.format("key%04d", i));
+		}
+		queries.add("a");
+		queries.add("z");
+		Collections.shuffle(queries, random);
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static List<String> toStrings(List<GenericRecord> records) {
+		List<String> rtrn = new ArrayList<String>();
+		for(GenericRecord record : records) {
+			rtrn.add(record.get("tag") + ":" + record.get("value"));
+		}
+		return rtrn;
+	}
+
+	private List<String> getExpected(String key, Collection<String> excludedTags) {
+		List<String> rtrn = new ArrayList<String>();
+		if(expected.containsKey(key)) {
+			for(String record : expected.get(key)) {
+				if(excludedTags == null || !excludedTags.contains(record.substring(0, 1))) {
+					rtrn.add(record);
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	private void checkGetAll(AvroStringIndex index, Collection<String> excludedTags) throws IOException {
+		Iterator<KeyRecords<String, GenericRecord>> iter = excludedTags == null ? index.getAll(queries) : index.getAll(queries, "tag", excludedTags);
+		TreeSet<String> sortedQueries = new TreeSet<String>(queries);
+		for(String key : sortedQueries) {
+			assertTrue(iter.hasNext());
+			KeyRecords<String, GenericRecord> group = iter.next();
+			assertEquals(key, group.getKey());
+			assertEquals(key, getExpected(key, excludedTags), toStrings(group.getRecords()));
+		}
+		assertFalse(iter.hasNext());
+	}
+
+	private void checkGet(AvroStringIndex index, Collection<String> excludedTags) throws IOException {
+		String firstKey = expected.firstKey();
+		for(String key : queries) {
+			if(key.compareTo(firstKey) <= 0) {
+				// get() does not work for the first key in the file or keys before it
+				continue;
+			}
+			if(!expected.containsKey(key)) {
+				// get() throws for keys that are not in the file, where getAll() returns no records
+				try {
+					index.get(key);
+					fail("No exception for missing key " + key);
+				} catch(NoSuchElementException e) {
+					continue;
+				}
+			}
+			List<GenericRecord> records = excludedTags == null ? index.get(key) : index.get(key, "tag", excludedTags);
+			assertEquals(key, getExpected(key, excludedTags), toStrings(records));
+		}
+	}
+
+	@Test
+	public void testGetAllMatchesGet() throws IOException {
+		AvroStringIndex index = new AvroStringIndex(avroFile, schemaFile, "key");
+		checkGet(index, null);
+		checkGetAll(index, null);
+		// get() after a batch query
+		checkGet(index, null);
+		index.close();
+	}
+
+	@Test
+	public void testGetAllWithExclusions() throws IOException {
+		AvroStringIndex index = new AvroStringIndex(avroFile, schemaFile, "key");
+		Collection<String> excluded = Arrays.asList("y");
+		checkGet(index, excluded);
+		checkGetAll(index, excluded);
+		index.close();
+	}
+
+	@Test
+	public void testGetAllWithBinaryIndex() throws IOException {
+		// The first index validates the text index and writes the binary index; the second maps the binary index
+		new AvroStringIndex(avroFile, schemaFile, "key").close();
+		assertTrue(new File(AvroStringIndex.getBinaryIndexFileName(avroFile)).exists());
+		AvroStringIndex index = new AvroStringIndex(avroFile, schemaFile, "key");
+		checkGetAll(index, null);
+		checkGet(index, null);
+		index.close();
+	}
+
+	@Test
+	public void testGetAllSubsets() throws IOException {
+		AvroStringIndex index = new AvroStringIndex(avroFile, schemaFile, "key");
+		// Single keys, including the first and last keys in the file, and keys far apart
+		for(String key : Arrays.asList(expected.firstKey(), expected.lastKey(), "key0001", "key0015")) {
+			Iterator<KeyRecords<String, GenericRecord>> iter = index.getAll(Collections.singletonList(key));
+			assertEquals(getExpected(key, null), toStrings(iter.next().getRecords()));
+			assertFalse(iter.hasNext());
+		}
+		List<String> keys = Arrays.asList("key0590", "key0014", "key0014", "key0300");
+		Iterator<KeyRecords<String, GenericRecord>> iter = index.getAll(keys);
+		for(String key : new TreeSet<String>(keys)) {
+			KeyRecords<String, GenericRecord> group = iter.next();
+			assertEquals(key, group.getKey());
+			assertEquals(getExpected(key, null), toStrings(group.getRecords()));
+		}
+		assertFalse(iter.hasNext());
+		index.close();
+	}
+
+}
@@ -11,9 +11,13 @@ import guttmanlab.core.annotation.io.BEDFileIO;
 import guttmanlab.core.annotation.predicate.MaximumLengthFilter;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
 import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+import guttmanlab.core.annotationcollection.FilterStatistics;
+import guttmanlab.core.annotationcollection.RegionOverlappers;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.sf.samtools.util.CloseableIterator;
 
@@ -140,6 +144,50 @@ public class BAMSingleReadTest {
 	}
 	
 	
+	@Test
+	public void FilterStatisticsMatchIteratorCounts() {
+		Annotation a = new SingleInterval("chr19", 30267000, 30272000, Strand.NEGATIVE);
+		FilterStatistics stats = new FilterStatistics();
+		bam.setFilterStatistics(stats, false);
+		
+		int count = 0;
+		CloseableIterator<SAMFragment> f_iter = bam.sortedIterator(a, false);
+		while(f_iter.hasNext())
+		{
+			f_iter.next();
+			count++;
+		}
+		f_iter.close();
+		
+		assertEquals("6 negative reads should overlap region.",6,count);
+		assertEquals(count, stats.getNumPassed());
+		FilterStatistics.Entry overlaps = stats.getEntry("OverlapsFilter");
+		assertNotNull(overlaps);
+		assertEquals(stats.getNumRecords(), overlaps.getEvaluations());
+	}
+	
+	
+	@Test
+	public void BatchSortedIteratorMatchesSingleQueries() {
+		List<Annotation> regions = new ArrayList<Annotation>();
+		regions.add(new SingleInterval("chr19", 30267000, 30272000, Strand.POSITIVE));
+		regions.add(new SingleInterval("chr19", 30267000, 30272000, Strand.NEGATIVE));
+		regions.add(new SingleInterval("chr19", 30271000, 30280000, Strand.BOTH));
+		
+		CloseableIterator<RegionOverlappers<SAMFragment>> iter = bam.sortedIterator(regions, false);
+		int i = 0;
+		while(iter.hasNext())
+		{
+			RegionOverlappers<SAMFragment> group = iter.next();
+			assertEquals(regions.get(i), group.getRegion());
+			assertEquals(bam.numOverlappers(regions.get(i), false), group.getNumOverlappers());
+			i++;
+		}
+		iter.close();
+		assertEquals(regions.size(), i);
+	}
+	
+	
 	//@Test
 	public void AnnotationCollectionGetCount() {
 		int count = bam.getNumAnnotations();
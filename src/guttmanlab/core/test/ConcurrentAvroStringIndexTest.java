@@ -0,0 +1,204 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import guttmanlab.core.serialize.AbstractAvroIndex;
+import guttmanlab.core.serialize.AvroStringIndex;
+import guttmanlab.core.serialize.ConcurrentAvroStringIndex;
+import guttmanlab.core.serialize.DecodedBlockCache;
+import guttmanlab.core.serialize.KeyRecords;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentAvroStringIndexTest {
+
+	private static final String SCHEMA = "{\"type\": \"record\", \"name\": \"TestRecord\", \"fields\": ["
+			+ "{\"name\": \"key\", \"type\": \"string\"}, {\"name\": \"tag\", \"type\": \"string\"}, {\"name\": \"value\", \"type\": \"int\"}]}";
+	private static final int NUM_THREADS = 8;
+	private static final Collection<String> EXCLUDED = Arrays.asList("y");
+	private File dir;
+	private String avroFile;
+	private String schemaFile;
+	private List<String> queries;
+	private ExecutorService pool;
+
+	/**
+	 * Write an indexed avro file of sorted keys with 1 to 30 records each in small blocks
+	 */
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("concurrent-avro-index-test", "");
+		dir.delete();
+		dir.mkdir();
+		schemaFile = new File(dir, "test.avsc").getPath();
+		FileWriter w = new FileWriter(schemaFile);
+		w.write(SCHEMA);
+		w.close();
+		avroFile = new File(dir, "test.avro").getPath();
+		Schema schema = new Schema.Parser().parse(SCHEMA);
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+		writer.setSyncInterval(128);
+		writer.create(schema, new File(avroFile));
+		Random random = new Random(71);
+		for(int i = 0; i < 200; i++) {
+			for(int j = i % 20 == 3 ? 30 : 1 + random.nextInt(3); j > 0; j--) {
+				GenericRecord r = new GenericData.Record(schema);
+				r.put("key", String.format("key%04d", 2 * i));
+				r.put("tag", "xyz".substring(random.nextInt(3)).substring(0, 1));
+				r.put("value", Integer.valueOf(random.nextInt(1000)));
+				writer.append(r);
+			}
+		}
+		writer.close();
+		AbstractAvroIndex.writeIndex("key", schemaFile, avroFile);
+		// Keys in the file and keys between them, after the first key, for which queries do not work
+		queries = new ArrayList<String>();
+		for(int i = 1; i < 400; i++) {
+			queries.add(String.format("key%04d", i));
+		}
+		queries.add("z");
+		pool = Executors.newFixedThreadPool(NUM_THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * @return The results of get(), get() with excluded tags and seek() for each key, then getAll() for all
+	 * keys, as strings, with the class of the exception for keys that are not found
+	 */
+	private static List<String> query(AvroStringIndex index, List<String> keys) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		for(String key : keys) {
+			try {
+				rtrn.add(index.get(key).toString());
+				rtrn.add(index.get(key, "tag", EXCLUDED).toString());
+				rtrn.add(index.seek(key).toString());
+			} catch(NoSuchElementException e) {
+				rtrn.add(key + " " + e.getClass().getName());
+			}
+		}
+		Iterator<KeyRecords<String, GenericRecord>> iter = index.getAll(keys, "tag", EXCLUDED);
+		while(iter.hasNext()) {
+			KeyRecords<String, GenericRecord> group = iter.next();
+			rtrn.add(group.getKey() + " " + group.getRecords());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Query the index from all threads of the pool at once, each thread with its own order of the keys,
+	 * and check each thread gets the results of a plain index
+	 */
+	private void checkConcurrentQueries(final AvroStringIndex index, int seed) throws Exception {
+		AvroStringIndex plain = new AvroStringIndex(avroFile, schemaFile, "key");
+		Random random = new Random(seed);
+		List<List<String>> orders = new ArrayList<List<String>>();
+		List<List<String>> expected = new ArrayList<List<String>>();
+		for(int i = 0; i < 2 * NUM_THREADS; i++) {
+			List<String> order = new ArrayList<String>(queries);
+			Collections.shuffle(order, random);
+			orders.add(order);
+			expected.add(query(plain, order));
+		}
+		plain.close();
+		List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+		for(final List<String> order : orders) {
+			results.add(pool.submit(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws IOException {
+					return query(index, order);
+				}
+			}));
+		}
+		// A reader shared between threads can loop forever instead of failing
+		for(int i = 0; i < orders.size(); i++) {
+			assertEquals(expected.get(i), results.get(i).get(60, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void testConcurrentQueries() throws Exception {
+		ConcurrentAvroStringIndex index = new ConcurrentAvroStringIndex(avroFile, schemaFile, "key");
+		checkConcurrentQueries(index, 73);
+		index.close();
+	}
+
+	@Test
+	public void testConcurrentQueriesWithSharedCache() throws Exception {
+		for(long maxRecords : new long[] {DecodedBlockCache.DEFAULT_MAX_RECORDS, 20}) {
+			ConcurrentAvroStringIndex index = new ConcurrentAvroStringIndex(avroFile, schemaFile, "key");
+			DecodedBlockCache cache = new DecodedBlockCache(maxRecords);
+			index.setBlockCache(cache);
+			checkConcurrentQueries(index, 79);
+			assertTrue(cache.getNumHits() > 0);
+			assertTrue(cache.getNumRecords() <= maxRecords);
+			index.close();
+		}
+	}
+
+	@Test
+	public void testCacheSetAfterThreadsOpenReaders() throws Exception {
+		final ConcurrentAvroStringIndex index = new ConcurrentAvroStringIndex(avroFile, schemaFile, "key");
+		// Every thread of the pool opens its reader without a cache
+		checkConcurrentQueries(index, 83);
+		DecodedBlockCache cache = new DecodedBlockCache();
+		index.setBlockCache(cache);
+		checkConcurrentQueries(index, 89);
+		assertTrue(cache.getNumHits() > 0);
+		assertTrue(cache.getNumMisses() > 0);
+		// The projection reaches the open readers and clears the shared cache
+		index.setProjection(Arrays.asList("key", "tag"));
+		assertEquals(0, cache.getNumBlocks());
+		Future<GenericRecord> record = pool.submit(new Callable<GenericRecord>() {
+			@Override
+			public GenericRecord call() throws IOException {
+				return index.get("key0002").get(0);
+			}
+		});
+		assertEquals(2, record.get(60, TimeUnit.SECONDS).getSchema().getFields().size());
+		index.close();
+	}
+
+	@Test
+	public void testCloseAndReuse() throws Exception {
+		ConcurrentAvroStringIndex index = new ConcurrentAvroStringIndex(avroFile, schemaFile, "key");
+		checkConcurrentQueries(index, 97);
+		index.close();
+		// Reloading after closing discards the closed readers, and threads open new ones
+		index.loadIndex(false);
+		checkConcurrentQueries(index, 101);
+		index.close();
+	}
+
+}
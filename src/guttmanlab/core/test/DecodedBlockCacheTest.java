@@ -0,0 +1,239 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import guttmanlab.core.serialize.AbstractAvroIndex;
+import guttmanlab.core.serialize.AvroStringIndex;
+import guttmanlab.core.serialize.DecodedBlockCache;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecodedBlockCacheTest {
+
+	private static final String SCHEMA = "{\"type\": \"record\", \"name\": \"TestRecord\", \"fields\": ["
+			+ "{\"name\": \"key\", \"type\": \"string\"}, {\"name\": \"tag\", \"type\": \"string\"}, {\"name\": \"value\", \"type\": \"int\"}]}";
+	private File dir;
+	private String avroFile;
+	private String schemaFile;
+	private TreeSet<String> keys;
+	private List<String> queries;
+
+	/**
+	 * Write an indexed avro file of sorted keys with 1 to 30 records each in small blocks
+	 */
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("decoded-block-cache-test", "");
+		dir.delete();
+		dir.mkdir();
+		schemaFile = new File(dir, "test.avsc").getPath();
+		FileWriter w = new FileWriter(schemaFile);
+		w.write(SCHEMA);
+		w.close();
+		avroFile = new File(dir, "test.avro").getPath();
+		Schema schema = new Schema.Parser().parse(SCHEMA);
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+		writer.setSyncInterval(128);
+		writer.create(schema, new File(avroFile));
+		Random random = new Random(67);
+		keys = new TreeSet<String>();
+		for(int i = 0; i < 200; i++) {
+			String key = String.format("key%04d", 2 * i);
+			keys.add(key);
+			for(int j = i % 20 == 3 ? 30 : 1 + random.nextInt(3); j > 0; j--) {
+				GenericRecord r = new GenericData.Record(schema);
+				r.put("key", key);
+				r.put("tag", "xyz".substring(random.nextInt(3)).substring(0, 1));
+				r.put("value", Integer.valueOf(random.nextInt(1000)));
+				writer.append(r);
+			}
+		}
+		writer.close();
+		AbstractAvroIndex.writeIndex("key", schemaFile, avroFile);
+		// Keys in the file and keys between them, after the first key, for which queries do not work
+		queries = new ArrayList<String>();
+		for(int i = 1; i < 400; i++) {
+			queries.add(String.format("key%04d", i));
+		}
+		queries.add("z");
+		Collections.shuffle(queries, random);
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static DecodedBlockCache.Block block(int numRecords) {
+		List<GenericRecord> records = new ArrayList<GenericRecord>();
+		for(int i = 0; i < numRecords; i++) {
+			records.add(null);
+		}
+		return new DecodedBlockCache.Block(records, -1);
+	}
+
+	@Test
+	public void testEvictionByRecordCount() {
+		DecodedBlockCache cache = new DecodedBlockCache(10);
+		DecodedBlockCache.Block b1 = block(4);
+		DecodedBlockCache.Block b2 = block(3);
+		DecodedBlockCache.Block b3 = block(3);
+		cache.put(100, b1);
+		cache.put(200, b2);
+		cache.put(300, b3);
+		assertEquals(3, cache.getNumBlocks());
+		assertEquals(10, cache.getNumRecords());
+		// Using the first block makes the second the least recently used
+		assertSame(b1, cache.get(100));
+		cache.put(400, block(2));
+		assertNull(cache.get(200));
+		assertSame(b1, cache.get(100));
+		assertSame(b3, cache.get(300));
+		assertEquals(9, cache.getNumRecords());
+		assertEquals(1, cache.getNumEvictions());
+		// A block that needs the space of all the others
+		cache.put(500, block(8));
+		assertEquals(1, cache.getNumBlocks());
+		assertEquals(8, cache.getNumRecords());
+		assertNull(cache.get(100));
+		assertNull(cache.get(300));
+		assertEquals(4, cache.getNumEvictions());
+		// Replacing a block replaces its records in the count
+		cache.put(500, block(1));
+		assertEquals(1, cache.getNumRecords());
+		// A block larger than the cache is not cached and evicts nothing
+		cache.put(600, block(11));
+		assertNull(cache.get(600));
+		assertEquals(1, cache.getNumBlocks());
+		assertEquals(4, cache.getNumEvictions());
+		assertEquals(3, cache.getNumHits());
+		assertEquals(4, cache.getNumMisses());
+		assertEquals(3.0 / 7, cache.getHitRate(), 1e-9);
+		cache.clear();
+		assertEquals(0, cache.getNumBlocks());
+		assertEquals(0, cache.getNumRecords());
+		assertEquals(0, cache.getNumHits());
+		assertEquals(0, cache.getHitRate(), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new DecodedBlockCache(0);
+	}
+
+	private static List<String> toStrings(List<GenericRecord> records) {
+		List<String> rtrn = new ArrayList<String>();
+		for(GenericRecord record : records) {
+			rtrn.add(record.toString());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return The records of get(), or the class of the exception it throws
+	 */
+	private static List<String> get(AvroStringIndex index, String key, Collection<String> excludedTags) throws IOException {
+		try {
+			return toStrings(excludedTags == null ? index.get(key) : index.get(key, "tag", excludedTags));
+		} catch(NoSuchElementException e) {
+			return Collections.singletonList(e.getClass().getName());
+		}
+	}
+
+	private static String seek(AvroStringIndex index, String key) throws IOException {
+		try {
+			return index.seek(key).toString();
+		} catch(NoSuchElementException e) {
+			return e.getClass().getName();
+		}
+	}
+
+	private void checkCachedLookups(long maxRecords) throws IOException {
+		AvroStringIndex uncached = new AvroStringIndex(avroFile, schemaFile, "key");
+		AvroStringIndex cached = new AvroStringIndex(avroFile, schemaFile, "key");
+		DecodedBlockCache cache = new DecodedBlockCache(maxRecords);
+		cached.setBlockCache(cache);
+		assertSame(cache, cached.getBlockCache());
+		Collection<String> excluded = Arrays.asList("y");
+		// Twice, so that the second pass finds blocks in the cache
+		for(int pass = 0; pass < 2; pass++) {
+			for(String key : queries) {
+				assertEquals(key, get(uncached, key, null), get(cached, key, null));
+				assertEquals(key, get(uncached, key, excluded), get(cached, key, excluded));
+				assertEquals(key, seek(uncached, key), seek(cached, key));
+			}
+		}
+		assertTrue(cache.getNumHits() > 0);
+		assertTrue(cache.getNumRecords() <= maxRecords);
+		uncached.close();
+		cached.close();
+	}
+
+	@Test
+	public void testCachedLookupsMatchUncached() throws IOException {
+		checkCachedLookups(DecodedBlockCache.DEFAULT_MAX_RECORDS);
+	}
+
+	@Test
+	public void testCachedLookupsWithEvictions() throws IOException {
+		// Smaller than the largest key, which spans several blocks, so blocks are evicted during a lookup
+		checkCachedLookups(20);
+	}
+
+	@Test
+	public void testMissingKeys() throws IOException {
+		AvroStringIndex index = new AvroStringIndex(avroFile, schemaFile, "key");
+		index.setBlockCache(new DecodedBlockCache());
+		for(String key : Arrays.asList("key0001", "key0399", "z")) {
+			try {
+				index.get(key);
+				fail("No exception for missing key " + key);
+			} catch(NoSuchElementException e) {
+				// Expected
+			}
+		}
+		index.close();
+	}
+
+	@Test
+	public void testProjectionClearsCache() throws IOException {
+		AvroStringIndex index = new AvroStringIndex(avroFile, schemaFile, "key");
+		DecodedBlockCache cache = new DecodedBlockCache();
+		index.setBlockCache(cache);
+		String key = keys.higher(keys.first());
+		assertEquals(3, index.get(key).get(0).getSchema().getFields().size());
+		assertTrue(cache.getNumBlocks() > 0);
+		index.setProjection(Arrays.asList("key", "tag"));
+		assertEquals(0, cache.getNumBlocks());
+		GenericRecord record = index.get(key).get(0);
+		assertEquals(2, record.getSchema().getFields().size());
+		assertEquals(key, record.get("key").toString());
+		index.close();
+	}
+
+}
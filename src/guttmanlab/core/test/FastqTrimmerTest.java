@@ -0,0 +1,213 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import guttmanlab.core.pipeline.util.FastqTrimmer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FastqTrimmerTest {
+
+	private static final String ADAPTER = "AGATCGGAAGAGC";
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("fastq-trimmer-test", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static String qualities(int length) {
+		char[] rtrn = new char[length];
+		Arrays.fill(rtrn, 'I');
+		return new String(rtrn);
+	}
+
+	private File writeFastq(String name, List<String> sequences, List<String> qualities) throws IOException {
+		File rtrn = new File(dir, name);
+		FileWriter w = new FileWriter(rtrn);
+		for(int i = 0; i < sequences.size(); i++) {
+			String quality = qualities == null ? qualities(sequences.get(i).length()) : qualities.get(i);
+			w.write("@read" + i + "\n" + sequences.get(i) + "\n+\n" + quality + "\n");
+		}
+		w.close();
+		return rtrn;
+	}
+
+	/**
+	 * @return Name and sequence of each read in a fastq file, separated by a space
+	 */
+	private static List<String> readFastq(File file) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		String name;
+		while((name = r.readLine()) != null) {
+			String sequence = r.readLine();
+			r.readLine();
+			String quality = r.readLine();
+			assertEquals(sequence.length(), quality.length());
+			rtrn.add(name.substring(1) + " " + sequence);
+		}
+		r.close();
+		return rtrn;
+	}
+
+	/**
+	 * Trim single end reads on two threads in batches of two, keeping reads of any length
+	 * @return The trimmed sequences
+	 */
+	private List<String> trim(FastqTrimmer trimmer, List<String> sequences, List<String> qualities) throws IOException {
+		File in = writeFastq("in.fq", sequences, qualities);
+		File out = new File(dir, "out.fq");
+		trimmer.setMinLength(0);
+		trimmer.setBatchSize(2);
+		trimmer.trim(in.getPath(), out.getPath(), 2);
+		List<String> rtrn = new ArrayList<String>();
+		for(String read : readFastq(out)) {
+			rtrn.add(read.substring(read.indexOf(' ') + 1));
+		}
+		return rtrn;
+	}
+
+	private List<String> trimAdapter(String... sequences) throws IOException {
+		return trim(new FastqTrimmer(ADAPTER, null), Arrays.asList(sequences), null);
+	}
+
+	@Test
+	public void testFullAdapterMatch() throws IOException {
+		assertEquals(Arrays.asList("ACGTACGTAC", "", "CCCCC"), trimAdapter("ACGTACGTAC" + ADAPTER + "TTTT", ADAPTER + "CCC", "CCCCC" + ADAPTER));
+	}
+
+	@Test
+	public void testAdapterMatchWithMismatches() throws IOException {
+		// Two mismatches are allowed by default, three are not
+		String twoMismatches = "AGTTCGGAAGTGC";
+		String threeMismatches = "AGTTCGGTAGTGC";
+		assertEquals(Arrays.asList("CCCCC", "CCCCC" + threeMismatches + "CCCC"),
+				trimAdapter("CCCCC" + twoMismatches + "CCCC", "CCCCC" + threeMismatches + "CCCC"));
+	}
+
+	@Test
+	public void testAdapterPrefixAtEnd() throws IOException {
+		// Overlaps of at least 3 bases are trimmed, with mismatches in proportion to the overlap:
+		// 7 bases allow 7 * 2 / 13 = 1 mismatch, 5 bases allow none
+		assertEquals(Arrays.asList("CCCCCCCCCC", "CCCCCCCCCC", "CCCCCCCCCCAG", "CCCCCCCCCC", "CCCCCCCCCCAGTTC"),
+				trimAdapter("CCCCCCCCCCAGATC", "CCCCCCCCCCAGA", "CCCCCCCCCCAG", "CCCCCCCCCCAGTTCGG", "CCCCCCCCCCAGTTC"));
+	}
+
+	@Test
+	public void testNoAdapterMatch() throws IOException {
+		assertEquals(Arrays.asList("ACGTACGTACGTACGTCC", "CCCC"), trimAdapter("ACGTACGTACGTACGTCC", "CCCC"));
+	}
+
+	@Test
+	public void testAdapterMatchAgainstBruteForce() throws IOException {
+		Random random = new Random(17);
+		List<String> reads = new ArrayList<String>();
+		List<String> expected = new ArrayList<String>();
+		for(int i = 0; i < 2000; i++) {
+			StringBuilder read = new StringBuilder(randomBases(random, random.nextInt(30)));
+			if(random.nextBoolean()) {
+				// A copy of all or part of the adapter with up to 4 substitutions
+				char[] adapter = ADAPTER.substring(0, 1 + random.nextInt(ADAPTER.length())).toCharArray();
+				for(int j = random.nextInt(5); j > 0; j--) {
+					adapter[random.nextInt(adapter.length)] = "ACGT".charAt(random.nextInt(4));
+				}
+				read.append(adapter);
+			}
+			read.append(randomBases(random, random.nextInt(3) == 0 ? random.nextInt(10) : 0));
+			reads.add(read.toString());
+			expected.add(read.substring(0, bruteForceAdapterStart(read.toString(), FastqTrimmer.DEFAULT_MAX_MISMATCHES, FastqTrimmer.DEFAULT_MIN_ADAPTER_OVERLAP)));
+		}
+		assertEquals(expected, trim(new FastqTrimmer(ADAPTER, null), reads, null));
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			rtrn.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return rtrn.toString();
+	}
+
+	private static int mismatches(String read, int start, int length) {
+		int rtrn = 0;
+		for(int i = 0; i < length; i++) {
+			if(read.charAt(start + i) != ADAPTER.charAt(i)) {
+				rtrn++;
+			}
+		}
+		return rtrn;
+	}
+
+	private static int bruteForceAdapterStart(String read, int maxMismatches, int minOverlap) {
+		for(int start = 0; start + ADAPTER.length() <= read.length(); start++) {
+			if(mismatches(read, start, ADAPTER.length()) <= maxMismatches) {
+				return start;
+			}
+		}
+		for(int overlap = Math.min(ADAPTER.length() - 1, read.length()); overlap >= minOverlap; overlap--) {
+			if(mismatches(read, read.length() - overlap, overlap) <= overlap * maxMismatches / ADAPTER.length()) {
+				return read.length() - overlap;
+			}
+		}
+		return read.length();
+	}
+
+	@Test
+	public void testQualityTrimming() throws IOException {
+		FastqTrimmer trimmer = new FastqTrimmer(null, null);
+		trimmer.setQualityCutoff(20);
+		// '#' is quality 2 and 'I' is quality 40. The single good base in the low quality tail does not
+		// make up for the bad bases on either side, so it is trimmed too.
+		List<String> sequences = Arrays.asList("ACGTACGTACGTACG", "ACGTACGTACGTACG", "ACGTACGTACGTACG", "ACGTA");
+		List<String> qualities = Arrays.asList("IIIIIIIIII#####", "IIIIIIIIII##I##", "IIIIIIIIIIIIIII", "#####");
+		assertEquals(Arrays.asList("ACGTACGTAC", "ACGTACGTAC", "ACGTACGTACGTACG", ""), trim(trimmer, sequences, qualities));
+	}
+
+	@Test
+	public void testPolyATrimming() throws IOException {
+		FastqTrimmer trimmer = new FastqTrimmer(null, null);
+		trimmer.setMinPolyALength(5);
+		List<String> sequences = Arrays.asList("ACGTCGATCGAAAAAAA", "TTTTTTACGTCGATCG", "ACGTCGATCGAAAA", "ttttttACGCaaaaa", "AAAAAAAA");
+		assertEquals(Arrays.asList("ACGTCGATCG", "ACGTCGATCG", "ACGTCGATCGAAAA", "ACGC", ""), trim(trimmer, sequences, null));
+	}
+
+	@Test
+	public void testPairedLengthFilter() throws IOException {
+		// A pair is kept only if both mates are at least 10 bases after trimming
+		List<String> sequences1 = Arrays.asList("ACGTACGTACGT", "ACGTA" + ADAPTER, "ACGTACGTACGT", "ACGTACGTACGT" + ADAPTER);
+		List<String> sequences2 = Arrays.asList("CCCCCCCCCCCC", "CCCCCCCCCCCC", "CCCCC" + ADAPTER, "CCCCCCCCCCCCCC");
+		File in1 = writeFastq("in1.fq", sequences1, null);
+		File in2 = writeFastq("in2.fq", sequences2, null);
+		File out1 = new File(dir, "out1.fq");
+		File out2 = new File(dir, "out2.fq");
+		FastqTrimmer trimmer = new FastqTrimmer(ADAPTER, ADAPTER);
+		trimmer.setMinLength(10);
+		trimmer.setBatchSize(1);
+		trimmer.trim(in1.getPath(), in2.getPath(), out1.getPath(), out2.getPath(), 2);
+		assertEquals(Arrays.asList("read0 ACGTACGTACGT", "read3 ACGTACGTACGT"), readFastq(out1));
+		assertEquals(Arrays.asList("read0 CCCCCCCCCCCC", "read3 CCCCCCCCCCCCCC"), readFastq(out2));
+	}
+
+}
@@ -0,0 +1,269 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import guttmanlab.core.pipeline.util.FastqUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FastqUtilsTest {
+
+	private static final int NUM_READS = 5000;
+	private File dir;
+	private int lookahead;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("fastq-utils-test", "");
+		dir.delete();
+		dir.mkdir();
+		lookahead = FastqUtils.PAIRED_FASTQ_LOOKAHEAD;
+		FastqUtils.PAIRED_FASTQ_LOOKAHEAD = 100;
+	}
+
+	@After
+	public void tearDown() {
+		FastqUtils.PAIRED_FASTQ_LOOKAHEAD = lookahead;
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private String path(String name) {
+		return new File(dir, name).getPath();
+	}
+
+	private static String readName(int i, int mate, String delimiter) {
+		return "@r" + i + (delimiter == null ? " " + mate + ":N:0" : delimiter + mate);
+	}
+
+	/**
+	 * Write the reads of one mate, skipping some reads
+	 */
+	private void writeMate(String file, int mate, Set<Integer> missing, String delimiter, Random random) throws IOException {
+		FileWriter w = new FileWriter(file);
+		for(int i = 0; i < NUM_READS; i++) {
+			if(missing.contains(Integer.valueOf(i))) {
+				continue;
+			}
+			StringBuilder sequence = new StringBuilder();
+			StringBuilder quality = new StringBuilder();
+			for(int j = 20 + random.nextInt(30); j > 0; j--) {
+				sequence.append("ACGT".charAt(random.nextInt(4)));
+				quality.append((char) ('!' + random.nextInt(41)));
+			}
+			w.write(readName(i, mate, delimiter) + "\n" + sequence + "\n+\n" + quality + "\n");
+		}
+		w.close();
+	}
+
+	private static List<String> readLines(String file) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		String line;
+		while((line = r.readLine()) != null) {
+			rtrn.add(line);
+		}
+		r.close();
+		return rtrn;
+	}
+
+	private static void addRange(Set<Integer> set, int start, int length) {
+		for(int i = start; i < start + length; i++) {
+			set.add(Integer.valueOf(i));
+		}
+	}
+
+	/**
+	 * Filter files with reads missing from either file, with and without assuming the same order, and check
+	 * that both give the reads in both files
+	 */
+	private void checkFilter(Set<Integer> missing1, Set<Integer> missing2, String delimiter) throws IOException {
+		Random random = new Random(missing1.size() + 31 * missing2.size());
+		writeMate(path("in1.fq"), 1, missing1, delimiter, random);
+		writeMate(path("in2.fq"), 2, missing2, delimiter, random);
+		FastqUtils.filterPairedFastqFilesMissingReads(path("in1.fq"), path("in2.fq"), path("merged1.fq"), path("merged2.fq"), delimiter, true);
+		FastqUtils.filterPairedFastqFilesMissingReads(path("in1.fq"), path("in2.fq"), path("exact1.fq"), path("exact2.fq"), delimiter, false);
+		List<String> merged1 = readLines(path("merged1.fq"));
+		List<String> merged2 = readLines(path("merged2.fq"));
+		assertEquals(readLines(path("exact1.fq")), merged1);
+		assertEquals(readLines(path("exact2.fq")), merged2);
+		List<String> expected1 = new ArrayList<String>();
+		List<String> expected2 = new ArrayList<String>();
+		for(int i = 0; i < NUM_READS; i++) {
+			Integer read = Integer.valueOf(i);
+			if(!missing1.contains(read) && !missing2.contains(read)) {
+				expected1.add(readName(i, 1, delimiter));
+				expected2.add(readName(i, 2, delimiter));
+			}
+		}
+		assertEquals(expected1, names(merged1));
+		assertEquals(expected2, names(merged2));
+	}
+
+	private static List<String> names(List<String> lines) {
+		List<String> rtrn = new ArrayList<String>();
+		for(int i = 0; i < lines.size(); i += 4) {
+			rtrn.add(lines.get(i));
+		}
+		return rtrn;
+	}
+
+	@Test
+	public void testFilterNoMissingReads() throws IOException {
+		checkFilter(new HashSet<Integer>(), new HashSet<Integer>(), null);
+	}
+
+	@Test
+	public void testFilterScatteredMissingReads() throws IOException {
+		Random random = new Random(3);
+		Set<Integer> missing1 = new HashSet<Integer>();
+		Set<Integer> missing2 = new HashSet<Integer>();
+		for(int i = 0; i < NUM_READS / 30; i++) {
+			missing1.add(Integer.valueOf(random.nextInt(NUM_READS)));
+			missing2.add(Integer.valueOf(random.nextInt(NUM_READS)));
+		}
+		// First and last reads of each file
+		missing1.add(Integer.valueOf(0));
+		missing2.add(Integer.valueOf(NUM_READS - 1));
+		checkFilter(missing1, missing2, null);
+		checkFilter(missing1, missing2, "/");
+	}
+
+	@Test
+	public void testFilterClusteredMissingReads() throws IOException {
+		Set<Integer> missing1 = new HashSet<Integer>();
+		Set<Integer> missing2 = new HashSet<Integer>();
+		addRange(missing1, 100, 40);
+		addRange(missing2, 1000, 60);
+		// Missing from both files, and runs in both files that end at the same read
+		addRange(missing1, 2000, 30);
+		addRange(missing2, 2000, 30);
+		addRange(missing1, 3000, 50);
+		addRange(missing2, 3020, 30);
+		// Alternating reads
+		for(int i = 4000; i < 4100; i += 2) {
+			missing1.add(Integer.valueOf(i));
+			missing2.add(Integer.valueOf(i + 1));
+		}
+		// The end of each file
+		addRange(missing2, NUM_READS - 80, 80);
+		checkFilter(missing1, missing2, null);
+	}
+
+	@Test
+	public void testFilterMissingReadsBeyondLookahead() throws IOException {
+		// Runs of missing reads longer than the lookahead of 100 reads, in each file
+		Set<Integer> missing1 = new HashSet<Integer>();
+		Set<Integer> missing2 = new HashSet<Integer>();
+		addRange(missing2, 500, 250);
+		addRange(missing1, 1500, 101);
+		addRange(missing1, 3000, 30);
+		addRange(missing2, 4000, 1000);
+		checkFilter(missing1, missing2, null);
+		checkFilter(missing2, missing1, null);
+	}
+
+	/**
+	 * Write reads whose quality strings are mostly @ and +, with sequence lengths from 1 to 60
+	 */
+	private void writeFastqForDivide(String file, int numReads, int mate, Random random) throws IOException {
+		FileWriter w = new FileWriter(file);
+		for(int i = 0; i < numReads; i++) {
+			StringBuilder sequence = new StringBuilder();
+			StringBuilder quality = new StringBuilder();
+			for(int j = 1 + random.nextInt(60); j > 0; j--) {
+				sequence.append("ACGTN".charAt(random.nextInt(5)));
+				quality.append("@+@+I#".charAt(random.nextInt(6)));
+			}
+			w.write(readName(i, mate, null) + "\n" + sequence + "\n+\n" + quality + "\n");
+		}
+		w.close();
+	}
+
+	/**
+	 * Check that chunks hold whole records and concatenate back to the original file
+	 * @return The read names of each chunk
+	 */
+	private static List<List<String>> checkChunks(String fastq, List<String> chunks) throws IOException {
+		List<List<String>> rtrn = new ArrayList<List<String>>();
+		List<String> all = new ArrayList<String>();
+		for(String chunk : chunks) {
+			List<String> lines = readLines(chunk);
+			assertEquals(chunk, 0, lines.size() % 4);
+			for(int i = 0; i < lines.size(); i += 4) {
+				assertTrue(chunk, lines.get(i).startsWith("@r"));
+				assertEquals(chunk, "+", lines.get(i + 2));
+				assertEquals(chunk, lines.get(i + 1).length(), lines.get(i + 3).length());
+			}
+			all.addAll(lines);
+			rtrn.add(names(lines));
+			new File(chunk).delete();
+		}
+		assertEquals(readLines(fastq), all);
+		return rtrn;
+	}
+
+	@Test
+	public void testDivideFastqFile() throws IOException {
+		writeFastqForDivide(path("in.fq"), 2000, 1, new Random(7));
+		for(int n = 1; n <= 64; n++) {
+			List<String> chunks = FastqUtils.divideFastqFile(path("in.fq"), n);
+			assertEquals(n, chunks.size());
+			List<List<String>> names = checkChunks(path("in.fq"), chunks);
+			// Chunks have about the same number of reads
+			for(List<String> chunk : names) {
+				assertTrue(Math.abs(chunk.size() - 2000 / n) <= 10 + 2000 / n / 2);
+			}
+		}
+	}
+
+	@Test
+	public void testDivideFastqFileIntoMoreChunksThanReads() throws IOException {
+		writeFastqForDivide(path("in.fq"), 5, 1, new Random(8));
+		checkChunks(path("in.fq"), FastqUtils.divideFastqFile(path("in.fq"), 16));
+		writeFastqForDivide(path("in2.fq"), 5, 2, new Random(9));
+		Map<String, List<String>> chunks = FastqUtils.divideFastqFile(path("in.fq"), path("in2.fq"), 16);
+		List<List<String>> names1 = checkChunks(path("in.fq"), chunks.get(path("in.fq")));
+		List<List<String>> names2 = checkChunks(path("in2.fq"), chunks.get(path("in2.fq")));
+		for(int i = 0; i < 16; i++) {
+			assertEquals(names1.get(i).size(), names2.get(i).size());
+		}
+	}
+
+	@Test
+	public void testDividePairedFastqFiles() throws IOException {
+		// The mates have independent lengths, so the files can't be cut at the same byte offsets
+		writeFastqForDivide(path("in1.fq"), 3000, 1, new Random(10));
+		writeFastqForDivide(path("in2.fq"), 3000, 2, new Random(11));
+		for(int n : new int[] {1, 2, 3, 7, 16, 64}) {
+			Map<String, List<String>> chunks = FastqUtils.divideFastqFile(path("in1.fq"), path("in2.fq"), n);
+			List<List<String>> names1 = checkChunks(path("in1.fq"), chunks.get(path("in1.fq")));
+			List<List<String>> names2 = checkChunks(path("in2.fq"), chunks.get(path("in2.fq")));
+			assertEquals(n, names1.size());
+			assertEquals(n, names2.size());
+			for(int i = 0; i < n; i++) {
+				assertEquals(names1.get(i).size(), names2.get(i).size());
+				for(int j = 0; j < names1.get(i).size(); j++) {
+					assertEquals(names1.get(i).get(j).replace(" 1:N:0", ""), names2.get(i).get(j).replace(" 2:N:0", ""));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.sequence.IndexedFastaFile;
+import guttmanlab.core.sequence.Sequence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedFastaFileTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("indexed-fasta-test", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private String writeFasta(String name, String contents) throws IOException {
+		File file = new File(dir, name);
+		FileWriter w = new FileWriter(file);
+		w.write(contents);
+		w.close();
+		new File(IndexedFastaFile.getIndexFileName(file.getPath())).delete();
+		return file.getPath();
+	}
+
+	private static List<String> readIndex(String fasta) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new FileReader(IndexedFastaFile.getIndexFileName(fasta)));
+		String line;
+		while((line = r.readLine()) != null) {
+			rtrn.add(line);
+		}
+		r.close();
+		return rtrn;
+	}
+
+	@Test
+	public void testIndexContents() throws IOException {
+		// Offsets and line widths as written by samtools faidx
+		String fasta = writeFasta("test.fa", ">chr1 description\nACGTA\nCGTAC\nGT\n>chr2\nAAAA\nCC\n>empty\n>chr3\nGGG");
+		IndexedFastaFile.buildIndex(fasta);
+		assertEquals(Arrays.asList("chr1\t12\t18\t5\t6", "chr2\t6\t39\t4\t5", "empty\t0\t54\t0\t0", "chr3\t3\t60\t3\t4"), readIndex(fasta));
+	}
+
+	@Test
+	public void testIndexContentsWithCRLF() throws IOException {
+		String fasta = writeFasta("test.fa", ">chr1 description\r\nACGTA\r\nCGTAC\r\nGT\r\n>chr2\r\nAAAA\r\nCC\r\n");
+		IndexedFastaFile.buildIndex(fasta);
+		assertEquals(Arrays.asList("chr1\t12\t19\t5\t7", "chr2\t6\t44\t4\t6"), readIndex(fasta));
+		IndexedFastaFile file = new IndexedFastaFile(fasta);
+		assertEquals("ACGTACGTACGT", file.getSequence("chr1").getSequenceBases());
+		assertEquals("AACC", file.getSubSequence("chr2", 2, 6).getSequenceBases());
+		assertEquals("TACG", file.getSubSequence("chr1", 3, 7).getSequenceBases());
+	}
+
+	@Test
+	public void testBlankLinesBetweenRecords() throws IOException {
+		String fasta = writeFasta("test.fa", ">chr1\nACGT\nAC\n\n>empty\n\n\n>chr2\nGGGG\nTTTT\n\n");
+		IndexedFastaFile file = new IndexedFastaFile(fasta);
+		assertEquals(Arrays.asList("chr1", "empty", "chr2"), new ArrayList<String>(file.getSequenceNames()));
+		assertEquals("ACGTAC", file.getSequence("chr1").getSequenceBases());
+		assertEquals("", file.getSequence("empty").getSequenceBases());
+		assertEquals(0, file.getLength("empty"));
+		assertEquals("GGGGTTTT", file.getSequence("chr2").getSequenceBases());
+	}
+
+	private void checkRejected(String contents) throws IOException {
+		String fasta = writeFasta("bad.fa", contents);
+		try {
+			IndexedFastaFile.buildIndex(fasta);
+			fail("No exception for " + contents);
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testInvalidLineLengths() throws IOException {
+		// Blank lines inside a sequence, including right after the header
+		checkRejected(">chr1\nACGT\n\nACGT\n");
+		checkRejected(">chr1\n\nACGT\nACGT\n");
+		checkRejected(">chr1\r\nACGT\r\n\r\nACGT\r\n");
+		checkRejected(">chr1\nACGT\nAC\n\nACGT");
+		// A short line that is not the last line, and a line longer than the first
+		checkRejected(">chr1\nACGT\nAC\nACGT\n");
+		checkRejected(">chr1\nACGT\nACGTA\n");
+		checkRejected(">chr1\nACGT\nACGTA");
+		// Bases before the first header
+		checkRejected("ACGT\n>chr1\nACGT\n");
+	}
+
+	/**
+	 * Write random sequences with different line lengths and line terminators, with and without a short last
+	 * line and a terminator at the end of the file
+	 * @return The sequences by name
+	 */
+	private static Map<String, String> writeRandomFasta(String file, Random random, String newline) throws IOException {
+		Map<String, String> rtrn = new LinkedHashMap<String, String>();
+		FileWriter w = new FileWriter(file);
+		for(int i = 0; i < 20; i++) {
+			int lineBases = 1 + random.nextInt(80);
+			int length = i == 0 ? 0 : i % 5 == 0 ? lineBases * (1 + random.nextInt(20)) : random.nextInt(3000);
+			StringBuilder bases = new StringBuilder();
+			for(int j = 0; j < length; j++) {
+				bases.append("ACGTNacgtn".charAt(random.nextInt(10)));
+			}
+			String name = "seq" + i;
+			rtrn.put(name, bases.toString());
+			w.write(">" + name + " sequence " + i + newline);
+			for(int j = 0; j < length; j += lineBases) {
+				w.write(bases.substring(j, Math.min(j + lineBases, length)));
+				if(i < 19 || j + lineBases < length) {
+					w.write(newline);
+				}
+			}
+		}
+		w.close();
+		return rtrn;
+	}
+
+	private static void checkSubsequences(IndexedFastaFile file, Map<String, String> expected, Random random) throws IOException {
+		assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(file.getSequenceNames()));
+		for(String name : expected.keySet()) {
+			String bases = expected.get(name);
+			assertTrue(file.containsSequence(name));
+			assertEquals(bases.length(), file.getLength(name));
+			assertEquals(new Sequence(name, bases), file.getSequence(name));
+			for(int i = 0; i < 50; i++) {
+				int start = random.nextInt(bases.length() + 20) - 10;
+				int end = start + random.nextInt(200);
+				int from = Math.min(Math.max(start, 0), bases.length());
+				String sub = bases.substring(from, Math.max(Math.min(end, bases.length()), from));
+				assertEquals(name + ":" + start + "-" + end, sub, file.getSubSequence(name, start, end).getSequenceBases());
+			}
+			if(bases.length() > 100) {
+				Sequence seq = new Sequence(name, bases);
+				for(Strand strand : new Strand[] {Strand.POSITIVE, Strand.NEGATIVE}) {
+					List<Annotation> blocks = new ArrayList<Annotation>();
+					int start = random.nextInt(bases.length() / 2);
+					blocks.add(new SingleInterval(name, start, start + 7, strand));
+					blocks.add(new SingleInterval(name, start + 30, start + 95, strand));
+					blocks.add(new SingleInterval(name, bases.length() - 5, bases.length() + 5, strand));
+					Annotation annot = new BlockedAnnotation(blocks, "annot");
+					assertEquals(seq.getSubsequence(annot), file.getSubsequence(annot));
+				}
+			}
+		}
+		assertFalse(file.containsSequence("seq20"));
+	}
+
+	@Test
+	public void testSubsequences() throws IOException {
+		Random random = new Random(41);
+		for(String newline : new String[] {"\n", "\r\n"}) {
+			String fasta = new File(dir, "random.fa").getPath();
+			new File(IndexedFastaFile.getIndexFileName(fasta)).delete();
+			Map<String, String> expected = writeRandomFasta(fasta, random, newline);
+			checkSubsequences(new IndexedFastaFile(fasta), expected, random);
+			// Read the index written by the first instance
+			assertTrue(new File(IndexedFastaFile.getIndexFileName(fasta)).exists());
+			checkSubsequences(new IndexedFastaFile(fasta), expected, random);
+		}
+	}
+
+}
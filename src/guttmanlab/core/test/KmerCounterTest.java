@@ -0,0 +1,310 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.sequence.KmerCounter;
+import guttmanlab.core.sequence.KmerIndex;
+import guttmanlab.core.sequence.KmerTable;
+import guttmanlab.core.sequence.PackedSequence;
+import guttmanlab.core.sequence.Sequence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KmerCounterTest {
+
+	private List<Sequence> sequences;
+
+	/**
+	 * Random sequences with N, lower case and repeated segments, so that some k-mers occur many times
+	 */
+	@Before
+	public void setUp() {
+		Random random = new Random(23);
+		sequences = new ArrayList<Sequence>();
+		for(int i = 0; i < 6; i++) {
+			StringBuilder bases = new StringBuilder();
+			int length = 50 + random.nextInt(3000);
+			while(bases.length() < length) {
+				if(bases.length() > 20 && random.nextInt(20) == 0) {
+					int start = random.nextInt(bases.length() - 20);
+					bases.append(bases.substring(start, start + 20));
+				} else {
+					bases.append("ACGTACGTACGTacgtN".charAt(random.nextInt(17)));
+				}
+			}
+			sequences.add(new Sequence("seq" + i, bases.toString()));
+		}
+		// Sequences shorter than k, all N and empty
+		sequences.add(new Sequence("short", "ACG"));
+		sequences.add(new Sequence("allN", "NNNNNNNNNNNNNNNNNNNN"));
+		sequences.add(new Sequence("empty", ""));
+		// Palindromic k-mers, which are their own reverse complement
+		sequences.add(new Sequence("palindromes", "ACGTACGTAATTAATTGCGCGCGC"));
+	}
+
+	private static String reverseComplement(String kmer) {
+		return new Sequence(kmer).reverseComplement().getSequenceBases();
+	}
+
+	/**
+	 * @return The count of each k-mer of the sequences, found by checking each window
+	 */
+	private static Map<String, Integer> bruteForceCounts(List<? extends Sequence> seqs, int k, boolean canonical) {
+		Map<String, Integer> rtrn = new HashMap<String, Integer>();
+		for(Sequence seq : seqs) {
+			String bases = seq.getSequenceBases().toUpperCase();
+			for(int i = 0; i + k <= bases.length(); i++) {
+				String kmer = bases.substring(i, i + k);
+				if(kmer.contains("N")) {
+					continue;
+				}
+				if(canonical && reverseComplement(kmer).compareTo(kmer) < 0) {
+					kmer = reverseComplement(kmer);
+				}
+				Integer count = rtrn.get(kmer);
+				rtrn.put(kmer, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			}
+		}
+		return rtrn;
+	}
+
+	private static void checkCounts(Map<String, Integer> expected, KmerTable table, int k) {
+		assertEquals(expected.size(), table.size());
+		for(long kmer : table.getKmers()) {
+			String decoded = KmerCounter.decode(kmer, k);
+			assertTrue(decoded, expected.containsKey(decoded));
+			assertEquals(decoded, expected.get(decoded).intValue(), table.getCount(kmer));
+		}
+	}
+
+	@Test
+	public void testEncode() {
+		Random random = new Random(29);
+		for(int k = 1; k <= KmerCounter.MAX_K; k++) {
+			String kmer = randomBases(random, k);
+			long encoded = KmerCounter.encode(kmer);
+			assertEquals(kmer, KmerCounter.decode(encoded, k));
+			assertEquals(encoded, KmerCounter.encode(kmer.toLowerCase()));
+			assertEquals(reverseComplement(kmer), KmerCounter.decode(KmerCounter.reverseComplement(encoded, k), k));
+			// Encodings of the same length sort like the k-mers
+			String other = randomBases(random, k);
+			assertEquals(Integer.signum(kmer.compareTo(other)), Long.signum(encoded - KmerCounter.encode(other)));
+		}
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			rtrn.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return rtrn.toString();
+	}
+
+	@Test
+	public void testCountAgainstBruteForce() {
+		List<PackedSequence> packed = new ArrayList<PackedSequence>();
+		for(Sequence seq : sequences) {
+			packed.add(new PackedSequence(seq));
+		}
+		for(int k : new int[] {1, 2, 5, 12, 20, KmerCounter.MAX_K}) {
+			for(boolean canonical : new boolean[] {false, true}) {
+				Map<String, Integer> expected = bruteForceCounts(sequences, k, canonical);
+				checkCounts(expected, KmerCounter.count(sequences, k, canonical, 1), k);
+				checkCounts(expected, KmerCounter.count(sequences, k, canonical, 4), k);
+				checkCounts(expected, KmerCounter.count(packed, k, canonical, 3), k);
+				// One sequence at a time, added together
+				KmerTable sum = new KmerTable();
+				for(Sequence seq : packed) {
+					sum.addAll(KmerCounter.count(seq, k, canonical));
+				}
+				checkCounts(expected, sum, k);
+			}
+		}
+	}
+
+	@Test
+	public void testCanonicalCounts() {
+		int k = 9;
+		KmerTable forward = KmerCounter.count(sequences, k, false, 2);
+		KmerTable canonical = KmerCounter.count(sequences, k, true, 2);
+		// Each canonical count is the count of the k-mer plus the count of its reverse complement, or the
+		// count alone for palindromes
+		long total = 0;
+		for(long kmer : canonical.getKmers()) {
+			long rc = KmerCounter.reverseComplement(kmer, k);
+			assertTrue(kmer <= rc);
+			int expected = forward.getCount(kmer) + (rc == kmer ? 0 : forward.getCount(rc));
+			assertEquals(expected, canonical.getCount(kmer));
+			total += canonical.getCount(kmer);
+		}
+		long forwardTotal = 0;
+		for(long kmer : forward.getKmers()) {
+			forwardTotal += forward.getCount(kmer);
+			long rc = KmerCounter.reverseComplement(kmer, k);
+			assertTrue(canonical.getCount(Math.min(kmer, rc)) >= forward.getCount(kmer));
+		}
+		assertEquals(forwardTotal, total);
+	}
+
+	@Test
+	public void testTableGrowth() {
+		// Start from the smallest shards and grow each of them many times, with keys spread over the whole
+		// range of longs and keys that differ only in their low bits
+		Random random = new Random(31);
+		KmerTable table = new KmerTable(0);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		for(int i = 0; i < 300000; i++) {
+			long key = i % 2 == 0 ? random.nextLong() >>> 1 : random.nextInt(100000);
+			int count = 1 + random.nextInt(5);
+			table.add(key, count);
+			Integer old = expected.get(Long.valueOf(key));
+			expected.put(Long.valueOf(key), Integer.valueOf(old == null ? count : old.intValue() + count));
+		}
+		assertEquals(expected.size(), table.size());
+		long[] kmers = table.getKmers();
+		assertEquals(expected.size(), kmers.length);
+		for(long kmer : kmers) {
+			assertEquals(expected.get(Long.valueOf(kmer)).intValue(), table.getCount(kmer));
+		}
+		for(int i = 0; i < 1000; i++) {
+			long key = random.nextLong() >>> 1;
+			if(!expected.containsKey(Long.valueOf(key))) {
+				assertEquals(0, table.getCount(key));
+			}
+		}
+		assertEquals(0, table.getCount(-5));
+		// A presized table gives the same counts
+		KmerTable presized = new KmerTable(expected.size());
+		presized.addAll(table);
+		assertEquals(table.size(), presized.size());
+		for(long kmer : kmers) {
+			assertEquals(table.getCount(kmer), presized.getCount(kmer));
+		}
+	}
+
+	@Test
+	public void testConcurrentCounters() throws Exception {
+		// Threads start together and increment overlapping keys through their own counters, so shards grow
+		// while other threads flush to them. Some threads also flush often.
+		final KmerTable table = new KmerTable();
+		final int numThreads = 8;
+		final long[][] keys = new long[numThreads][1000000];
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		Random random = new Random(37);
+		for(int t = 0; t < numThreads; t++) {
+			for(int i = 0; i < keys[t].length; i++) {
+				keys[t][i] = random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(1 << 20);
+				Integer old = expected.get(Long.valueOf(keys[t][i]));
+				expected.put(Long.valueOf(keys[t][i]), Integer.valueOf(old == null ? 1 : old.intValue() + 1));
+			}
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					KmerTable.Counter counter = table.newCounter();
+					start.await();
+					for(int i = 0; i < keys[thread].length; i++) {
+						counter.increment(keys[thread][i]);
+						if(thread % 2 == 0 && i % 1000 == 0) {
+							counter.flush();
+						}
+					}
+					counter.flush();
+					// Flushing again adds nothing
+					counter.flush();
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for(Future<Void> future : futures) {
+			future.get();
+		}
+		pool.shutdown();
+		assertEquals(expected.size(), table.size());
+		long total = 0;
+		for(long kmer : table.getKmers()) {
+			assertEquals(expected.get(Long.valueOf(kmer)).intValue(), table.getCount(kmer));
+			total += table.getCount(kmer);
+		}
+		assertEquals((long) numThreads * keys[0].length, total);
+	}
+
+	private static String toString(SingleInterval interval) {
+		return interval.getReferenceName() + ":" + interval.getReferenceStartPosition() + "-" + interval.getReferenceEndPosition()
+				+ ":" + interval.getOrientation();
+	}
+
+	/**
+	 * @return The positions of a k-mer in order of sequence and position, then those of its reverse
+	 * complement on the negative strand
+	 */
+	private List<String> bruteForcePositions(String kmer, boolean bothStrands) {
+		List<String> rtrn = new ArrayList<String>();
+		String rc = reverseComplement(kmer);
+		List<String> targets = new ArrayList<String>();
+		targets.add(kmer);
+		if(bothStrands && !rc.equals(kmer)) {
+			targets.add(rc);
+		}
+		for(String target : targets) {
+			Strand strand = target == kmer ? Strand.POSITIVE : Strand.NEGATIVE;
+			for(Sequence seq : sequences) {
+				String bases = seq.getSequenceBases().toUpperCase();
+				for(int i = bases.indexOf(target); i >= 0; i = bases.indexOf(target, i + 1)) {
+					rtrn.add(seq.getName() + ":" + i + "-" + (i + kmer.length()) + ":" + strand);
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	@Test
+	public void testKmerIndexPositions() {
+		for(int k : new int[] {3, 8, 15}) {
+			KmerIndex index = new KmerIndex(sequences, k, 3);
+			assertEquals(k, index.getK());
+			Map<String, Integer> counts = bruteForceCounts(sequences, k, false);
+			checkCounts(counts, index.getCounts(), k);
+			// Every k-mer of the sequences, and k-mers that are not in the sequences
+			List<String> kmers = new ArrayList<String>(counts.keySet());
+			Random random = new Random(k);
+			for(int i = 0; i < 100; i++) {
+				kmers.add(randomBases(random, k));
+			}
+			for(String kmer : kmers) {
+				for(boolean bothStrands : new boolean[] {false, true}) {
+					List<String> expected = bruteForcePositions(kmer, bothStrands);
+					List<String> positions = new ArrayList<String>();
+					for(SingleInterval interval : index.getPositions(kmer, bothStrands)) {
+						positions.add(toString(interval));
+					}
+					assertEquals(kmer, expected, positions);
+					assertEquals(kmer, expected.size(), index.getCount(kmer, bothStrands));
+					assertEquals(kmer, expected.size() == 1, index.isUnique(kmer, bothStrands));
+					assertEquals(kmer, index.getCount(kmer, bothStrands), index.getCount(kmer.toLowerCase(), bothStrands));
+				}
+			}
+		}
+	}
+
+}
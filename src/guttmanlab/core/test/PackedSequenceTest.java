@@ -0,0 +1,146 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.sequence.PackedSequence;
+import guttmanlab.core.sequence.Sequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedSequenceTest {
+
+	private List<Sequence> sequences;
+
+	/**
+	 * Random sequences of lengths around the 32 and 64 base word boundaries, with and without N, lower case
+	 * and other characters, which are stored as N
+	 */
+	@Before
+	public void setUp() {
+		Random random = new Random(11);
+		sequences = new ArrayList<Sequence>();
+		String[] alphabets = {"ACGT", "ACGTN", "ACGTacgt", "ACGTNacgtn"};
+		int[] lengths = {0, 1, 2, 31, 32, 33, 63, 64, 65, 100, 1000};
+		for(String alphabet : alphabets) {
+			for(int length : lengths) {
+				StringBuilder bases = new StringBuilder();
+				for(int i = 0; i < length; i++) {
+					bases.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+				sequences.add(new Sequence("seq" + sequences.size(), bases.toString()));
+			}
+		}
+	}
+
+	private static void checkSame(Sequence expected, PackedSequence packed) {
+		assertEquals(expected.getName(), packed.getName());
+		assertEquals(expected.getLength(), packed.getLength());
+		assertEquals(expected.getSequenceBases(), packed.getSequenceBases());
+		char[] chars = new char[expected.getLength() + 2];
+		byte[] bytes = new byte[expected.getLength() + 2];
+		packed.getBases(0, packed.getLength(), chars, 1);
+		packed.getBases(0, packed.getLength(), bytes, 1);
+		assertEquals(expected.getSequenceBases(), new String(chars, 1, expected.getLength()));
+		assertEquals(expected.getSequenceBases(), new String(bytes, 1, expected.getLength()));
+		for(int i = 0; i < expected.getLength(); i++) {
+			char c = expected.getSequenceBases().charAt(i);
+			assertEquals(c, packed.charAt(i));
+			assertEquals(Character.toUpperCase(c) == 'N', packed.isN(i));
+			if(!packed.isN(i)) {
+				assertEquals("ACGT".indexOf(Character.toUpperCase(c)), packed.getBaseCode(i));
+			}
+		}
+		assertEquals(expected, packed);
+	}
+
+	@Test
+	public void testBases() {
+		for(Sequence seq : sequences) {
+			checkSame(seq, new PackedSequence(seq));
+		}
+	}
+
+	@Test
+	public void testOtherCharactersStoredAsN() {
+		PackedSequence packed = new PackedSequence("seq", "ACRYgtkN");
+		assertEquals("ACNNgtnN", packed.getSequenceBases());
+		assertEquals(PackedSequence.N, packed.getBaseCode(2));
+		assertEquals(PackedSequence.G, packed.getBaseCode(4));
+	}
+
+	@Test
+	public void testReverseComplement() {
+		for(Sequence seq : sequences) {
+			PackedSequence packed = new PackedSequence(seq);
+			Sequence expected = seq.reverseComplement();
+			assertNull(packed.reverseComplement().getName());
+			checkSame(expected, packed.reverseComplement());
+			assertEquals(expected, packed.reverseComplement());
+			assertEquals(packed.reverseComplement(), expected);
+			assertEquals(expected.hashCode(), packed.reverseComplement().hashCode());
+			// Reverse complementing twice gives back the original bases
+			assertEquals(seq.getSequenceBases(), packed.reverseComplement().reverseComplement().getSequenceBases());
+		}
+	}
+
+	@Test
+	public void testSubSequence() {
+		for(Sequence seq : sequences) {
+			PackedSequence packed = new PackedSequence(seq);
+			Sequence rc = seq.reverseComplement();
+			int length = seq.getLength();
+			for(int start = -1; start <= length; start += 1 + length / 10) {
+				for(int end = Math.max(start, 0); end <= length + 1; end += 1 + length / 7) {
+					checkSame(seq.getSubSequence("sub", start, end), packed.getSubSequence("sub", start, end));
+					// Subsequence of a reverse complement view
+					checkSame(rc.getSubSequence("sub", start, end), packed.reverseComplement().getSubSequence("sub", start, end));
+					// Reverse complement of a subsequence view, and a subsequence of that
+					Sequence expected = seq.getSubSequence("sub", start, end).reverseComplement();
+					checkSame(expected, packed.getSubSequence("sub", start, end).reverseComplement());
+					int mid = expected.getLength() / 2;
+					if(mid >= 1) {
+						checkSame(expected.getSubSequence("sub2", 1, mid),
+								packed.getSubSequence("sub", start, end).reverseComplement().getSubSequence("sub2", 1, mid));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetSubsequenceOfAnnotation() {
+		for(Sequence seq : sequences) {
+			if(seq.getLength() < 60) {
+				continue;
+			}
+			PackedSequence packed = new PackedSequence(seq);
+			int length = seq.getLength();
+			for(Strand strand : new Strand[] {Strand.POSITIVE, Strand.NEGATIVE}) {
+				List<Annotation> blocks = new ArrayList<Annotation>();
+				// Blocks across word boundaries, and a block past the end of the sequence
+				blocks.add(new SingleInterval(seq.getName(), 3, 35, strand));
+				blocks.add(new SingleInterval(seq.getName(), 40, 41, strand));
+				blocks.add(new SingleInterval(seq.getName(), 50, length + 10, strand));
+				Annotation annot = new BlockedAnnotation(blocks, "annot");
+				assertEquals(seq.getSubsequence(annot), packed.getSubsequence(annot));
+				assertEquals(seq.getSubsequenceLength(annot), packed.getSubsequenceLength(annot));
+				// The same annotation on the reverse complement view, against a String-backed reverse complement
+				Sequence rc = new Sequence("rc", seq.reverseComplement().getSequenceBases());
+				assertEquals(rc.getSubsequence(annot), packed.reverseComplement().getSubsequence(annot));
+				byte[] bytes = new byte[packed.getSubsequenceLength(annot)];
+				packed.getSubsequence(annot, bytes, 0);
+				assertEquals(seq.getSubsequence(annot).getSequenceBases(), new String(bytes));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import guttmanlab.core.util.ParallelBAMFileWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.BAMIndexer;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelBAMFileWriterTest {
+
+	private static final String BAM = "src/guttmanlab/core/test/SingleCollectionTest.bam";
+	private File dir;
+	private SAMFileHeader header;
+	private List<SAMRecord> records;
+
+	/**
+	 * The reads of the test BAM file and sorted random reads on its first references, with spliced reads,
+	 * unmapped reads placed at the position of a mapped read, and unmapped reads without a position at the end
+	 */
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("parallel-bam-writer-test", "");
+		dir.delete();
+		dir.mkdir();
+		SAMFileReader reader = new SAMFileReader(new File(BAM));
+		header = reader.getFileHeader();
+		List<SAMRecord> testReads = new ArrayList<SAMRecord>();
+		for(SAMRecord record : reader) {
+			testReads.add(record);
+		}
+		reader.close();
+		records = new ArrayList<SAMRecord>();
+		Random random = new Random(59);
+		for(int chr = 0; chr < header.getSequenceDictionary().size(); chr++) {
+			String name = header.getSequence(chr).getSequenceName();
+			// Random reads in the first 2.3Mb of the first references, which come before the reads of the test file
+			int position = 1;
+			for(int i = 0; chr < 3 && i < 8000; i++) {
+				position += random.nextInt(i % 1000 < 50 ? 5000 : 30);
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName("read" + chr + "_" + i);
+				record.setReferenceIndex(chr);
+				record.setAlignmentStart(position);
+				int length = 20 + random.nextInt(60);
+				String bases = randomBases(random, length);
+				record.setReadString(bases);
+				record.setBaseQualityString(bases.replace('A', 'I').replace('C', '#').replace('G', '5').replace('T', '?'));
+				if(random.nextInt(20) == 0) {
+					// Unmapped mate placed at the position of its mapped mate
+					record.setReadUnmappedFlag(true);
+				} else {
+					record.setCigarString(random.nextInt(10) == 0 ? "10M" + (100 + random.nextInt(20000)) + "N" + (length - 10) + "M" : length + "M");
+					record.setReadNegativeStrandFlag(random.nextBoolean());
+					record.setMappingQuality(random.nextInt(256));
+				}
+				records.add(record);
+			}
+			for(SAMRecord record : testReads) {
+				if(record.getReferenceName().equals(name)) {
+					records.add(record);
+				}
+			}
+		}
+		for(int i = 0; i < 500; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("unmapped" + i);
+			record.setReadUnmappedFlag(true);
+			record.setReadString(randomBases(random, 30));
+			record.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+			records.add(record);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder rtrn = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			rtrn.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return rtrn.toString();
+	}
+
+	private File write(String name, int numThreads) {
+		File rtrn = new File(dir, name);
+		SAMFileWriter writer = ParallelBAMFileWriter.makeSAMOrBAMWriter(header, true, rtrn, ParallelBAMFileWriter.DEFAULT_COMPRESSION_LEVEL, numThreads);
+		for(SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		return rtrn;
+	}
+
+	/**
+	 * Index a BAM file with BAMIndexer by reading it back
+	 */
+	private static File indexAfterWriting(File bam) {
+		File rtrn = new File(bam.getPath() + ".reference.bai");
+		SAMFileReader reader = new SAMFileReader(bam);
+		reader.enableFileSource(true);
+		BAMIndexer indexer = new BAMIndexer(rtrn, reader.getFileHeader());
+		for(SAMRecord record : reader) {
+			indexer.processAlignment(record);
+		}
+		indexer.finish();
+		reader.close();
+		return rtrn;
+	}
+
+	private static byte[] uncompressed(File bam) throws IOException {
+		InputStream in = new BlockCompressedInputStream(bam);
+		ByteArrayOutputStream rtrn = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int n;
+		while((n = in.read(buffer)) > 0) {
+			rtrn.write(buffer, 0, n);
+		}
+		in.close();
+		return rtrn.toByteArray();
+	}
+
+	private static List<String> toStrings(SAMRecordIterator iter) {
+		List<String> rtrn = new ArrayList<String>();
+		while(iter.hasNext()) {
+			rtrn.add(iter.next().getSAMString());
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void testIndexMatchesBAMIndexer() throws IOException {
+		for(int numThreads : new int[] {1, 4}) {
+			File bam = write("test" + numThreads + ".bam", numThreads);
+			File index = ParallelBAMFileWriter.getIndexFile(bam);
+			assertTrue(index.exists());
+			assertTrue(Arrays.equals(Files.readAllBytes(indexAfterWriting(bam).toPath()), Files.readAllBytes(index.toPath())));
+		}
+	}
+
+	@Test
+	public void testRecordsMatchSAMFileWriterFactory() throws IOException {
+		File expected = new File(dir, "factory.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, expected);
+		for(SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		File bam = write("test.bam", 3);
+		// The same uncompressed bytes; the compressed blocks, and so the index, can differ
+		assertTrue(Arrays.equals(uncompressed(expected), uncompressed(bam)));
+		SAMFileReader reader = new SAMFileReader(bam);
+		List<String> strings = toStrings(reader.iterator());
+		reader.close();
+		assertEquals(records.size(), strings.size());
+		for(int i = 0; i < records.size(); i++) {
+			assertEquals(records.get(i).getSAMString(), strings.get(i));
+		}
+	}
+
+	@Test
+	public void testQueries() {
+		File bam = write("test.bam", 2);
+		SAMFileReader reader = new SAMFileReader(bam, ParallelBAMFileWriter.getIndexFile(bam));
+		assertTrue(reader.hasIndex());
+		Random random = new Random(61);
+		for(int i = 0; i < 200; i++) {
+			SAMRecord template = records.get(random.nextInt(records.size()));
+			if(template.getReferenceIndex().intValue() < 0) {
+				continue;
+			}
+			String chr = template.getReferenceName();
+			int start = Math.max(1, template.getAlignmentStart() - random.nextInt(5000));
+			int end = start + random.nextInt(50000);
+			List<String> expected = new ArrayList<String>();
+			for(SAMRecord record : records) {
+				if(record.getReferenceName().equals(chr) && !record.getReadUnmappedFlag()
+						&& record.getAlignmentStart() <= end && record.getAlignmentEnd() >= start) {
+					expected.add(record.getSAMString());
+				}
+			}
+			List<String> found = new ArrayList<String>();
+			for(String record : toStrings(reader.queryOverlapping(chr, start, end))) {
+				if(!record.startsWith("unmapped") && (Integer.parseInt(record.split("\t")[1]) & 4) == 0) {
+					found.add(record);
+				}
+			}
+			assertEquals(chr + ":" + start + "-" + end, expected, found);
+		}
+		assertEquals(500, toStrings(reader.queryUnmapped()).size());
+		reader.close();
+	}
+
+	@Test
+	public void testNoIndexForUnsortedFile() {
+		header = header.clone();
+		header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+		File bam = write("unsorted.bam", 2);
+		assertFalse(ParallelBAMFileWriter.getIndexFile(bam).exists());
+		SAMFileReader reader = new SAMFileReader(bam);
+		assertEquals(records.size(), toStrings(reader.iterator()).size());
+		reader.close();
+	}
+
+}
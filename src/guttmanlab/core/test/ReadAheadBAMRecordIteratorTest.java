@@ -0,0 +1,221 @@
+package guttmanlab.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+import guttmanlab.core.util.BlockCompressedReadAheadInputStream;
+import guttmanlab.core.util.ReadAheadBAMRecordIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.CloseableIterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAheadBAMRecordIteratorTest {
+
+	private static final String BAM = "src/guttmanlab/core/test/SingleCollectionTest.bam";
+	private File dir;
+	private File largeBam;
+
+	/**
+	 * Write a BAM file with the header of the test BAM file and enough reads for dozens of blocks
+	 */
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("read-ahead-bam-test", "");
+		dir.delete();
+		dir.mkdir();
+		largeBam = new File(dir, "large.bam");
+		SAMFileReader reader = new SAMFileReader(new File(BAM));
+		SAMFileHeader header = reader.getFileHeader();
+		reader.close();
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, largeBam);
+		Random random = new Random(43);
+		int numReads = 0;
+		for(int chr = 0; chr < 3; chr++) {
+			int position = 1;
+			for(int i = 0; i < 10000; i++) {
+				position += random.nextInt(50);
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName("read" + numReads++);
+				record.setReferenceIndex(chr);
+				record.setAlignmentStart(position);
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+				int length = 20 + random.nextInt(60);
+				record.setCigarString(length + "M");
+				StringBuilder bases = new StringBuilder();
+				StringBuilder qualities = new StringBuilder();
+				for(int j = 0; j < length; j++) {
+					bases.append("ACGT".charAt(random.nextInt(4)));
+					qualities.append((char) ('!' + random.nextInt(41)));
+				}
+				record.setReadString(bases.toString());
+				record.setBaseQualityString(qualities.toString());
+				record.setAttribute("NH", Integer.valueOf(1 + random.nextInt(3)));
+				writer.addAlignment(record);
+			}
+		}
+		writer.close();
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static List<String> toStrings(SAMRecordIterator iter) {
+		List<String> rtrn = new ArrayList<String>();
+		while(iter.hasNext()) {
+			rtrn.add(iter.next().getSAMString());
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	private static List<String> readWithSAMFileReader(File bam) {
+		SAMFileReader reader = new SAMFileReader(bam);
+		List<String> rtrn = toStrings(reader.iterator());
+		reader.close();
+		return rtrn;
+	}
+
+	private static void checkRecords(File bam) {
+		List<String> expected = readWithSAMFileReader(bam);
+		SAMFileReader reader = new SAMFileReader(bam);
+		SAMFileHeader header = reader.getFileHeader();
+		reader.close();
+		for(int numThreads : new int[] {1, 2, 4}) {
+			for(int queueDepth : new int[] {1, 3, numThreads * BlockCompressedReadAheadInputStream.DEFAULT_BLOCKS_PER_THREAD}) {
+				assertEquals(numThreads + " " + queueDepth, expected, toStrings(new ReadAheadBAMRecordIterator(bam, header, numThreads, queueDepth)));
+			}
+		}
+	}
+
+	@Test
+	public void testRecordsMatchSAMFileReader() {
+		checkRecords(new File(BAM));
+		checkRecords(largeBam);
+		assertEquals(30000, readWithSAMFileReader(largeBam).size());
+	}
+
+	@Test
+	public void testSortedIteratorWithReadAhead() {
+		for(File bam : new File[] {new File(BAM), largeBam}) {
+			List<String> expected = new ArrayList<String>();
+			CloseableIterator<SAMFragment> iter = new BAMSingleReadCollection(bam).sortedIterator();
+			while(iter.hasNext()) {
+				expected.add(iter.next().getSamRecord().getSAMString());
+			}
+			iter.close();
+			BAMSingleReadCollection collection = new BAMSingleReadCollection(bam);
+			collection.setReadAhead(3);
+			List<String> records = new ArrayList<String>();
+			iter = collection.sortedIterator();
+			while(iter.hasNext()) {
+				records.add(iter.next().getSamRecord().getSAMString());
+			}
+			iter.close();
+			assertEquals(expected, records);
+		}
+	}
+
+	@Test
+	public void testCloseBeforeEnd() {
+		SAMFileReader reader = new SAMFileReader(largeBam);
+		ReadAheadBAMRecordIterator iter = new ReadAheadBAMRecordIterator(largeBam, reader.getFileHeader(), 2, 4);
+		reader.close();
+		for(int i = 0; i < 100; i++) {
+			iter.next();
+		}
+		iter.close();
+		assertFalse(iter.hasNext());
+	}
+
+	/**
+	 * Read a stream to the end with single byte reads and reads of random lengths
+	 */
+	private static byte[] readAll(InputStream in, Random random) throws IOException {
+		ByteArrayOutputStream rtrn = new ByteArrayOutputStream();
+		byte[] buffer = new byte[100000];
+		while(true) {
+			if(random.nextInt(4) == 0) {
+				int b = in.read();
+				if(b < 0) {
+					break;
+				}
+				rtrn.write(b);
+			} else {
+				int n = in.read(buffer, 0, random.nextInt(buffer.length));
+				if(n < 0) {
+					break;
+				}
+				rtrn.write(buffer, 0, n);
+			}
+		}
+		in.close();
+		return rtrn.toByteArray();
+	}
+
+	@Test
+	public void testUncompressedBytes() throws IOException {
+		Random random = new Random(47);
+		byte[] expected = readAll(new BlockCompressedInputStream(largeBam), random);
+		assertTrue(expected.length > 1000000);
+		for(int numThreads : new int[] {1, 3}) {
+			byte[] bytes = readAll(new BlockCompressedReadAheadInputStream(largeBam, numThreads), random);
+			assertTrue(Arrays.equals(expected, bytes));
+		}
+	}
+
+	private void checkError(File bam) {
+		try {
+			readAll(new BlockCompressedReadAheadInputStream(bam, 2), new Random(53));
+			fail("No exception reading " + bam.getName());
+		} catch(IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testCorruptAndTruncatedFiles() throws IOException {
+		// A changed byte in the compressed data of a block in the middle of the file
+		RandomAccessFile raf = new RandomAccessFile(largeBam, "rw");
+		long length = raf.length();
+		raf.seek(length / 2);
+		int b = raf.read();
+		raf.seek(length / 2);
+		raf.write(b ^ 0xFF);
+		raf.close();
+		checkError(largeBam);
+		// A file that ends in the middle of a block
+		raf = new RandomAccessFile(largeBam, "rw");
+		raf.setLength(length - 100);
+		raf.close();
+		checkError(largeBam);
+	}
+
+}
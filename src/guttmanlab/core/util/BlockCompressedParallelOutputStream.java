@@ -0,0 +1,273 @@
+package guttmanlab.core.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * An output stream that writes BGZF (e.g. BAM) files, deflating blocks concurrently on a thread pool.
+ * Data is cut into blocks of BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE bytes;
+ * at most queueDepth blocks are being compressed at a time and blocks are written in order.
+ * The BGZF end-of-file marker is written on close.
+ */
+public class BlockCompressedParallelOutputStream extends OutputStream {
+
+	private OutputStream out;
+	private ExecutorService pool;
+	private LinkedList<Future<byte[]>> pending;
+	private int queueDepth;
+	private int compressionLevel;
+	private byte[] buffer;
+	private int bufferPos;
+	private boolean closed;
+	private long numBlocksSubmitted;
+	private long numBlocksWritten;
+	private long bytesWritten;
+	private BlockListener listener;
+
+	/**
+	 * Receives the position of each block when it is written
+	 */
+	public interface BlockListener {
+
+		/**
+		 * Called on the thread writing to the stream
+		 * @param blockIndex Index of the block, counting from 0
+		 * @param address Offset of the compressed block in the output
+		 * @param length Length of the compressed block
+		 */
+		public void blockWritten(long blockIndex, long address, int length);
+
+	}
+
+	/**
+	 * Default number of blocks being compressed per thread
+	 */
+	public static final int DEFAULT_BLOCKS_PER_THREAD = 4;
+
+	private static final int MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+			- BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+	/**
+	 * @param file Output file
+	 * @param compressionLevel Deflate compression level, 0-9
+	 * @param numThreads Number of compression threads
+	 * @throws IOException
+	 */
+	public BlockCompressedParallelOutputStream(File file, int compressionLevel, int numThreads) throws IOException {
+		this(new FileOutputStream(file), compressionLevel, numThreads, numThreads * DEFAULT_BLOCKS_PER_THREAD);
+	}
+
+	/**
+	 * @param out Stream to write compressed blocks to
+	 * @param compressionLevel Deflate compression level, 0-9
+	 * @param numThreads Number of compression threads
+	 * @param queueDepth Maximum number of blocks being compressed at a time
+	 */
+	public BlockCompressedParallelOutputStream(OutputStream out, int compressionLevel, int numThreads, int queueDepth) {
+		if(compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		}
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(queueDepth < 1) {
+			throw new IllegalArgumentException("Queue depth must be at least 1: " + queueDepth);
+		}
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		this.queueDepth = queueDepth;
+		this.pending = new LinkedList<Future<byte[]>>();
+		this.pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bgzf-deflater");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+	}
+
+	/**
+	 * @param listener Listener for the positions of written blocks
+	 */
+	public void setBlockListener(BlockListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return Index of the block the next byte goes into. Its compressed address is not known until
+	 * the blocks before it are written.
+	 */
+	public long getBlockIndex() {
+		return numBlocksSubmitted;
+	}
+
+	/**
+	 * @return Offset of the next byte in its block
+	 */
+	public int getBlockOffset() {
+		return bufferPos;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferPos++] = (byte) b;
+		if(bufferPos == buffer.length) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buffer.length - bufferPos);
+			System.arraycopy(b, off, buffer, bufferPos, n);
+			bufferPos += n;
+			off += n;
+			len -= n;
+			if(bufferPos == buffer.length) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compress any buffered data as a block and write all pending blocks
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(bufferPos > 0) {
+			submitBlock();
+		}
+		while(!pending.isEmpty()) {
+			writeNextBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		} finally {
+			pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = new byte[bufferPos];
+		System.arraycopy(buffer, 0, data, 0, bufferPos);
+		bufferPos = 0;
+		numBlocksSubmitted++;
+		while(pending.size() >= queueDepth) {
+			writeNextBlock();
+		}
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return deflate(data, compressionLevel);
+			}
+		}));
+	}
+
+	private void writeNextBlock() throws IOException {
+		try {
+			byte[] block = pending.removeFirst().get();
+			out.write(block);
+			if(listener != null) {
+				listener.blockWritten(numBlocksWritten, bytesWritten, block.length);
+			}
+			numBlocksWritten++;
+			bytesWritten += block.length;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing block", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing block", e.getCause());
+		}
+	}
+
+	/**
+	 * Compress data into a complete BGZF block. Data that does not fit after compression is stored
+	 * uncompressed, which always fits because blocks hold at most DEFAULT_UNCOMPRESSED_BLOCK_SIZE bytes.
+	 * @param data Uncompressed data
+	 * @param compressionLevel Deflate compression level
+	 * @return The BGZF block including header and footer
+	 */
+	private static byte[] deflate(byte[] data, int compressionLevel) {
+		byte[] deflated = new byte[MAX_DEFLATED_SIZE];
+		int deflatedSize = deflate(data, deflated, compressionLevel);
+		if(deflatedSize < 0) {
+			deflatedSize = deflate(data, deflated, Deflater.NO_COMPRESSION);
+		}
+		int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedSize + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte[] block = new byte[blockSize];
+		// gzip header with the BGZF "BC" extra field holding the total block size - 1
+		block[0] = BlockCompressedStreamConstants.GZIP_ID1;
+		block[1] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+		block[2] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+		block[3] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+		block[8] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+		block[9] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+		packShort(block, 10, BlockCompressedStreamConstants.GZIP_XLEN);
+		block[12] = BlockCompressedStreamConstants.BGZF_ID1;
+		block[13] = BlockCompressedStreamConstants.BGZF_ID2;
+		packShort(block, 14, BlockCompressedStreamConstants.BGZF_LEN);
+		packShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockSize - 1);
+		System.arraycopy(deflated, 0, block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, deflatedSize);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		int footer = blockSize - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		packInt(block, footer, (int) crc.getValue());
+		packInt(block, footer + 4, data.length);
+		return block;
+	}
+
+	/**
+	 * @return The number of deflated bytes, or -1 if they do not fit in the output array
+	 */
+	private static int deflate(byte[] data, byte[] deflated, int compressionLevel) {
+		Deflater deflater = new Deflater(compressionLevel, true);
+		try {
+			deflater.setInput(data, 0, data.length);
+			deflater.finish();
+			int n = deflater.deflate(deflated, 0, deflated.length);
+			return deflater.finished() ? n : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void packShort(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+	}
+
+	private static void packInt(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+		b[off + 2] = (byte) (value >> 16);
+		b[off + 3] = (byte) (value >> 24);
+	}
+
+}
@@ -0,0 +1,246 @@
+package guttmanlab.core.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * An input stream over the uncompressed contents of a BGZF file (e.g. a BAM file) that inflates
+ * upcoming blocks in parallel on a thread pool. Compressed blocks are read sequentially and queued
+ * for inflation; the queue holds at most queueDepth blocks, so memory use is bounded by
+ * queueDepth * 64KB * 2. Bytes are always returned in file order.
+ *
+ * Unlike BlockCompressedInputStream this stream does not support seeking or virtual file pointers.
+ */
+public class BlockCompressedReadAheadInputStream extends InputStream {
+
+	private InputStream compressed;
+	private ExecutorService pool;
+	private LinkedList<Future<byte[]>> pending;
+	private int queueDepth;
+	private boolean endOfCompressed;
+	private byte[] current;
+	private int currentPos;
+
+	/**
+	 * Default number of blocks queued for inflation per thread
+	 */
+	public static final int DEFAULT_BLOCKS_PER_THREAD = 8;
+
+	/**
+	 * @param file BGZF file
+	 * @param numThreads Number of inflater threads
+	 * @throws IOException
+	 */
+	public BlockCompressedReadAheadInputStream(File file, int numThreads) throws IOException {
+		this(file, numThreads, numThreads * DEFAULT_BLOCKS_PER_THREAD);
+	}
+
+	/**
+	 * @param file BGZF file
+	 * @param numThreads Number of inflater threads
+	 * @param queueDepth Maximum number of blocks read ahead of the consumer
+	 * @throws IOException
+	 */
+	public BlockCompressedReadAheadInputStream(File file, int numThreads, int queueDepth) throws IOException {
+		this(new FileInputStream(file), numThreads, queueDepth);
+	}
+
+	/**
+	 * @param compressed Stream of BGZF blocks
+	 * @param numThreads Number of inflater threads
+	 * @param queueDepth Maximum number of blocks read ahead of the consumer
+	 */
+	public BlockCompressedReadAheadInputStream(InputStream compressed, int numThreads, int queueDepth) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(queueDepth < 1) {
+			throw new IllegalArgumentException("Queue depth must be at least 1: " + queueDepth);
+		}
+		this.compressed = compressed;
+		this.queueDepth = queueDepth;
+		this.pending = new LinkedList<Future<byte[]>>();
+		this.pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bgzf-inflater");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.current = new byte[0];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!ensureAvailable()) {
+			return -1;
+		}
+		return current[currentPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!ensureAvailable()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - currentPos);
+		System.arraycopy(current, currentPos, b, off, n);
+		currentPos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current.length - currentPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		pool.shutdownNow();
+		pending.clear();
+		compressed.close();
+	}
+
+	/**
+	 * Move to the next non-empty inflated block if the current one is used up
+	 * @return False iff the end of the file has been reached
+	 * @throws IOException
+	 */
+	private boolean ensureAvailable() throws IOException {
+		while(currentPos >= current.length) {
+			fillQueue();
+			if(pending.isEmpty()) {
+				return false;
+			}
+			try {
+				current = pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while inflating block", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Error inflating block", e.getCause());
+			}
+			currentPos = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Read compressed blocks and submit them for inflation until the queue is full
+	 * @throws IOException
+	 */
+	private void fillQueue() throws IOException {
+		while(!endOfCompressed && pending.size() < queueDepth) {
+			final byte[] block = readBlock();
+			if(block == null) {
+				endOfCompressed = true;
+				break;
+			}
+			pending.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return inflate(block);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * @return The next complete compressed block including header and footer, or null at end of file
+	 * @throws IOException
+	 */
+	private byte[] readBlock() throws IOException {
+		byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+		int n = readFully(header, 0, header.length);
+		if(n == 0) {
+			return null;
+		}
+		if(n < header.length) {
+			throw new EOFException("Truncated BGZF block header");
+		}
+		if(header[0] != BlockCompressedStreamConstants.GZIP_ID1 || (header[1] & 0xff) != BlockCompressedStreamConstants.GZIP_ID2
+				|| header[12] != BlockCompressedStreamConstants.BGZF_ID1 || header[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+			throw new IOException("Invalid BGZF block header");
+		}
+		int blockLength = unpackShort(header, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+		byte[] block = new byte[blockLength];
+		System.arraycopy(header, 0, block, 0, header.length);
+		if(readFully(block, header.length, blockLength - header.length) < blockLength - header.length) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		return block;
+	}
+
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while(total < len) {
+			int n = compressed.read(b, off + total, len - total);
+			if(n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Inflate a compressed block and check its CRC
+	 * @param block Compressed block including header and footer
+	 * @return The uncompressed data
+	 * @throws DataFormatException
+	 * @throws IOException
+	 */
+	private static byte[] inflate(byte[] block) throws DataFormatException, IOException {
+		int footer = block.length - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		int uncompressedLength = unpackInt(block, footer + 4);
+		byte[] rtrn = new byte[uncompressedLength];
+		if(uncompressedLength == 0) {
+			return rtrn;
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			int dataStart = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+			inflater.setInput(block, dataStart, footer - dataStart);
+			int n = inflater.inflate(rtrn);
+			if(n != uncompressedLength) {
+				throw new IOException("Expected " + uncompressedLength + " inflated bytes but got " + n);
+			}
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(rtrn, 0, rtrn.length);
+		if((int) crc.getValue() != unpackInt(block, footer)) {
+			throw new IOException("CRC mismatch in BGZF block");
+		}
+		return rtrn;
+	}
+
+	private static int unpackShort(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+	}
+
+	private static int unpackInt(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+}
@@ -0,0 +1,285 @@
+package guttmanlab.core.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.BAMIndex;
+import net.sf.samtools.BAMIndexer;
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMFileSource;
+import net.sf.samtools.SAMFileSpan;
+import net.sf.samtools.SAMFileWriterImpl;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * A BAM writer that deflates BGZF blocks concurrently (see BlockCompressedParallelOutputStream).
+ * Records are encoded on the calling thread. Sorting of records that are not presorted is handled
+ * by SAMFileWriterImpl as for the Picard writers.
+ *
+ * The BAM index is built by BAMIndexer while writing. The position of each record is kept as a block
+ * index and an offset in the block, and the record is passed to the indexer once the compressed address of
+ * its blocks is known. The classes that describe record positions to BAMIndexer (Chunk and BAMFileSpan) are
+ * package-private in this Picard version and are created by reflection; if that fails, the finished file
+ * is indexed in a separate single-threaded pass that reads and inflates the whole file again.
+ */
+public class ParallelBAMFileWriter extends SAMFileWriterImpl {
+
+	private File file;
+	private boolean createIndex;
+	private BlockCompressedParallelOutputStream out;
+	private BinaryCodec binaryCodec;
+	private BAMRecordCodec recordCodec;
+	private BAMIndexer indexer; // Null if not indexing while writing
+	private LinkedList<PendingRecord> unindexed; // Written records whose blocks are not all written yet
+	private Map<Long, Long> blockAddresses; // Compressed address of each block whose preceding blocks are written
+	private long firstKeptBlock; // Lowest block in blockAddresses
+	private static Logger logger = Logger.getLogger(ParallelBAMFileWriter.class.getName());
+
+	private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+	private static final Constructor<?> CHUNK_CONSTRUCTOR;
+	private static final Constructor<?> SPAN_CONSTRUCTOR;
+
+	static {
+		Constructor<?> chunk = null;
+		Constructor<?> span = null;
+		try {
+			Class<?> chunkClass = Class.forName("net.sf.samtools.Chunk");
+			chunk = chunkClass.getDeclaredConstructor(long.class, long.class);
+			chunk.setAccessible(true);
+			span = Class.forName("net.sf.samtools.BAMFileSpan").getDeclaredConstructor(chunkClass);
+			span.setAccessible(true);
+		} catch (Exception e) {
+			logger.warn("Can't index BAM files while writing; they will be indexed after writing", e);
+			chunk = null;
+			span = null;
+		}
+		CHUNK_CONSTRUCTOR = chunk;
+		SPAN_CONSTRUCTOR = span;
+	}
+
+	/**
+	 * Default deflate compression level, the same as the Picard writers
+	 */
+	public static final int DEFAULT_COMPRESSION_LEVEL = BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
+
+	/**
+	 * @param file Output BAM file
+	 * @param compressionLevel Deflate compression level, 0-9
+	 * @param numThreads Number of compression threads
+	 * @param createIndex Whether to write a .bai index when the writer is closed
+	 */
+	public ParallelBAMFileWriter(File file, int compressionLevel, int numThreads, boolean createIndex) {
+		this.file = file;
+		this.createIndex = createIndex;
+		try {
+			this.out = new BlockCompressedParallelOutputStream(file, compressionLevel, numThreads);
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not open " + file.getPath(), e);
+		}
+		this.binaryCodec = new BinaryCodec(out);
+		this.binaryCodec.setOutputFileName(file.getPath());
+		if(createIndex && SPAN_CONSTRUCTOR != null) {
+			unindexed = new LinkedList<PendingRecord>();
+			blockAddresses = new HashMap<Long, Long>();
+			blockAddresses.put(Long.valueOf(0), Long.valueOf(0));
+			out.setBlockListener(new BlockCompressedParallelOutputStream.BlockListener() {
+				@Override
+				public void blockWritten(long blockIndex, long address, int length) {
+					blockAddresses.put(Long.valueOf(blockIndex + 1), Long.valueOf(address + length));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Make a writer for a SAM or BAM file, choosing the format from the file extension like
+	 * SAMFileWriterFactory.makeSAMOrBAMWriter(). BAM files get a .bai index if they are coordinate sorted.
+	 * @param header Header of the output file
+	 * @param presorted Whether records will be added in the sort order of the header
+	 * @param file Output file
+	 * @param compressionLevel Deflate compression level for BAM output, 0-9
+	 * @param numThreads Number of compression threads for BAM output, or 0 to compress on the calling thread
+	 * @return The writer
+	 */
+	public static SAMFileWriter makeSAMOrBAMWriter(SAMFileHeader header, boolean presorted, File file, int compressionLevel, int numThreads) {
+		boolean createIndex = header.getSortOrder().equals(SAMFileHeader.SortOrder.coordinate);
+		if(file.getName().endsWith(".sam")) {
+			return new SAMFileWriterFactory().makeSAMWriter(header, presorted, file);
+		}
+		if(numThreads < 1) {
+			return new SAMFileWriterFactory().setCreateIndex(createIndex).makeBAMWriter(header, presorted, file, compressionLevel);
+		}
+		ParallelBAMFileWriter writer = new ParallelBAMFileWriter(file, compressionLevel, numThreads, createIndex);
+		writer.setSortOrder(header.getSortOrder(), presorted);
+		writer.setHeader(header);
+		return writer;
+	}
+
+	/**
+	 * @param bamFile BAM file
+	 * @return The index file written by this class and by SAMFileWriterFactory for the BAM file
+	 */
+	public static File getIndexFile(File bamFile) {
+		String name = bamFile.getName();
+		if(name.endsWith(".bam")) {
+			name = name.substring(0, name.length() - ".bam".length());
+		}
+		return new File(bamFile.getAbsoluteFile().getParentFile(), name + BAMIndex.BAMIndexSuffix);
+	}
+
+	@Override
+	protected void writeHeader(String textHeader) {
+		SAMFileHeader header = getFileHeader();
+		binaryCodec.writeBytes(BAM_MAGIC);
+		binaryCodec.writeString(textHeader, true, false);
+		binaryCodec.writeInt(header.getSequenceDictionary().size());
+		for(SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+			binaryCodec.writeString(sequence.getSequenceName(), true, true);
+			binaryCodec.writeInt(sequence.getSequenceLength());
+		}
+		// Start the records in a new block
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+		recordCodec = new BAMRecordCodec(header);
+		recordCodec.setOutputStream(out, file.getPath());
+		if(unindexed != null) {
+			indexer = new BAMIndexer(getIndexFile(file), header);
+		}
+	}
+
+	@Override
+	protected void writeAlignment(SAMRecord alignment) {
+		if(indexer == null) {
+			recordCodec.encode(alignment);
+			return;
+		}
+		long startBlock = out.getBlockIndex();
+		int startOffset = out.getBlockOffset();
+		recordCodec.encode(alignment);
+		unindexed.add(new PendingRecord(getFileHeader(), alignment, startBlock, startOffset, out.getBlockIndex(), out.getBlockOffset()));
+		indexWrittenRecords();
+	}
+
+	/**
+	 * Pass records to the indexer, in order, as long as the addresses of their blocks are known
+	 */
+	private void indexWrittenRecords() {
+		while(!unindexed.isEmpty()) {
+			PendingRecord record = unindexed.getFirst();
+			Long start = blockAddresses.get(Long.valueOf(record.startBlock));
+			Long end = blockAddresses.get(Long.valueOf(record.endBlock));
+			if(start == null || end == null) {
+				break;
+			}
+			record.setSpan((start.longValue() << 16) | record.startOffset, (end.longValue() << 16) | record.endOffset);
+			indexer.processAlignment(record);
+			unindexed.removeFirst();
+		}
+		// Forget the addresses of blocks no remaining record starts in
+		long keepFrom = unindexed.isEmpty() ? out.getBlockIndex() : unindexed.getFirst().startBlock;
+		for(; firstKeptBlock < keepFrom; firstKeptBlock++) {
+			blockAddresses.remove(Long.valueOf(firstKeptBlock));
+		}
+	}
+
+	/**
+	 * The fields of a written record that BAMIndexer uses, with the position of the record in the file
+	 * A copy is kept rather than the record itself, which the caller may change after adding it.
+	 */
+	private static class PendingRecord extends SAMRecord {
+
+		private long startBlock;
+		private int startOffset;
+		private long endBlock;
+		private int endOffset;
+
+		PendingRecord(SAMFileHeader header, SAMRecord alignment, long startBlock, int startOffset, long endBlock, int endOffset) {
+			super(header);
+			setReferenceIndex(alignment.getReferenceIndex().intValue());
+			setAlignmentStart(alignment.getAlignmentStart());
+			if(alignment.getReadUnmappedFlag()) {
+				setReadUnmappedFlag(true);
+			} else {
+				int referenceLength = alignment.getAlignmentEnd() - alignment.getAlignmentStart() + 1;
+				setCigarString(referenceLength > 0 ? referenceLength + "M" : SAMRecord.NO_ALIGNMENT_CIGAR);
+			}
+			this.startBlock = startBlock;
+			this.startOffset = startOffset;
+			this.endBlock = endBlock;
+			this.endOffset = endOffset;
+		}
+
+		/**
+		 * @param start Virtual file offset of the start of the record
+		 * @param end Virtual file offset of the end of the record
+		 */
+		void setSpan(long start, long end) {
+			try {
+				Object chunk = CHUNK_CONSTRUCTOR.newInstance(Long.valueOf(start), Long.valueOf(end));
+				setFileSource(new SAMFileSource(null, (SAMFileSpan) SPAN_CONSTRUCTOR.newInstance(chunk)));
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not set the position of a record for the BAM index", e);
+			}
+		}
+
+	}
+
+	@Override
+	protected void finish() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+		if(indexer != null) {
+			indexWrittenRecords();
+			if(!unindexed.isEmpty()) {
+				throw new IllegalStateException("Missing block addresses for " + unindexed.size() + " records of " + file.getPath());
+			}
+			indexer.finish();
+		} else if(createIndex) {
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Read the finished file with record positions enabled and index it
+	 * This reads and inflates the whole file on one thread, and is only used if the index can't be built while writing.
+	 */
+	private void writeIndex() {
+		SAMFileReader reader = new SAMFileReader(file);
+		reader.enableFileSource(true);
+		BAMIndexer indexer = new BAMIndexer(getIndexFile(file), reader.getFileHeader());
+		SAMRecordIterator iter = reader.iterator();
+		while(iter.hasNext()) {
+			indexer.processAlignment(iter.next());
+		}
+		iter.close();
+		indexer.finish();
+		reader.close();
+	}
+
+	@Override
+	protected String getFilename() {
+		return file.getPath();
+	}
+
+}
@@ -0,0 +1,107 @@
+package guttmanlab.core.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Iterates over all records of a BAM file in file order, inflating BGZF blocks ahead of the
+ * consumer on a thread pool (see BlockCompressedReadAheadInputStream). Records are decoded on the
+ * calling thread.
+ */
+public class ReadAheadBAMRecordIterator implements SAMRecordIterator {
+
+	private BlockCompressedReadAheadInputStream stream;
+	private BAMRecordCodec codec;
+	private SAMRecord next;
+
+	private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+	/**
+	 * @param bamFile BAM file
+	 * @param header Header of the BAM file, attached to every record
+	 * @param numThreads Number of inflater threads
+	 * @param queueDepth Maximum number of blocks read ahead of the consumer
+	 */
+	public ReadAheadBAMRecordIterator(File bamFile, SAMFileHeader header, int numThreads, int queueDepth) {
+		try {
+			stream = new BlockCompressedReadAheadInputStream(bamFile, numThreads, queueDepth);
+			skipHeader(new BinaryCodec(stream));
+		} catch (IOException e) {
+			close();
+			throw new RuntimeIOException("Could not open " + bamFile.getPath(), e);
+		}
+		codec = new BAMRecordCodec(header);
+		codec.setInputStream(stream, bamFile.getPath());
+		next = codec.decode();
+	}
+
+	/**
+	 * Skip the text header and sequence dictionary at the start of the uncompressed stream
+	 * @param binaryCodec Codec over the uncompressed stream
+	 */
+	private static void skipHeader(BinaryCodec binaryCodec) {
+		byte[] magic = new byte[BAM_MAGIC.length];
+		binaryCodec.readBytes(magic);
+		if(!Arrays.equals(magic, BAM_MAGIC)) {
+			throw new SAMFormatException("Invalid BAM file header");
+		}
+		binaryCodec.readBytes(new byte[binaryCodec.readInt()]);
+		int numSequences = binaryCodec.readInt();
+		for(int i = 0; i < numSequences; i++) {
+			binaryCodec.readBytes(new byte[binaryCodec.readInt()]);
+			binaryCodec.readInt();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	@Override
+	public SAMRecord next() {
+		if(next == null) {
+			throw new NoSuchElementException("ReadAheadBAMRecordIterator.next() called with no element.");
+		}
+		SAMRecord rtrn = next;
+		next = codec.decode();
+		return rtrn;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		next = null;
+		if(stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				throw new RuntimeIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Records are returned in file order; the sort order is not checked
+	 */
+	@Override
+	public SAMRecordIterator assertSorted(SortOrder sortOrder) {
+		return this;
+	}
+
+}